@@ -0,0 +1,72 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summing of payments into {@link DailyAmounts}, with merchant ids that either fit in a dense grid or are spread out
+ * enough to need the hash table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregateBenchmark {
+    private static final int PAYMENTS = 100000;
+    private static final int FIRST_DAY = 17167;
+
+    @Param({"50", "5000"})
+    int merchants;
+
+    // Gap between consecutive merchant ids, 1 fits in a grid while large gaps are kept in the hash table
+    @Param({"1", "100000"})
+    int merchantIdStride;
+
+    @Param({"365"})
+    int days;
+
+    private int[] paymentDays;
+    private int[] paymentMerchantIds;
+    private long[] paymentPence;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        this.paymentDays = new int[PAYMENTS];
+        this.paymentMerchantIds = new int[PAYMENTS];
+        this.paymentPence = new long[PAYMENTS];
+        for (int i = 0; i < PAYMENTS; i++) {
+            this.paymentDays[i] = FIRST_DAY + random.nextInt(this.days);
+            this.paymentMerchantIds[i] = 1 + random.nextInt(this.merchants) * this.merchantIdStride;
+            this.paymentPence[i] = 1 + random.nextInt(500000);
+        }
+    }
+
+    /**
+     * @return time per payment to sum the payments into new amounts, including any growing or rehashing.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PAYMENTS)
+    public DailyAmounts add() {
+        DailyAmounts amounts = new DailyAmounts();
+        for (int i = 0; i < PAYMENTS; i++) {
+            amounts.add(this.paymentDays[i], this.paymentMerchantIds[i], this.paymentPence[i]);
+        }
+        return amounts;
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the individual date and amount fields of a record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldParserBenchmark {
+    private final byte[] utcDate = "2017-04-24T16:30:15Z".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] amount = "1234.56".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] wholeAmount = "1234".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] epochSeconds = "1493051415".getBytes(StandardCharsets.US_ASCII);
+    private final long[] fields = new long[FieldParser.UTC_DATE_FIELDS];
+
+    @Benchmark
+    public long parseUTCSeconds() throws DataParser.ParseException {
+        return FieldParser.parseUTCSeconds(this.utcDate, 0, this.utcDate.length, this.fields);
+    }
+
+    @Benchmark
+    public long parsePence() throws DataParser.ParseException {
+        return FieldParser.parseMinorUnits(this.amount, 0, this.amount.length, 2, "GBP");
+    }
+
+    @Benchmark
+    public long parseWholePence() throws DataParser.ParseException {
+        return FieldParser.parseMinorUnits(this.wholeAmount, 0, this.wholeAmount.length, 2, "GBP");
+    }
+
+    @Benchmark
+    public long parseInt() {
+        return FieldParser.parseInt(this.epochSeconds, 0, this.epochSeconds.length);
+    }
+}
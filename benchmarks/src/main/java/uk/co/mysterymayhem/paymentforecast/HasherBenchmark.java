@@ -0,0 +1,72 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a record and comparison against its expected hash, both through the String based methods and the
+ * byte range methods used by {@link DataParser}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HasherBenchmark {
+    private static final String MERCHANT_PUB_KEY = "DDoXdbCLYXrRkGZhCgHC";
+    private static final String PAYER_PUB_KEY = "eQzQePHMPYUWBiPDNjra";
+    private static final String DEBIT_PERMISSION_ID = "1732945081";
+    private static final String DUE_EPOC = "1493051415";
+    private static final String AMOUNT = "1234.56";
+
+    private final Hasher hasher = new Hasher();
+    private byte[][] fields;
+    private String expectedHash;
+    private byte[] expectedHashBytes;
+
+    @Setup
+    public void setup() {
+        String[] strings = {MERCHANT_PUB_KEY, PAYER_PUB_KEY, DEBIT_PERMISSION_ID, DUE_EPOC, AMOUNT};
+        this.fields = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            this.fields[i] = strings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        this.expectedHash = Hasher.bytesToNiceString(Hasher.hash(MERCHANT_PUB_KEY, PAYER_PUB_KEY, DEBIT_PERMISSION_ID, DUE_EPOC, AMOUNT));
+        this.expectedHashBytes = this.expectedHash.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public byte[] hashStrings() {
+        return Hasher.hash(MERCHANT_PUB_KEY, PAYER_PUB_KEY, DEBIT_PERMISSION_ID, DUE_EPOC, AMOUNT);
+    }
+
+    @Benchmark
+    public byte[] fromPreComputedString() throws DataParser.ParseException {
+        return Hasher.fromPreComputedString(this.expectedHash);
+    }
+
+    /**
+     * @return the same result as comparing {@link #hashStrings()} to {@link #fromPreComputedString()}, the way records
+     * are checked by {@link DataParser}.
+     */
+    @Benchmark
+    public int updateAndCompareDigestToHex() {
+        this.hasher.reset();
+        for (byte[] field : this.fields) {
+            this.hasher.update(field, 0, field.length);
+        }
+        return this.hasher.compareDigestToHex(this.expectedHashBytes, 0, this.expectedHashBytes.length);
+    }
+}
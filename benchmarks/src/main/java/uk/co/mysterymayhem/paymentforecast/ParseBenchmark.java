@@ -0,0 +1,149 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of whole records, both of a chunk that is already in memory by {@link DataParser#parseLine(CsvChunkReader)}
+ * and of a whole data file from disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    private static final int RECORDS = 100000;
+
+    @Param({"50", "5000"})
+    int merchants;
+
+    @Param({"0", "0.01"})
+    double invalidFraction;
+
+    // Accepted currencies, every generated record is GBP so the second is the slowest case of finding its lane
+    @Param({"GBP", "EUR,USD,GBP"})
+    String currencies;
+
+    // How duplicate records are detected, if at all
+    @Param({"none", "hashSet", "bloomFilter"})
+    String duplicateDetection;
+
+    private Path dataPath;
+    // Same records, compressed to BGZF
+    private Path compressedPath;
+    private ByteBuffer chunk;
+    private PrintStream nullStream;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DataParser.setCurrencies(CurrencyUnit.parseList(this.currencies));
+        DataParser.setDuplicateDetection(!this.duplicateDetection.equals("none"), this.duplicateDetection.equals("bloomFilter"));
+        this.dataPath = Files.createTempFile("payment-forecast-benchmark", ".csv");
+        new SyntheticDataGenerator(0, this.merchants, 10000, 365, this.invalidFraction).write(this.dataPath, RECORDS);
+        this.chunk = ByteBuffer.wrap(Files.readAllBytes(this.dataPath));
+        this.compressedPath = Files.createTempFile("payment-forecast-benchmark", ".csv.gz");
+        try (OutputStream out = new BgzfOutputStream(Files.newOutputStream(this.compressedPath))) {
+            Files.copy(this.dataPath, out);
+        }
+        this.nullStream = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    /**
+     * Each parse of the whole file starts from empty maps, as it would in the servlet.
+     */
+    @Setup(Level.Invocation)
+    public void reset() {
+        DataParser.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DataParser.setCurrencies(new CurrencyUnit[]{CurrencyUnit.GBP});
+        DataParser.setDuplicateDetection(true, false);
+        DataParser.reset();
+        Files.deleteIfExists(this.dataPath);
+        Files.deleteIfExists(this.compressedPath);
+    }
+
+    /**
+     * @return time per record to parse a chunk into a new parser, as done by each worker when parsing in parallel.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public DataParser parseLine(Blackhole blackhole) {
+        DataParser parser = new DataParser();
+        CsvChunkReader reader = new CsvChunkReader(this.chunk);
+        // Header
+        reader.nextLine();
+        while (reader.nextLine()) {
+            try {
+                parser.parseLine(reader);
+            } catch (DataParser.ParseException e) {
+                blackhole.consume(e);
+            }
+        }
+        return parser;
+    }
+
+    /**
+     * @return time per record to parse the whole file on a single thread, including reading and merging.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int parseDataFile() {
+        DataParser.parseDataFile(this.dataPath.toString(), this.nullStream, this.nullStream, 1);
+        return DataParser.dailyAmounts(0).size();
+    }
+
+    /**
+     * @return time per record to parse the whole file on as many threads as there are processors.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int parseDataFileParallel() {
+        DataParser.parseDataFile(this.dataPath.toString(), this.nullStream, this.nullStream, Runtime.getRuntime().availableProcessors());
+        return DataParser.dailyAmounts(0).size();
+    }
+
+    /**
+     * @return time per record to parse the BGZF compressed file on as many threads as there are processors, with its
+     * blocks decompressed in parallel while earlier chunks are parsed.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int parseCompressedDataFileParallel() {
+        DataParser.parseDataFile(this.compressedPath.toString(), this.nullStream, this.nullStream, Runtime.getRuntime().availableProcessors());
+        return DataParser.dailyAmounts(0).size();
+    }
+}
@@ -0,0 +1,112 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of the forecast table, both by building the whole page as a String with {@link HtmlTableBuilder} and by
+ * streaming it with {@link HtmlTableWriter}, and of the date labels of its rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark {
+    private static final int FIRST_DAY = 17167;
+
+    @Param({"50", "500"})
+    int merchants;
+
+    @Param({"365"})
+    int days;
+
+    private DailyAmounts amounts;
+    private int[] dayArray;
+    private int[] merchantIds;
+    private String[] merchantNames;
+    private HtmlTableHeader header;
+    private int[] columns;
+    private HtmlTableBuilder builder;
+    private OutputStream nullStream;
+    private int nextDay;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        this.amounts = new DailyAmounts();
+        for (int day = FIRST_DAY; day < FIRST_DAY + this.days; day++) {
+            for (int merchantId = 1; merchantId <= this.merchants; merchantId++) {
+                this.amounts.add(day, merchantId, 1 + random.nextInt(5000000));
+            }
+        }
+        this.dayArray = this.amounts.days();
+        this.merchantIds = this.amounts.merchantIds();
+        this.merchantNames = new String[this.merchantIds.length];
+        this.columns = new int[this.merchantIds.length];
+        for (int i = 0; i < this.merchantIds.length; i++) {
+            this.merchantNames[i] = "Merchant " + this.merchantIds[i];
+            this.columns[i] = i;
+        }
+        this.header = new HtmlTableHeader(this.merchantNames);
+
+        // Built the same way as the page of PaymentForecastServlet
+        this.builder = new HtmlTableBuilder();
+        this.builder.addHeader("Date");
+        for (String name : this.merchantNames) {
+            this.builder.addHeader(HtmlTableHeader.escape(name));
+        }
+        for (int row = 0; row < this.dayArray.length; row++) {
+            int rowIndex = this.builder.addRow();
+            this.builder.addToRow(rowIndex, DateLabels.label(this.dayArray[row]));
+            for (int id : this.merchantIds) {
+                this.builder.addToRow(rowIndex, CurrencyUnit.GBP.htmlSymbol + Pence.toDecimal(this.amounts.get(this.dayArray[row], id), 2));
+            }
+        }
+
+        this.nullStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String prettyToString() {
+        int day = FIRST_DAY + this.nextDay;
+        this.nextDay = (this.nextDay + 1) % this.days;
+        return new SimpleDate(day).prettyToString();
+    }
+
+    @Benchmark
+    public String htmlTableBuilderToString() {
+        return this.builder.toString();
+    }
+
+    @Benchmark
+    public void htmlTableWriter() throws IOException {
+        HtmlTableWriter writer = new HtmlTableWriter(this.nullStream, ResponseWriter.DEFAULT_BUFFER_SIZE);
+        writer.writeTable(this.amounts, CurrencyUnit.GBP, this.dayArray, 0, this.dayArray.length, this.merchantIds, this.header, this.columns);
+        writer.flush();
+    }
+}
@@ -0,0 +1,125 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to the BGZF format, a gzip file made of independent members that each hold at most 64 KiB, so that
+ * {@link CompressedCsvFile} can decompress the members on several threads at once. The output is the same format as
+ * written by {@code bgzip}, and can be decompressed by any gzip tool.
+ */
+class BgzfOutputStream extends FilterOutputStream {
+    // Same as bgzip, leaves room for the compressed block to be a little larger than its input
+    private static final int MAX_BLOCK_INPUT = 0xFF00;
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+    private static final int HEADER_LENGTH = 18;
+    private static final int TRAILER_LENGTH = 8;
+
+    private final byte[] input = new byte[MAX_BLOCK_INPUT];
+    private final byte[] block = new byte[MAX_BLOCK_SIZE];
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private int inputLength;
+    private boolean closed;
+
+    BgzfOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.inputLength == MAX_BLOCK_INPUT) {
+            this.writeBlock();
+        }
+        this.input[this.inputLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.inputLength == MAX_BLOCK_INPUT) {
+                this.writeBlock();
+            }
+            int count = Math.min(len, MAX_BLOCK_INPUT - this.inputLength);
+            System.arraycopy(b, off, this.input, this.inputLength, count);
+            this.inputLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Compresses and writes the buffered input as a block, even if it is empty.
+     */
+    private void writeBlock() throws IOException {
+        this.deflater.reset();
+        this.deflater.setInput(this.input, 0, this.inputLength);
+        this.deflater.finish();
+        int compressedLength = this.deflater.deflate(this.block, HEADER_LENGTH, MAX_BLOCK_SIZE - HEADER_LENGTH - TRAILER_LENGTH);
+        if (!this.deflater.finished()) {
+            throw new IOException("Compressed block is larger than " + MAX_BLOCK_SIZE + " bytes");
+        }
+        int blockSize = HEADER_LENGTH + compressedLength + TRAILER_LENGTH;
+        byte[] block = this.block;
+        // ID1, ID2, CM, FLG.FEXTRA, MTIME, XFL, OS unknown
+        block[0] = 0x1F;
+        block[1] = (byte) 0x8B;
+        block[2] = 8;
+        block[3] = 4;
+        block[4] = block[5] = block[6] = block[7] = block[8] = 0;
+        block[9] = (byte) 0xFF;
+        // XLEN, then the BC subfield holding BSIZE, the block size minus 1
+        block[10] = 6;
+        block[11] = 0;
+        block[12] = 'B';
+        block[13] = 'C';
+        block[14] = 2;
+        block[15] = 0;
+        block[16] = (byte) (blockSize - 1);
+        block[17] = (byte) ((blockSize - 1) >>> 8);
+        this.crc.reset();
+        this.crc.update(this.input, 0, this.inputLength);
+        writeLittleEndianInt(block, blockSize - TRAILER_LENGTH, (int) this.crc.getValue());
+        writeLittleEndianInt(block, blockSize - 4, this.inputLength);
+        this.out.write(block, 0, blockSize);
+        this.inputLength = 0;
+    }
+
+    private static void writeLittleEndianInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Only writes complete blocks, as flushing a partial block would make blocks smaller than they need to be.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Writes the remaining input, followed by the empty block that marks the end of a BGZF file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.inputLength > 0) {
+                this.writeBlock();
+            }
+            this.writeBlock();
+        } finally {
+            this.deflater.end();
+            this.out.close();
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A gzip compressed .csv.gz file, decompressed by its own thread into chunks that end on line boundaries, which are
+ * handed to the parser through a bounded queue so that decompressing and parsing overlap.
+ * <p>
+ * Files in the BGZF format, where the data is compressed in independent blocks of at most 64 KiB that are each their
+ * own gzip member, are split on block boundaries and the blocks decompressed by several threads at once. Any gzip tool
+ * can still decompress them, {@code bgzip} creates them. Other gzip files can only be decompressed by a single thread.
+ * <p>
+ * Compressed files can only be read from their start, so lines appended to them can't be parsed on their own.
+ */
+class CompressedCsvFile implements CsvChunkSource {
+    // Number of chunks decompressed ahead of the parser, on top of any the parser is already working on
+    private static final int QUEUE_CAPACITY = 4;
+    // Room left after each decompressed chunk, so that the partial line at its end can usually be finished without
+    // copying the whole chunk
+    private static final int LINE_SLACK = 64 * 1024;
+    private static final int BGZF_HEADER_LENGTH = 18;
+    // CRC32 and ISIZE
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    // Queued once every chunk has been queued, or decompression has failed
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Path path;
+    private final int chunkSize;
+    private final int numThreads;
+    private final ArrayBlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread decompressor;
+    // Set by the decompressor before it queues END
+    private volatile IOException failure;
+    private volatile long filePosition;
+    // Returned by the next call to nextChunk, set when a line has been skipped from the start of it
+    private ByteBuffer next;
+    private boolean ended;
+    private long position;
+
+    /**
+     * @param path       A gzip compressed file.
+     * @param chunkSize  Size in bytes of the decompressed data that chunks are split at.
+     * @param numThreads Number of threads that the blocks of a BGZF file are decompressed with.
+     * @throws IOException If the file doesn't exist.
+     */
+    CompressedCsvFile(Path path, int chunkSize, int numThreads) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            // Reported now rather than by the first read, as with a MappedCsvFile
+            throw new NoSuchFileException(path.toString());
+        }
+        this.path = path;
+        this.chunkSize = chunkSize;
+        this.numThreads = Math.max(1, numThreads);
+        this.decompressor = new Thread(this::decompress, "Decompressor of " + path.getFileName());
+        this.decompressor.setDaemon(true);
+        this.decompressor.start();
+    }
+
+    /**
+     * @param path
+     * @return true if the file name ends with ".gz".
+     */
+    static boolean isCompressed(Path path) {
+        Path fileName = path.getFileName();
+        return fileName != null && fileName.toString().endsWith(".gz");
+    }
+
+    @Override
+    public boolean skipLine() throws IOException {
+        ByteBuffer chunk = this.nextChunk(false);
+        if (chunk == null) {
+            return false;
+        }
+        int start = chunk.position();
+        int limit = chunk.limit();
+        int lineEnd = limit;
+        for (int i = start; i < limit; i++) {
+            byte b = chunk.get(i);
+            if (b == '\n') {
+                lineEnd = i + 1;
+                break;
+            }
+            if (b == '\r') {
+                // Chunks only end after a '\n' or at the end of the file, so "\r\n" is never split across two chunks
+                lineEnd = i + 1 < limit && chunk.get(i + 1) == '\n' ? i + 2 : i + 1;
+                break;
+            }
+        }
+        chunk.position(lineEnd);
+        // The rest of the chunk is counted again when nextChunk returns it
+        this.position -= chunk.remaining();
+        if (chunk.hasRemaining()) {
+            this.next = chunk;
+        }
+        return true;
+    }
+
+    /**
+     * @param completeLinesOnly Ignored, as a compressed file that is still being written can't be decompressed anyway.
+     * @return the next chunk or null if there are no more lines.
+     * @throws IOException If decompression failed, including if the file is truncated.
+     */
+    @Override
+    public ByteBuffer nextChunk(boolean completeLinesOnly) throws IOException {
+        ByteBuffer chunk = this.next;
+        if (chunk != null) {
+            this.next = null;
+            this.position += chunk.remaining();
+            return chunk;
+        }
+        if (this.ended) {
+            return null;
+        }
+        try {
+            chunk = this.chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + this.path + " to be decompressed");
+        }
+        if (chunk == END) {
+            this.ended = true;
+            IOException failure = this.failure;
+            if (failure != null) {
+                throw new IOException("Failed to decompress " + this.path + ": " + failure.getMessage(), failure);
+            }
+            return null;
+        }
+        this.position += chunk.remaining();
+        return chunk;
+    }
+
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    /**
+     * @return offset in the compressed file up to which it has been decompressed, which can be ahead of the chunks
+     * returned so far.
+     */
+    @Override
+    public long filePosition() {
+        return this.filePosition;
+    }
+
+    @Override
+    public void seek(long position) {
+        throw new UnsupportedOperationException("Compressed data files can only be read from the start");
+    }
+
+    @Override
+    public void close() {
+        this.decompressor.interrupt();
+        // Unblocks the decompressor if it is waiting for room in the queue
+        this.chunks.clear();
+    }
+
+    /**
+     * Run by the decompressor thread.
+     */
+    private void decompress() {
+        LineAligner aligner = new LineAligner();
+        try (InputStream in = new BufferedInputStream(new CountingInputStream(Files.newInputStream(this.path)), 64 * 1024)) {
+            in.mark(BGZF_HEADER_LENGTH);
+            byte[] header = new byte[BGZF_HEADER_LENGTH];
+            int headerLength = readFully(in, header, 0, header.length);
+            in.reset();
+            if (headerLength == BGZF_HEADER_LENGTH && isBgzfHeader(header)) {
+                this.decompressBlocks(new DataInputStream(in), aligner);
+            } else {
+                this.decompressStream(in, aligner);
+            }
+            aligner.finish();
+        } catch (InterruptedException | InterruptedIOException e) {
+            // Closed before every chunk was read, so nothing is waiting for END
+            return;
+        } catch (IOException e) {
+            this.failure = e;
+        } catch (RuntimeException e) {
+            this.failure = new IOException(e);
+        }
+        try {
+            this.chunks.put(END);
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void decompressStream(InputStream in, LineAligner aligner) throws IOException, InterruptedException {
+        try (GZIPInputStream gzip = new GZIPInputStream(in, 64 * 1024)) {
+            while (true) {
+                byte[] decompressed = new byte[this.chunkSize + LINE_SLACK];
+                int length = readFully(gzip, decompressed, 0, this.chunkSize);
+                if (length == 0) {
+                    return;
+                }
+                aligner.add(decompressed, length);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the compressed blocks of a BGZF file in groups of roughly chunkSize decompressed bytes, each group is then
+     * decompressed by a worker and the groups are aligned to lines in order.
+     */
+    private void decompressBlocks(DataInputStream in, LineAligner aligner) throws IOException, InterruptedException {
+        ExecutorService executor = this.numThreads > 1 ? Executors.newFixedThreadPool(this.numThreads) : null;
+        try {
+            // Limits the number of groups held at once while still keeping all the workers busy
+            int maxGroupsInFlight = this.numThreads * 2;
+            ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            ArrayList<byte[]> group = new ArrayList<>();
+            long groupSize = 0;
+            byte[] block;
+            while ((block = readBlock(in)) != null) {
+                group.add(block);
+                groupSize += inflatedSize(block);
+                if (groupSize >= this.chunkSize) {
+                    inFlight.add(submit(executor, group, groupSize));
+                    group = new ArrayList<>();
+                    groupSize = 0;
+                    if (inFlight.size() >= maxGroupsInFlight) {
+                        addGroup(aligner, inFlight.poll());
+                    }
+                }
+            }
+            if (!group.isEmpty()) {
+                inFlight.add(submit(executor, group, groupSize));
+            }
+            while (!inFlight.isEmpty()) {
+                addGroup(aligner, inFlight.poll());
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static Future<byte[]> submit(ExecutorService executor, ArrayList<byte[]> group, long groupSize) throws IOException {
+        if (groupSize > Integer.MAX_VALUE - LINE_SLACK) {
+            throw new IOException("Too much data in one group of blocks");
+        }
+        if (executor == null) {
+            return CompletableFuture.completedFuture(inflate(group, (int) groupSize));
+        }
+        return executor.submit(() -> inflate(group, (int) groupSize));
+    }
+
+    private static void addGroup(LineAligner aligner, Future<byte[]> future) throws IOException, InterruptedException {
+        byte[] inflated;
+        try {
+            inflated = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+        aligner.add(inflated, inflated.length - LINE_SLACK);
+    }
+
+    /**
+     * @param header First bytes of a gzip member.
+     * @return true if the member has the single "BC" extra subfield of a BGZF block, which holds the size of the block.
+     */
+    static boolean isBgzfHeader(byte[] header) {
+        return (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B && header[2] == 8
+                // FEXTRA set
+                && (header[3] & 4) != 0
+                // XLEN of 6, SI1 'B', SI2 'C', SLEN of 2
+                && header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    /**
+     * @param in
+     * @return the whole of the next block, or null if there are no more.
+     * @throws IOException If the file isn't made of only BGZF blocks.
+     */
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        byte[] header = new byte[BGZF_HEADER_LENGTH];
+        int headerLength = readFully(in, header, 0, header.length);
+        if (headerLength == 0) {
+            return null;
+        }
+        if (headerLength < BGZF_HEADER_LENGTH || !isBgzfHeader(header)) {
+            throw new IOException("File isn't made of only BGZF blocks");
+        }
+        // BSIZE is the total size of the block minus 1
+        int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+        if (blockSize < BGZF_HEADER_LENGTH + GZIP_TRAILER_LENGTH) {
+            throw new IOException("Invalid BGZF block size " + blockSize);
+        }
+        byte[] block = Arrays.copyOf(header, blockSize);
+        in.readFully(block, BGZF_HEADER_LENGTH, blockSize - BGZF_HEADER_LENGTH);
+        return block;
+    }
+
+    private static int inflatedSize(byte[] block) {
+        return littleEndianInt(block, block.length - 4);
+    }
+
+    /**
+     * Run by the workers.
+     *
+     * @param blocks    Consecutive whole BGZF blocks.
+     * @param totalSize Total decompressed size of the blocks.
+     * @return the decompressed blocks, followed by LINE_SLACK bytes of room.
+     * @throws IOException If any block is corrupt.
+     */
+    private static byte[] inflate(ArrayList<byte[]> blocks, int totalSize) throws IOException {
+        byte[] inflated = new byte[totalSize + LINE_SLACK];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int offset = 0;
+            for (byte[] block : blocks) {
+                int size = inflatedSize(block);
+                inflater.reset();
+                inflater.setInput(block, BGZF_HEADER_LENGTH, block.length - BGZF_HEADER_LENGTH - GZIP_TRAILER_LENGTH);
+                int inflatedLength = 0;
+                while (inflatedLength < size && !inflater.finished()) {
+                    int count = inflater.inflate(inflated, offset + inflatedLength, size - inflatedLength);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflatedLength += count;
+                }
+                crc.reset();
+                crc.update(inflated, offset, inflatedLength);
+                if (inflatedLength != size || (int) crc.getValue() != littleEndianInt(block, block.length - GZIP_TRAILER_LENGTH)) {
+                    throw new IOException("Corrupt BGZF block");
+                }
+                offset += size;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block", e);
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+
+    private static int littleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * @return number of bytes read, less than length only at the end of the stream.
+     */
+    private static int readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, offset + read, length - read);
+            if (count == -1) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Joins decompressed data that is split at arbitrary points into chunks that each end after a '\n', and queues them.
+     * <p>
+     * Only the partial line at the end of each piece is copied, into the room left at the end of the piece before it,
+     * except when a line doesn't fit in that room or a piece doesn't contain a '\n' at all.
+     */
+    private class LineAligner {
+        // Piece whose lines haven't been queued yet, from start to end, its last line is missing the rest of its bytes
+        private byte[] pending;
+        private int start;
+        private int end;
+
+        /**
+         * @param piece  Next decompressed bytes, may have room after length that is used to finish its last line.
+         * @param length
+         */
+        void add(byte[] piece, int length) throws InterruptedException {
+            if (this.pending == null) {
+                this.pending = piece;
+                this.start = 0;
+                this.end = length;
+                return;
+            }
+            int firstLineEnd = length;
+            for (int i = 0; i < length; i++) {
+                if (piece[i] == '\n') {
+                    firstLineEnd = i + 1;
+                    break;
+                }
+            }
+            if (this.end + firstLineEnd > this.pending.length) {
+                this.pending = Arrays.copyOf(this.pending, this.end + firstLineEnd + LINE_SLACK);
+            }
+            System.arraycopy(piece, 0, this.pending, this.end, firstLineEnd);
+            this.end += firstLineEnd;
+            if (firstLineEnd == length) {
+                // All of the piece is part of the pending line
+                return;
+            }
+            this.queue();
+            this.pending = piece;
+            this.start = firstLineEnd;
+            this.end = length;
+        }
+
+        void finish() throws InterruptedException {
+            if (this.pending != null) {
+                this.queue();
+                this.pending = null;
+            }
+        }
+
+        private void queue() throws InterruptedException {
+            if (this.end > this.start) {
+                CompressedCsvFile.this.chunks.put(ByteBuffer.wrap(this.pending, this.start, this.end - this.start));
+            }
+        }
+    }
+
+    /**
+     * Tracks how much of the compressed file has been read.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                CompressedCsvFile.this.filePosition++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                CompressedCsvFile.this.filePosition += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            CompressedCsvFile.this.filePosition += skipped;
+            return skipped;
+        }
+    }
+}
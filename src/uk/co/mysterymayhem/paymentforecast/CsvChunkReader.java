@@ -0,0 +1,217 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a chunk of a .csv file and splits each line into its comma separated fields.
+ * <p>
+ * Bytes are bulk copied from the chunk into a reused window and each field is an offset/length view into that window,
+ * so no Strings are created unless a field is explicitly asked for as one. Lines may end in "\n", "\r\n" or "\r", as
+ * with {@link java.io.BufferedReader#readLine()}, and fields are split in the same way as {@code line.split(",")},
+ * meaning that trailing empty fields are discarded.
+ * <p>
+ * Assumes that the charset of the file encodes '\n', '\r' and ',' as single bytes that don't appear within the encoding
+ * of any other character, as is the case with ASCII, ISO-8859-1 and UTF-8.
+ */
+class CsvChunkReader {
+    // Same charset as would be used by a FileReader
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int INITIAL_WINDOW_SIZE = 64 * 1024;
+    private static final int INITIAL_MAX_FIELDS = 16;
+
+    private final ByteBuffer chunk;
+    // Bytes from the chunk that are currently being read, grown if a line is larger than the window
+    private byte[] window = new byte[INITIAL_WINDOW_SIZE];
+    // Number of bytes in the window that have been read from the chunk
+    private int windowLimit;
+    // Index in the window of the first byte of the next line
+    private int position;
+    private int lineStart;
+    private int lineEnd;
+    private int[] fieldStarts = new int[INITIAL_MAX_FIELDS];
+    private int[] fieldEnds = new int[INITIAL_MAX_FIELDS];
+    private int fieldCount;
+    private int linesRead;
+
+    /**
+     * @param chunk Bytes to read lines from, read from its current position to its limit. The buffer itself is not
+     *              modified.
+     */
+    CsvChunkReader(ByteBuffer chunk) {
+        this.chunk = chunk.duplicate();
+    }
+
+    /**
+     * Advance to the next line and split it into fields.
+     *
+     * @return false if there are no more lines.
+     */
+    boolean nextLine() {
+        int scan = this.position;
+        while (true) {
+            while (scan < this.windowLimit) {
+                byte b = this.window[scan];
+                if (b == '\n') {
+                    return this.setLine(scan, scan + 1);
+                }
+                if (b == '\r') {
+                    if (scan + 1 < this.windowLimit) {
+                        return this.setLine(scan, this.window[scan + 1] == '\n' ? scan + 2 : scan + 1);
+                    }
+                    if (!this.chunk.hasRemaining()) {
+                        return this.setLine(scan, scan + 1);
+                    }
+                    // Need the next byte to find out if this is "\r\n"
+                    break;
+                }
+                scan++;
+            }
+            int discarded = this.position;
+            if (!this.fill()) {
+                if (this.position == this.windowLimit) {
+                    return false;
+                }
+                // Last line of the chunk has no line terminator
+                return this.setLine(this.windowLimit, this.windowLimit);
+            }
+            scan -= discarded;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the window, growing it if it is full, and then reads as many bytes from
+     * the chunk as will fit.
+     *
+     * @return false if the chunk has no more bytes.
+     */
+    private boolean fill() {
+        if (!this.chunk.hasRemaining()) {
+            return false;
+        }
+        int unread = this.windowLimit - this.position;
+        if (this.position == 0 && this.windowLimit == this.window.length) {
+            this.window = Arrays.copyOf(this.window, this.window.length * 2);
+        } else {
+            System.arraycopy(this.window, this.position, this.window, 0, unread);
+        }
+        this.position = 0;
+        this.windowLimit = unread;
+        int toRead = Math.min(this.chunk.remaining(), this.window.length - unread);
+        this.chunk.get(this.window, unread, toRead);
+        this.windowLimit += toRead;
+        return true;
+    }
+
+    private boolean setLine(int lineEnd, int nextLineStart) {
+        this.lineStart = this.position;
+        this.lineEnd = lineEnd;
+        this.position = nextLineStart;
+        this.linesRead++;
+        this.splitFields();
+        return true;
+    }
+
+    private void splitFields() {
+        int count = 0;
+        int fieldStart = this.lineStart;
+        for (int i = this.lineStart; i < this.lineEnd; i++) {
+            if (this.window[i] == ',') {
+                this.addField(count++, fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        this.addField(count++, fieldStart, this.lineEnd);
+        // String.split(...) only discards trailing empty strings if at least one separator was found
+        if (count > 1) {
+            while (count > 0 && this.fieldStarts[count - 1] == this.fieldEnds[count - 1]) {
+                count--;
+            }
+        }
+        this.fieldCount = count;
+    }
+
+    private void addField(int index, int start, int end) {
+        if (index == this.fieldStarts.length) {
+            this.fieldStarts = Arrays.copyOf(this.fieldStarts, index * 2);
+            this.fieldEnds = Arrays.copyOf(this.fieldEnds, index * 2);
+        }
+        this.fieldStarts[index] = start;
+        this.fieldEnds[index] = end;
+    }
+
+    /**
+     * Returns the array that fields are views into. Only valid until the next call to {@link #nextLine()}.
+     *
+     * @return
+     */
+    byte[] bytes() {
+        return this.window;
+    }
+
+    int fieldCount() {
+        return this.fieldCount;
+    }
+
+    int fieldStart(int field) {
+        return this.fieldStarts[field];
+    }
+
+    int fieldEnd(int field) {
+        return this.fieldEnds[field];
+    }
+
+    int fieldLength(int field) {
+        return this.fieldEnds[field] - this.fieldStarts[field];
+    }
+
+    String fieldString(int field) {
+        return new String(this.window, this.fieldStarts[field], this.fieldLength(field), CHARSET);
+    }
+
+    /**
+     * Returns the current line without its line terminator.
+     *
+     * @return
+     */
+    String lineString() {
+        return new String(this.window, this.lineStart, this.lineEnd - this.lineStart, CHARSET);
+    }
+
+    /**
+     * Copies a field without decoding it, so that it can be decoded later by {@link #decode(byte[])}.
+     *
+     * @param field
+     * @return
+     */
+    byte[] fieldBytes(int field) {
+        return Arrays.copyOfRange(this.window, this.fieldStarts[field], this.fieldEnds[field]);
+    }
+
+    /**
+     * Copies the current line without its line terminator and without decoding it.
+     *
+     * @return
+     */
+    byte[] lineBytes() {
+        return Arrays.copyOfRange(this.window, this.lineStart, this.lineEnd);
+    }
+
+    /**
+     * @param bytes Copied by {@link #fieldBytes(int)} or {@link #lineBytes()}.
+     * @return the bytes decoded in the same way as {@link #fieldString(int)}.
+     */
+    static String decode(byte[] bytes) {
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * Returns the number of lines read so far, including the current line.
+     *
+     * @return
+     */
+    int linesRead() {
+        return this.linesRead;
+    }
+}
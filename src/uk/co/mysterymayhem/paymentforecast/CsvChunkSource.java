@@ -0,0 +1,63 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A data file read as a sequence of chunks that each end on a line boundary, so that each chunk can be read by its own
+ * {@link CsvChunkReader}, possibly on separate threads.
+ */
+interface CsvChunkSource extends Closeable {
+    /**
+     * @param path       A .csv file, or a gzip compressed .csv.gz file.
+     * @param chunkSize  Size in bytes that chunks are split at, chunks are larger when a line doesn't fit in one.
+     * @param numThreads Number of threads that a compressed file made of independent blocks is decompressed with.
+     * @return the chunks of the file.
+     * @throws IOException If the file can't be opened.
+     */
+    static CsvChunkSource open(Path path, int chunkSize, int numThreads) throws IOException {
+        if (CompressedCsvFile.isCompressed(path)) {
+            return new CompressedCsvFile(path, chunkSize, numThreads);
+        }
+        return new MappedCsvFile(path, chunkSize);
+    }
+
+    /**
+     * Skips past the first line terminator after the current position.
+     *
+     * @return false if there was no line to skip.
+     * @throws IOException
+     */
+    boolean skipLine() throws IOException;
+
+    /**
+     * Reads the next chunk of the file.
+     *
+     * @param completeLinesOnly If true, any bytes after the last '\n' of the file are left out. Used when the file is
+     *                          still being appended to, as they may be a partially written line.
+     * @return the next chunk or null if there are no more lines.
+     * @throws IOException
+     */
+    ByteBuffer nextChunk(boolean completeLinesOnly) throws IOException;
+
+    /**
+     * @return number of bytes of lines read so far, including skipped lines.
+     */
+    long position();
+
+    /**
+     * @return offset in the file up to which it has been read, the same as {@link #position()} unless the file is
+     * compressed.
+     */
+    long filePosition();
+
+    /**
+     * Continue reading from an offset in the file, which should be the start of a line.
+     *
+     * @param position
+     * @throws UnsupportedOperationException If the file is compressed, as it can then only be read from its start.
+     */
+    void seek(long position);
+}
@@ -0,0 +1,69 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the forecast as .csv straight to an {@link OutputStream}, one day at a time, with a header line of "Date" and
+ * "Currency" followed by the merchant names, then a line for each day, e.g.
+ * <pre>
+ * Date,Currency,Merchant
+ * 2017-04-24,GBP,12.05
+ * </pre>
+ * Amounts are in the major unit of their currency with exactly as many decimal places as its minor unit has, e.g.
+ * pounds with two decimal places. Lines end with "\r\n" as in RFC 4180.
+ */
+class CsvForecastWriter extends ResponseWriter {
+
+    CsvForecastWriter(OutputStream out, int bufferSize) {
+        super(out, bufferSize);
+    }
+
+    /**
+     * @param amounts       Amounts of each day and merchant, days and merchants without any payments are written as 0.
+     * @param currency      Currency of the amounts.
+     * @param days          Epoch days of each row.
+     * @param firstRow      Index of the first day to write.
+     * @param endRow        Index after the last day to write.
+     * @param merchantIds   Merchant ids of each column.
+     * @param merchantNames Headers of each column, in the same order as merchantIds.
+     * @param columns       Indices of the merchants to write.
+     * @throws IOException
+     */
+    void writeForecast(DailyAmounts amounts, CurrencyUnit currency, int[] days, int firstRow, int endRow,
+                       int[] merchantIds, String[] merchantNames, int[] columns) throws IOException {
+        this.write("Date,Currency");
+        for (int column : columns) {
+            this.write(",");
+            this.write(quote(merchantNames[column]));
+        }
+        this.write("\r\n");
+        this.flush();
+        String currencyField = "," + currency.code;
+        for (int row = firstRow; row < endRow; row++) {
+            int day = days[row];
+            this.writeIsoDate(day);
+            this.write(currencyField);
+            for (int column : columns) {
+                this.write(",");
+                this.writeAmount(amounts.get(day, merchantIds[column]), currency.minorDigits);
+            }
+            this.write("\r\n");
+        }
+    }
+
+    /**
+     * @param field
+     * @return field, quoted if it contains a comma, quote or line break.
+     */
+    // Visible for testing
+    static String quote(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return '"' + field.replace("\"", "\"\"") + '"';
+            }
+        }
+        return field;
+    }
+}
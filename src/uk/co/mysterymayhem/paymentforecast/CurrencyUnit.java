@@ -0,0 +1,141 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.util.Currency;
+import java.util.Locale;
+
+/**
+ * A currency that payments are accepted in, along with the number of digits of its minor unit, e.g. 2 for GBP as
+ * there are 100 pence to the pound and 0 for JPY, which has no minor unit.
+ * <p>
+ * Amounts are parsed into, summed and rendered from a whole number of the minor unit of their currency. The amounts of
+ * each currency are summed separately from those of any other currency.
+ */
+final class CurrencyUnit {
+    static final CurrencyUnit GBP = new CurrencyUnit("GBP", 2);
+    // Amounts with more digits in their minor unit could overflow the fast path of FieldParser.parseMinorUnits
+    static final int MAX_MINOR_DIGITS = 3;
+    // Never equal to the packed code of any currency
+    static final int NO_CODE = -1;
+
+    final String code;
+    final int minorDigits;
+    // Written before each amount in html
+    final String htmlSymbol;
+    // The ASCII characters of the code packed into an int, so that it can be compared against the bytes of a record
+    final int packedCode;
+
+    /**
+     * @param code        Three letter code of the currency, e.g. GBP.
+     * @param minorDigits Number of digits after the decimal point of amounts, from 0 to {@link #MAX_MINOR_DIGITS}.
+     * @throws IllegalArgumentException If either is invalid.
+     */
+    CurrencyUnit(String code, int minorDigits) {
+        if (code.length() != 3 || !code.chars().allMatch(c -> c >= 'A' && c <= 'Z')) {
+            throw new IllegalArgumentException("Invalid currency code \"" + code + "\", expected three letters A-Z");
+        }
+        if (minorDigits < 0 || minorDigits > MAX_MINOR_DIGITS) {
+            throw new IllegalArgumentException("Invalid number of minor digits " + minorDigits + " for currency " + code
+                    + ", expected 0 to " + MAX_MINOR_DIGITS);
+        }
+        this.code = code;
+        this.minorDigits = minorDigits;
+        this.htmlSymbol = htmlSymbol(code);
+        this.packedCode = (code.charAt(0) << 16) | (code.charAt(1) << 8) | code.charAt(2);
+    }
+
+    /**
+     * Parses a comma separated list of currencies, each either a code such as "EUR", which uses the number of minor
+     * digits of the ISO 4217 currency, or a code and number of minor digits such as "JPY:0".
+     *
+     * @param list
+     * @return the currencies in the same order as the list.
+     * @throws IllegalArgumentException If the list is empty, contains the same currency twice or any currency is
+     *                                  invalid.
+     */
+    static CurrencyUnit[] parseList(String list) {
+        String[] entries = list.split(",");
+        CurrencyUnit[] currencies = new CurrencyUnit[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int colonIndex = entry.indexOf(':');
+            String code = (colonIndex == -1 ? entry : entry.substring(0, colonIndex).trim()).toUpperCase(Locale.ROOT);
+            int minorDigits;
+            if (colonIndex == -1) {
+                minorDigits = isoMinorDigits(code);
+            } else {
+                try {
+                    minorDigits = Integer.parseInt(entry.substring(colonIndex + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number of minor digits in \"" + entry + "\"");
+                }
+            }
+            currencies[i] = new CurrencyUnit(code, minorDigits);
+            for (int j = 0; j < i; j++) {
+                if (currencies[j].code.equals(code)) {
+                    throw new IllegalArgumentException("Currency " + code + " is listed more than once");
+                }
+            }
+        }
+        return currencies;
+    }
+
+    private static int isoMinorDigits(String code) {
+        int minorDigits;
+        try {
+            minorDigits = Currency.getInstance(code).getDefaultFractionDigits();
+        } catch (IllegalArgumentException e) {
+            minorDigits = -1;
+        }
+        if (minorDigits == -1) {
+            throw new IllegalArgumentException("Unknown currency \"" + code + "\", its number of minor digits must be given, e.g. "
+                    + code + ":2");
+        }
+        return minorDigits;
+    }
+
+    private static String htmlSymbol(String code) {
+        switch (code) {
+            case "GBP":
+                return "&pound;";
+            case "EUR":
+                return "&euro;";
+            case "USD":
+                return "$";
+            case "JPY":
+                return "&yen;";
+            default:
+                return code + " ";
+        }
+    }
+
+    /**
+     * @param bytes
+     * @param start Index of the first of three bytes.
+     * @return the bytes packed into an int in the same way as {@link #packedCode}.
+     */
+    static int pack(byte[] bytes, int start) {
+        return ((bytes[start] & 0xFF) << 16) | ((bytes[start + 1] & 0xFF) << 8) | (bytes[start + 2] & 0xFF);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof CurrencyUnit) {
+            CurrencyUnit other = (CurrencyUnit) obj;
+            return this.code.equals(other.code) && this.minorDigits == other.minorDigits;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.code.hashCode() + this.minorDigits;
+    }
+
+    @Override
+    public String toString() {
+        return this.code + ":" + this.minorDigits;
+    }
+}
@@ -0,0 +1,439 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.util.Arrays;
+
+/**
+ * Sums of payment amounts in pence, keyed by day (days since epoch) and merchant id.
+ * <p>
+ * Amounts are stored in primitive arrays rather than as boxed keys and BigDecimals, either in an open addressing hash
+ * table keyed by both day and merchant id, or, when the days and merchant ids cover a compact enough range, in a dense
+ * grid indexed directly by day and merchant id. A grid cell takes a quarter of the memory of a hash table entry, so the
+ * grid is used whenever at least a quarter of its cells would be used.
+ * <p>
+ * All amounts added must be positive, so a sum of zero means that there were no payments for that day and merchant.
+ * Not thread-safe.
+ */
+class DailyAmounts {
+    // A grid is allowed to grow to this many cells no matter how few are used
+    private static final long MIN_DENSE_CELLS = 1 << 16;
+    // Grids are never larger than this (256MB of longs)
+    private static final long MAX_DENSE_CELLS = 1 << 25;
+    // A grid must have at least 1 in this many cells used
+    private static final int MAX_CELLS_PER_USED_CELL = 4;
+    private static final int INITIAL_HASH_CAPACITY = 1 << 10;
+
+    // Number of day and merchant id pairs with a non-zero amount
+    private int size;
+    // Largest sum of any day and merchant id pair
+    private long maxSum;
+
+    // Dense mode, cells[(day - firstDay) * merchantSpan + (merchantId - firstMerchantId)]. Null in sparse mode
+    private long[] cells;
+    private int firstDay;
+    private int daySpan;
+    private int firstMerchantId;
+    private int merchantSpan;
+
+    // Sparse mode, keys[i] is a day and merchant id packed into a long, values[i] is 0 for unused slots
+    private long[] keys = new long[INITIAL_HASH_CAPACITY];
+    private long[] values = new long[INITIAL_HASH_CAPACITY];
+    // Range of the days and merchant ids in the hash table
+    private int minDay = Integer.MAX_VALUE;
+    private int maxDay = Integer.MIN_VALUE;
+    private int minMerchantId = Integer.MAX_VALUE;
+    private int maxMerchantId = Integer.MIN_VALUE;
+
+    /**
+     * Add an amount to the sum for a day and merchant.
+     *
+     * @param day        Days since epoch.
+     * @param merchantId
+     * @param pence      Must be positive.
+     * @throws ArithmeticException If the sum would be too large for a long, in which case nothing is added.
+     */
+    void add(int day, int merchantId, long pence) {
+        if (this.cells != null) {
+            long dayOffset = (long) day - this.firstDay;
+            long merchantOffset = (long) merchantId - this.firstMerchantId;
+            if (dayOffset < 0 || dayOffset >= this.daySpan || merchantOffset < 0 || merchantOffset >= this.merchantSpan) {
+                this.growToInclude(day, merchantId);
+                // The grid may have been converted to a hash table
+                this.add(day, merchantId, pence);
+                return;
+            }
+            int index = (int) (dayOffset * this.merchantSpan + merchantOffset);
+            long sum = Pence.add(this.cells[index], pence);
+            if (this.cells[index] == 0) {
+                this.size++;
+            }
+            this.cells[index] = sum;
+            this.maxSum = Math.max(this.maxSum, sum);
+        } else {
+            long key = key(day, merchantId);
+            int slot = this.findSlot(key);
+            if (this.values[slot] == 0) {
+                this.keys[slot] = key;
+                this.size++;
+                this.values[slot] = pence;
+                this.maxSum = Math.max(this.maxSum, pence);
+                this.minDay = Math.min(this.minDay, day);
+                this.maxDay = Math.max(this.maxDay, day);
+                this.minMerchantId = Math.min(this.minMerchantId, merchantId);
+                this.maxMerchantId = Math.max(this.maxMerchantId, merchantId);
+                if (this.size * 2 > this.keys.length) {
+                    // Good time to check if a grid would be smaller, as the table would otherwise double in size
+                    if (!this.convertToDenseIfSmaller()) {
+                        this.rehash(this.keys.length * 2);
+                    }
+                }
+            } else {
+                long sum = Pence.add(this.values[slot], pence);
+                this.values[slot] = sum;
+                this.maxSum = Math.max(this.maxSum, sum);
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the amounts for a day and merchant.
+     *
+     * @param day
+     * @param merchantId
+     * @return sum in pence, 0 if there were no payments.
+     */
+    long get(int day, int merchantId) {
+        if (this.cells != null) {
+            long dayOffset = (long) day - this.firstDay;
+            long merchantOffset = (long) merchantId - this.firstMerchantId;
+            if (dayOffset < 0 || dayOffset >= this.daySpan || merchantOffset < 0 || merchantOffset >= this.merchantSpan) {
+                return 0;
+            }
+            return this.cells[(int) (dayOffset * this.merchantSpan + merchantOffset)];
+        }
+        return this.values[this.findSlot(key(day, merchantId))];
+    }
+
+    /**
+     * Add all the sums of another instance to this one.
+     *
+     * @param other
+     * @throws ArithmeticException If any sum would be too large for a long, in which case only some of the sums may
+     *                             have been added. Can't happen if {@link #canAddAll(DailyAmounts)} is true.
+     */
+    void addAll(DailyAmounts other) {
+        other.forEach(this::add);
+    }
+
+    /**
+     * A quick check that no sum could overflow when adding another instance to this one.
+     *
+     * @param other
+     * @return true if even the largest sums of both instances could be added without overflowing.
+     */
+    boolean canAddAll(DailyAmounts other) {
+        return this.maxSum <= Long.MAX_VALUE - other.maxSum;
+    }
+
+    void clear() {
+        this.size = 0;
+        this.maxSum = 0;
+        this.cells = null;
+        this.firstDay = 0;
+        this.daySpan = 0;
+        this.firstMerchantId = 0;
+        this.merchantSpan = 0;
+        this.keys = new long[INITIAL_HASH_CAPACITY];
+        this.values = new long[INITIAL_HASH_CAPACITY];
+        this.minDay = Integer.MAX_VALUE;
+        this.maxDay = Integer.MIN_VALUE;
+        this.minMerchantId = Integer.MAX_VALUE;
+        this.maxMerchantId = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the number of day and merchant pairs that had payments.
+     *
+     * @return
+     */
+    int size() {
+        return this.size;
+    }
+
+    boolean isDense() {
+        return this.cells != null;
+    }
+
+    void forEach(AmountConsumer consumer) {
+        if (this.cells != null) {
+            for (int i = 0; i < this.cells.length; i++) {
+                long pence = this.cells[i];
+                if (pence != 0) {
+                    consumer.accept(this.firstDay + i / this.merchantSpan, this.firstMerchantId + i % this.merchantSpan, pence);
+                }
+            }
+        } else {
+            for (int i = 0; i < this.keys.length; i++) {
+                long pence = this.values[i];
+                if (pence != 0) {
+                    consumer.accept(dayOf(this.keys[i]), merchantIdOf(this.keys[i]), pence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns every day that had payments, in ascending order.
+     *
+     * @return
+     */
+    int[] days() {
+        if (this.cells != null) {
+            int[] days = new int[this.daySpan];
+            int count = 0;
+            for (int day = 0; day < this.daySpan; day++) {
+                int rowStart = day * this.merchantSpan;
+                for (int merchant = 0; merchant < this.merchantSpan; merchant++) {
+                    if (this.cells[rowStart + merchant] != 0) {
+                        days[count++] = this.firstDay + day;
+                        break;
+                    }
+                }
+            }
+            return Arrays.copyOf(days, count);
+        }
+        int[] days = new int[this.size];
+        int count = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.values[i] != 0) {
+                days[count++] = dayOf(this.keys[i]);
+            }
+        }
+        return sortedDistinct(days);
+    }
+
+    /**
+     * Returns every merchant id that had payments, in ascending order.
+     *
+     * @return
+     */
+    int[] merchantIds() {
+        if (this.cells != null) {
+            boolean[] used = new boolean[this.merchantSpan];
+            int count = 0;
+            for (int i = 0; i < this.cells.length; i++) {
+                int merchant = i % this.merchantSpan;
+                if (this.cells[i] != 0 && !used[merchant]) {
+                    used[merchant] = true;
+                    count++;
+                }
+            }
+            int[] merchantIds = new int[count];
+            count = 0;
+            for (int merchant = 0; merchant < this.merchantSpan; merchant++) {
+                if (used[merchant]) {
+                    merchantIds[count++] = this.firstMerchantId + merchant;
+                }
+            }
+            return merchantIds;
+        }
+        int[] merchantIds = new int[this.size];
+        int count = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.values[i] != 0) {
+                merchantIds[count++] = merchantIdOf(this.keys[i]);
+            }
+        }
+        return sortedDistinct(merchantIds);
+    }
+
+    private static int[] sortedDistinct(int[] array) {
+        Arrays.sort(array);
+        int count = 0;
+        for (int i = 0; i < array.length; i++) {
+            if (i == 0 || array[i] != array[i - 1]) {
+                array[count++] = array[i];
+            }
+        }
+        return Arrays.copyOf(array, count);
+    }
+
+    /**
+     * Grow the grid so that it includes a day and merchant, or if that would make the grid too large or too empty,
+     * move everything into a hash table instead.
+     *
+     * @param day
+     * @param merchantId
+     */
+    private void growToInclude(int day, int merchantId) {
+        long neededFirstDay = Math.min(day, this.firstDay);
+        long neededLastDay = Math.max(day, (long) this.firstDay + this.daySpan - 1);
+        long neededFirstMerchant = Math.min(merchantId, this.firstMerchantId);
+        long neededLastMerchant = Math.max(merchantId, (long) this.firstMerchantId + this.merchantSpan - 1);
+        long neededDaySpan = neededLastDay - neededFirstDay + 1;
+        long neededMerchantSpan = neededLastMerchant - neededFirstMerchant + 1;
+        if (!isDenseAllowed(neededDaySpan, neededMerchantSpan, this.size + 1)) {
+            this.convertToSparse();
+            return;
+        }
+
+        // Leave room to grow in the direction that was needed, so that a steady stream of new days or merchants doesn't
+        // regrow the grid every time
+        long newDaySpan = this.grownSpan(this.daySpan, neededDaySpan, neededMerchantSpan);
+        long newMerchantSpan = this.grownSpan(this.merchantSpan, neededMerchantSpan, newDaySpan);
+        long newFirstDay = day < neededLastDay ? neededLastDay - newDaySpan + 1 : neededFirstDay;
+        long newFirstMerchant = merchantId < neededLastMerchant ? neededLastMerchant - newMerchantSpan + 1 : neededFirstMerchant;
+        if (newFirstDay < Integer.MIN_VALUE || newFirstDay + newDaySpan - 1 > Integer.MAX_VALUE) {
+            newFirstDay = neededFirstDay;
+            newDaySpan = neededDaySpan;
+        }
+        if (newFirstMerchant < Integer.MIN_VALUE || newFirstMerchant + newMerchantSpan - 1 > Integer.MAX_VALUE) {
+            newFirstMerchant = neededFirstMerchant;
+            newMerchantSpan = neededMerchantSpan;
+        }
+
+        long[] newCells = new long[(int) (newDaySpan * newMerchantSpan)];
+        for (int oldDay = 0; oldDay < this.daySpan; oldDay++) {
+            System.arraycopy(this.cells, oldDay * this.merchantSpan,
+                    newCells, (int) ((this.firstDay + oldDay - newFirstDay) * newMerchantSpan + (this.firstMerchantId - newFirstMerchant)),
+                    this.merchantSpan);
+        }
+        this.cells = newCells;
+        this.firstDay = (int) newFirstDay;
+        this.daySpan = (int) newDaySpan;
+        this.firstMerchantId = (int) newFirstMerchant;
+        this.merchantSpan = (int) newMerchantSpan;
+    }
+
+    private static boolean isDenseAllowed(long daySpan, long merchantSpan, int size) {
+        if (daySpan > MAX_DENSE_CELLS || merchantSpan > MAX_DENSE_CELLS) {
+            return false;
+        }
+        long cells = daySpan * merchantSpan;
+        return cells <= MAX_DENSE_CELLS && (cells <= MIN_DENSE_CELLS || cells <= (long) size * MAX_CELLS_PER_USED_CELL);
+    }
+
+    /**
+     * Move everything from the hash table into a grid if the grid would be smaller.
+     *
+     * @return true if converted.
+     */
+    private boolean convertToDenseIfSmaller() {
+        long daySpan = (long) this.maxDay - this.minDay + 1;
+        long merchantSpan = (long) this.maxMerchantId - this.minMerchantId + 1;
+        if (!isDenseAllowed(daySpan, merchantSpan, this.size) || daySpan * merchantSpan > (long) this.size * MAX_CELLS_PER_USED_CELL) {
+            return false;
+        }
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        this.keys = null;
+        this.values = null;
+        this.cells = new long[(int) (daySpan * merchantSpan)];
+        this.firstDay = this.minDay;
+        this.daySpan = (int) daySpan;
+        this.firstMerchantId = this.minMerchantId;
+        this.merchantSpan = (int) merchantSpan;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                this.cells[(dayOf(oldKeys[i]) - this.firstDay) * this.merchantSpan + (merchantIdOf(oldKeys[i]) - this.firstMerchantId)] = oldValues[i];
+            }
+        }
+        return true;
+    }
+
+    private long grownSpan(int oldSpan, long neededSpan, long otherSpan) {
+        if (neededSpan == oldSpan) {
+            return oldSpan;
+        }
+        long doubled = Math.max(neededSpan, oldSpan * 2L);
+        return doubled * otherSpan <= MAX_DENSE_CELLS ? doubled : neededSpan;
+    }
+
+    private void convertToSparse() {
+        long[] oldCells = this.cells;
+        int oldFirstDay = this.firstDay;
+        int oldFirstMerchantId = this.firstMerchantId;
+        int oldMerchantSpan = this.merchantSpan;
+        int capacity = INITIAL_HASH_CAPACITY;
+        while (capacity < this.size * 4) {
+            capacity *= 2;
+        }
+        this.cells = null;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.size = 0;
+        this.minDay = Integer.MAX_VALUE;
+        this.maxDay = Integer.MIN_VALUE;
+        this.minMerchantId = Integer.MAX_VALUE;
+        this.maxMerchantId = Integer.MIN_VALUE;
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldCells[i] != 0) {
+                this.add(oldFirstDay + i / oldMerchantSpan, oldFirstMerchantId + i % oldMerchantSpan, oldCells[i]);
+            }
+        }
+    }
+
+    private int findSlot(long key) {
+        int mask = this.keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (this.values[slot] != 0 && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = this.findSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static long key(int day, int merchantId) {
+        return ((long) day << 32) | (merchantId & 0xFFFFFFFFL);
+    }
+
+    private static int dayOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int merchantIdOf(long key) {
+        return (int) key;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof DailyAmounts) {
+            DailyAmounts other = (DailyAmounts) obj;
+            if (this.size != other.size) {
+                return false;
+            }
+            boolean[] allEqual = {true};
+            this.forEach((day, merchantId, pence) -> allEqual[0] &= other.get(day, merchantId) == pence);
+            return allEqual[0];
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        // Independent of the order of iteration, which depends on the mode and history of the instance
+        int[] hashCode = {0};
+        this.forEach((day, merchantId, pence) -> hashCode[0] += (31 * day + merchantId) ^ Long.hashCode(pence));
+        return hashCode[0];
+    }
+
+    @FunctionalInterface
+    interface AmountConsumer {
+        void accept(int day, int merchantId, long pence);
+    }
+}
@@ -0,0 +1,94 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The data files that a forecast is parsed from, found from a location that is either a single file, a directory, whose
+ * .csv and .csv.gz files are all used, or a glob such as "exports/2017-*.csv", whose pattern only applies to file names.
+ * <p>
+ * Files are always listed in order of their names, so that the files of the same location are always parsed in the
+ * same order.
+ */
+class DataFileSet {
+    // Glob of the files used from a directory
+    private static final String DIRECTORY_GLOB = "*.{csv,csv.gz}";
+
+    final List<Path> files;
+    // Total size of the files
+    final long size;
+    // Latest modification time of any of the files, -1 if there are none
+    final long lastModified;
+
+    private DataFileSet(List<Path> files, long size, long lastModified) {
+        this.files = files;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param location
+     * @return true if the location is a directory or glob, rather than a single file.
+     */
+    static boolean isMultiFile(String location) {
+        return isGlob(location) || Files.isDirectory(Paths.get(location));
+    }
+
+    private static boolean isGlob(String location) {
+        for (int i = 0; i < location.length(); i++) {
+            switch (location.charAt(i)) {
+                case '*':
+                case '?':
+                case '[':
+                case '{':
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param location A single file, directory or glob.
+     * @return the files currently at the location.
+     * @throws IOException If the location is a single file that doesn't exist or any file can't be read.
+     */
+    static DataFileSet list(String location) throws IOException {
+        List<Path> files;
+        if (isGlob(location)) {
+            // Only the file name can be a pattern, as that's all that a directory stream matches against
+            Path pattern = Paths.get(location);
+            Path directory = pattern.getParent() == null ? Paths.get("") : pattern.getParent();
+            files = listDirectory(directory, pattern.getFileName().toString());
+        } else if (Files.isDirectory(Paths.get(location))) {
+            files = listDirectory(Paths.get(location), DIRECTORY_GLOB);
+        } else {
+            files = Collections.singletonList(Paths.get(location));
+        }
+        long size = 0;
+        long lastModified = -1;
+        for (Path file : files) {
+            size += Files.size(file);
+            lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+        }
+        return new DataFileSet(files, size, lastModified);
+    }
+
+    private static List<Path> listDirectory(Path directory, String glob) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+}
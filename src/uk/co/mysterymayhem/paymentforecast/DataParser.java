@@ -1,19 +1,30 @@
 package uk.co.mysterymayhem.paymentforecast;
 
 import java.io.*;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DataParser {
 
-    // Used in validation of merchant related fields
-    static final HashMap<Integer, MerchantData> MERCHANT_ID_TO_DATA = new HashMap<>();
-    // Main results map, Date -> Map<MerchantID, Amount in £>
-    static final HashMap<SimpleDate, HashMap<Integer, BigDecimal>> DAY_TO_MERCHANT_ID_TO_AMOUNT_MAP_MAP = new HashMap<>();
+    // Used in validation of merchant related fields, the name and public key of each merchant id
+    static final IdentityTable MERCHANTS = new IdentityTable(2);
+    // Currencies that amounts are accepted in, see setCurrencies
+    private static CurrencyUnit[] currencies = {CurrencyUnit.GBP};
+    // Main results, amount in the minor unit of its currency for each day and merchant ID, with a separate lane of
+    // amounts for each currency, in the same order as currencies
+    private static DailyAmounts[] currencyAmounts = {new DailyAmounts()};
+    // Hashes of the records parsed so far, see setDuplicateDetection, null if duplicates aren't detected
+    private static RecordHashSet recordHashes = new RecordHashSet(false);
+    private static boolean duplicateBloomFilter = false;
     // Constants for csv record parsing
     private static final int RECIEVED_UTC = 0;
     private static final int MERCHANT_ID = 1;
@@ -28,21 +39,222 @@ public class DataParser {
     private static final int AMOUNT = 10;
     private static final int SHA256 = 11;
     private static final int EXPECTED_NUM_FIELDS = 12;
-    // Used in validation of payer related fields
-    private static final HashMap<Integer, String> PAYER_ID_TO_PUB_KEY = new HashMap<>();
-    // Not very useful for multi-threading, a blocking queue of Calendar objects might work, creating a new instance each time
-    // seems excessive.
-    // Don't care about initial time of calendar
-    private static final Calendar UTC_CALENDAR = GregorianCalendar.getInstance(TimeZone.getTimeZone(ZoneOffset.UTC), Locale.ENGLISH);
-    // Constants for date conversion
-    private static final int YEAR = 0;
-    private static final int MONTH = 1;
-    private static final int DAY = 2;
-    private static final int HOURS = 0;
-    private static final int MINUTES = 1;
-    private static final int SECONDS = 2;
+    // Names of the fields, as in the header line
+    private static final String[] FIELD_NAMES = {"ReceivedUTC", "MerchantId", "MerchantName", "MerchantPubKey", "PayerId", "PayerPubKey",
+            "DebitPermissionId", "DueUTC", "DueEpoc", "Currency", "Amount", "SHA256"};
+    private static final int NO_FIELD = -1;
+    // Fields that the SHA256 hash is calculated from, in order
+    private static final int[] HASHED_FIELDS = {MERCHANT_PUB_KEY, PAYER_PUB_KEY, DEBIT_PERMISSION_ID, DUE_EPOCH, AMOUNT};
+    // Used in validation of payer related fields, the public key of each payer id
+    private static final IdentityTable PAYERS = new IdentityTable(1);
+    // Fields of the entries of MERCHANTS and PAYERS, merchant entries are read straight from MERCHANT_NAME onwards
+    private static final int MERCHANT_ENTRY_NAME = 0;
+    private static final int MERCHANT_ENTRY_PUB_KEY = 1;
+    private static final int PAYER_ENTRY_PUB_KEY = 0;
+    // 4pm UTC
+    private static final int PAYMENT_CUTOFF_SECOND_OF_DAY = 16 * 60 * 60;
     // Assumed all public keys must be 20 characters long
     private static final int PUBLIC_KEY_LENGTH = 20;
+    // Size in bytes of each memory mapped chunk of the data file, chunks are made larger when they would end mid-line
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    // Only 1 in this many lines has its stages timed, as timing every stage of every line would slow parsing down
+    private static final int STAGE_SAMPLE_INTERVAL = 16;
+    // Message of a ParseException caused by the NumberFormatException that Integer.parseInt throws for an invalid int,
+    // which FieldParser.parseInt rejects in exactly the same cases
+    private static final String INVALID_INT_MESSAGE = "java.lang.NumberFormatException: For input string: \"%s\"";
+
+    // Each instance has its own maps so that separate instances can be used from separate threads
+    private final IdentityTable merchants;
+    private final IdentityTable payers;
+    private final CurrencyUnit[] laneCurrencies;
+    private final DailyAmounts[] laneAmounts;
+    private final RecordHashSet hashes;
+    private final Hasher hasher = new Hasher();
+    // Reused when parsing UTC dates to avoid allocating an array for each date
+    private final long[] utcDateFields = new long[FieldParser.UTC_DATE_FIELDS];
+    // Stage of the line being parsed, which is the category of any ParseException thrown while parsing it
+    private ForecastMetrics.Stage stage = ForecastMetrics.Stage.TOKENISE;
+    // Field being parsed, which is the field reported along with any ParseException thrown
+    private int field = NO_FIELD;
+    // Lane of the currency of the line being parsed
+    private int lane;
+    // Set for the sample of lines whose stages are timed
+    private boolean timingLine;
+    private long stageStart;
+    private int linesStarted;
+    // Nanoseconds spent in each stage by the timed lines, added to ForecastMetrics after each chunk
+    private final long[] stageNanos = new long[ForecastMetrics.Stage.values().length];
+
+    /**
+     * Creates a parser with its own, initially empty, maps. Used by the workers when parsing in parallel.
+     */
+    // Visible for testing
+    DataParser() {
+        this(new IdentityTable(2), new IdentityTable(1), currencies, newLanes(currencies.length),
+                recordHashes == null ? null : new RecordHashSet(duplicateBloomFilter));
+    }
+
+    private DataParser(IdentityTable merchants, IdentityTable payers, CurrencyUnit[] laneCurrencies, DailyAmounts[] laneAmounts,
+                       RecordHashSet hashes) {
+        this.merchants = merchants;
+        this.payers = payers;
+        this.laneCurrencies = laneCurrencies;
+        this.laneAmounts = laneAmounts;
+        this.hashes = hashes;
+    }
+
+    private static DailyAmounts[] newLanes(int count) {
+        DailyAmounts[] lanes = new DailyAmounts[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new DailyAmounts();
+        }
+        return lanes;
+    }
+
+    /**
+     * Creates a parser that reads from and writes directly to the static maps.
+     *
+     * @return
+     */
+    private static DataParser staticMapsParser() {
+        return new DataParser(MERCHANTS, PAYERS, currencies, currencyAmounts, recordHashes);
+    }
+
+    /**
+     * Clears all data parsed so far.
+     */
+    static void reset() {
+        MERCHANTS.clear();
+        PAYERS.clear();
+        for (DailyAmounts lane : currencyAmounts) {
+            lane.clear();
+        }
+        if (recordHashes != null) {
+            recordHashes.clear();
+        }
+    }
+
+    /**
+     * Sets the currencies that amounts are accepted in, records in any other currency fail to parse. Only GBP is
+     * accepted until this is called.
+     * <p>
+     * All data parsed so far is cleared if the currencies are different to the current ones.
+     *
+     * @param currencies Each has its own lane of amounts, in the same order.
+     */
+    static void setCurrencies(CurrencyUnit[] currencies) {
+        if (!Arrays.equals(DataParser.currencies, currencies)) {
+            DataParser.currencies = currencies.clone();
+            currencyAmounts = newLanes(currencies.length);
+            reset();
+        }
+    }
+
+    /**
+     * Sets whether records with the same SHA256 hash as an earlier record fail to parse, so that a payment sent more
+     * than once, or data that is ingested again, is only counted once. Duplicates are detected until this is called.
+     * <p>
+     * All data parsed so far is cleared if detection is turned on or off.
+     *
+     * @param enabled
+     * @param bloomFilter True to front the hashes with a Bloom filter, which is quicker for large numbers of records.
+     */
+    static void setDuplicateDetection(boolean enabled, boolean bloomFilter) {
+        if (enabled != (recordHashes != null) || enabled && bloomFilter != duplicateBloomFilter) {
+            duplicateBloomFilter = bloomFilter;
+            RecordHashSet oldHashes = recordHashes;
+            recordHashes = enabled ? new RecordHashSet(bloomFilter) : null;
+            if (enabled && oldHashes != null) {
+                // Only how the hashes are looked up has changed
+                recordHashes.addAll(oldHashes);
+            } else {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * @return true if records with the same SHA256 hash as an earlier record fail to parse.
+     */
+    static boolean detectsDuplicates() {
+        return recordHashes != null;
+    }
+
+    /**
+     * @return the currencies that amounts are accepted in, in the same order as their lanes.
+     */
+    static CurrencyUnit[] currencies() {
+        return currencies.clone();
+    }
+
+    /**
+     * @param lane Index of a currency in {@link #currencies()}.
+     * @return amounts parsed so far in the currency, in its minor unit.
+     */
+    static DailyAmounts dailyAmounts(int lane) {
+        return currencyAmounts[lane];
+    }
+
+    /**
+     * @param merchantId
+     * @return name of the merchant, or null if no record of the merchant has been parsed.
+     */
+    static String merchantName(int merchantId) {
+        int entry = MERCHANTS.find(merchantId);
+        return entry == -1 ? null : MERCHANTS.field(entry, MERCHANT_ENTRY_NAME);
+    }
+
+    /**
+     * Writes all data parsed so far, so that it can be restored by {@link #readParsedState(ByteBuffer)} without parsing
+     * the data file again.
+     *
+     * @param out
+     * @throws IOException
+     */
+    static void writeParsedState(DataOutputStream out) throws IOException {
+        MERCHANTS.writeTo(out);
+        PAYERS.writeTo(out);
+        // Lanes are in the same order as the currencies, which are saved by ParsedStateFile
+        for (DailyAmounts lane : currencyAmounts) {
+            out.writeInt(lane.size());
+            try {
+                lane.forEach((day, merchantId, amount) -> {
+                    try {
+                        out.writeInt(day);
+                        out.writeInt(merchantId);
+                        out.writeLong(amount);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        // Whether there are any hashes is saved by ParsedStateFile
+        if (recordHashes != null) {
+            recordHashes.writeTo(out);
+        }
+    }
+
+    /**
+     * Replaces all data parsed so far with data written by {@link #writeParsedState(DataOutputStream)}.
+     *
+     * @param in
+     */
+    static void readParsedState(ByteBuffer in) {
+        reset();
+        MERCHANTS.readFrom(in);
+        PAYERS.readFrom(in);
+        for (DailyAmounts lane : currencyAmounts) {
+            for (int i = in.getInt(); i > 0; i--) {
+                lane.add(in.getInt(), in.getInt(), in.getLong());
+            }
+        }
+        if (recordHashes != null) {
+            recordHashes.readFrom(in);
+        }
+    }
 
     public static void parseDataFile(String fileURI) {
         parseDataFile(fileURI, System.err, System.out);
@@ -66,40 +278,263 @@ public class DataParser {
      * @param runtimeLog         Stream to print runtime logging to.
      */
     public static void parseDataFile(String fileURI, PrintStream parsingErrorOutput, PrintStream runtimeLog) {
+        parseDataFile(fileURI, parsingErrorOutput, runtimeLog, 1);
+    }
+
+    /**
+     * Parse a .csv data file, optionally using multiple threads.
+     * <p>
+     * The file is memory mapped in chunks that end on line boundaries, or for a gzip compressed .csv.gz file,
+     * decompressed into them by its own thread while earlier chunks are parsed. When using multiple threads, each chunk is
+     * parsed by a worker with its own maps and the results of each chunk are then merged into the static maps in file
+     * order. The parsed data and the parsing errors output are the same regardless of the number of threads.
+     *
+     * @param fileURI            Path of the .csv file to open.
+     * @param parsingErrorOutput Stream to print parsing errors to.
+     * @param runtimeLog         Stream to print runtime logging to.
+     * @param numThreads         Number of worker threads, 1 or less parses sequentially on the calling thread.
+     */
+    public static void parseDataFile(String fileURI, PrintStream parsingErrorOutput, PrintStream runtimeLog, int numThreads) {
+        parseDataFile(fileURI, parsingErrorOutput, runtimeLog, numThreads, CHUNK_SIZE);
+    }
+
+    /**
+     * Same as {@link #parseDataFile(String, PrintStream, PrintStream, int)}, but also returns how much of the file was
+     * parsed.
+     *
+     * @param fileURI            Path of the .csv file to open.
+     * @param errorSink  Sink to report parsing errors to.
+     * @param runtimeLog Stream to print runtime logging to.
+     * @param numThreads Number of worker threads, 1 or less parses sequentially on the calling thread.
+     * @return the whole of the file, or null if the file couldn't be read.
+     */
+    static ParsedPrefix parseWholeFile(String fileURI, ParseErrorSink errorSink, PrintStream runtimeLog, int numThreads) {
+        return parseDataFile(fileURI, errorSink, runtimeLog, numThreads, CHUNK_SIZE, null, false);
+    }
+
+    // Visible for testing
+    static void parseDataFile(String fileURI, PrintStream parsingErrorOutput, PrintStream runtimeLog, int numThreads, int chunkSize) {
+        try (ParseErrorSink errorSink = new ParseErrorSink(parsingErrorOutput, ParseErrorSink.Format.TEXT, ParseErrorSink.UNLIMITED)) {
+            parseDataFile(fileURI, errorSink, runtimeLog, numThreads, chunkSize, null, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parse the lines that have been appended to a .csv data file since a previous parse, adding them to the results
+     * of that parse.
+     * <p>
+     * Only lines that end with a line terminator are parsed, as the last line of a file that is being appended to may
+     * only be partially written. Lines without a terminator are parsed by a later call, once they have been finished.
+     *
+     * @param fileURI    Path of the .csv file to open.
+     * @param errorSink  Sink to report parsing errors to.
+     * @param runtimeLog Stream to print runtime logging to.
+     * @param numThreads Number of worker threads, 1 or less parses sequentially on the calling thread.
+     * @param previous   Result of the previous parse of the file, which must still be a prefix of it, or null to parse
+     *                   the whole file.
+     * @return the part of the file that has been parsed so far, or null if the file couldn't be read.
+     */
+    static ParsedPrefix parseAppendedLines(String fileURI, ParseErrorSink errorSink, PrintStream runtimeLog, int numThreads, ParsedPrefix previous) {
+        return parseDataFile(fileURI, errorSink, runtimeLog, numThreads, CHUNK_SIZE, previous, true);
+    }
+
+    private static ParsedPrefix parseDataFile(String fileURI, ParseErrorSink errorSink, PrintStream runtimeLog, int numThreads,
+                                              int chunkSize, ParsedPrefix previous, boolean completeLinesOnly) {
         printTimeStampedLine(runtimeLog, "Opening file for reading");
-        try (LineNumberReader lineNumberReader = new LineNumberReader(new FileReader(new File(fileURI)))) {
-            printTimeStampedLine(runtimeLog, "Skipping csv headers");
-            // First line contains descriptive headers, so is skipped
-            lineNumberReader.readLine();
-
-            printTimeStampedLine(runtimeLog, "Reading, parsing and processing lines as encountered");
-            // Easily parallelisable via lineNumberReader.lines().parallel().forEach(...) once other code is made thread-safe
-            lineNumberReader.lines().forEach(s -> {
-                try {
-                    parseLine(s);
-                } catch (ParseException parseException) {
-                    parsingErrorOutput.println("Failed to parse line " + lineNumberReader.getLineNumber() + ": " + parseException.getMessage());
+        long parseStart = System.nanoTime();
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        Path path = Paths.get(fileURI);
+        try (CsvChunkSource file = CsvChunkSource.open(path, chunkSize, numThreads)) {
+            int nextLineNumber;
+            long firstOffset;
+            if (previous == null) {
+                printTimeStampedLine(runtimeLog, "Skipping csv headers");
+                // First line contains descriptive headers, so is skipped
+                // Line numbers start from 1, so the first line after the headers is line 2
+                nextLineNumber = file.skipLine() ? 2 : 1;
+                firstOffset = 0;
+            } else {
+                printTimeStampedLine(runtimeLog, "Skipping " + previous.offset + " previously parsed bytes");
+                file.seek(previous.offset);
+                nextLineNumber = previous.nextLineNumber;
+                firstOffset = previous.offset;
+            }
+            int firstLineNumber = nextLineNumber;
+
+            DataParser mergeTarget = staticMapsParser();
+            ByteBuffer buffer;
+            if (executor == null) {
+                printTimeStampedLine(runtimeLog, "Reading, parsing and processing lines as encountered");
+                while ((buffer = nextChunk(file, completeLinesOnly)) != null) {
+                    nextLineNumber = new ParsedChunk(buffer).parseInto(mergeTarget, nextLineNumber, errorSink);
+                }
+            } else {
+                printTimeStampedLine(runtimeLog, "Reading, parsing and processing lines using " + numThreads + " threads");
+                // Limits the number of chunks mapped at once while still keeping all the workers busy
+                int maxChunksInFlight = numThreads * 2;
+                ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+                while ((buffer = nextChunk(file, completeLinesOnly)) != null) {
+                    ParsedChunk chunk = new ParsedChunk(buffer);
+                    inFlight.add(executor.submit(chunk::parse));
+                    if (inFlight.size() >= maxChunksInFlight) {
+                        nextLineNumber = getChunk(inFlight.poll()).mergeInto(mergeTarget, nextLineNumber, errorSink);
+                    }
                 }
-            });
+                while (!inFlight.isEmpty()) {
+                    nextLineNumber = getChunk(inFlight.poll()).mergeInto(mergeTarget, nextLineNumber, errorSink);
+                }
+            }
             printTimeStampedLine(runtimeLog, "Finished reading/parsing/processing all lines");
-        } catch (FileNotFoundException e) {
+            ForecastMetrics.recordParse(nextLineNumber - firstLineNumber, file.position() - firstOffset, System.nanoTime() - parseStart);
+            return ParsedPrefix.of(path, file.filePosition(), nextLineNumber);
+        } catch (NoSuchFileException e) {
             System.err.println("Current path: " + Paths.get("").toAbsolutePath().toString());
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse several .csv data files, each starting with its own header line, into the static maps as if they were one
+     * file made of each of them in turn.
+     * <p>
+     * Each file is parsed by a worker into its own maps, then the files are merged into the static maps in order in the
+     * same way as the chunks of a single file are, so files that conflict with each other are still found. Files that
+     * haven't changed since the previous parse aren't parsed again, their kept results are merged instead.
+     *
+     * @param paths      Files in the order that they are merged.
+     * @param errorSink  Sink to report parsing errors to, each file's errors are reported with its name.
+     * @param runtimeLog Stream to print runtime logging to.
+     * @param numThreads Number of files parsed at once, 1 or less parses them on the calling thread.
+     * @param previous   Files parsed by the previous parse by path, may be empty.
+     * @return the files that were parsed by path, to pass to the next parse.
+     */
+    static Map<Path, ParsedFile> parseDataFiles(List<Path> paths, ParseErrorSink errorSink, PrintStream runtimeLog, int numThreads,
+                                                Map<Path, ParsedFile> previous) {
+        long parseStart = System.nanoTime();
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            ArrayList<Future<ParsedFile>> parsing = new ArrayList<>();
+            long lines = 0;
+            long bytes = 0;
+            int unchanged = 0;
+            for (Path path : paths) {
+                ParsedFile parsedFile = previous.get(path);
+                if (parsedFile != null && parsedFile.isUnchanged()) {
+                    parsing.add(CompletableFuture.completedFuture(parsedFile));
+                    unchanged++;
+                } else if (executor != null) {
+                    parsing.add(executor.submit(() -> ParsedFile.parse(path)));
+                } else {
+                    parsing.add(CompletableFuture.completedFuture(parseOrNull(path)));
+                }
+            }
+            printTimeStampedLine(runtimeLog, "Parsing " + (paths.size() - unchanged) + " data files, " + unchanged + " are unchanged");
+
+            Map<Path, ParsedFile> parsedFiles = new HashMap<>();
+            DataParser mergeTarget = staticMapsParser();
+            for (Future<ParsedFile> future : parsing) {
+                ParsedFile parsedFile = getFile(future);
+                if (parsedFile == null) {
+                    continue;
+                }
+                errorSink.setSource(parsedFile.path.getFileName().toString());
+                parsedFile.mergeInto(mergeTarget, errorSink);
+                if (previous.get(parsedFile.path) != parsedFile) {
+                    lines += parsedFile.lineCount;
+                    bytes += parsedFile.bytes;
+                }
+                parsedFiles.put(parsedFile.path, parsedFile);
+            }
+            errorSink.setSource(null);
+            printTimeStampedLine(runtimeLog, "Finished reading/parsing/processing all data files");
+            ForecastMetrics.recordParse(lines, bytes, System.nanoTime() - parseStart);
+            return parsedFiles;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ParsedFile parseOrNull(Path path) {
+        try {
+            return ParsedFile.parse(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param future
+     * @return the parsed file, or null if it couldn't be read, in which case it is parsed again by the next parse.
+     */
+    private static ParsedFile getFile(Future<ParsedFile> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a file to be parsed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                e.getCause().printStackTrace();
+                return null;
+            }
+            throw new RuntimeException("Failed to parse file", e.getCause());
+        }
+    }
+
+    private static ByteBuffer nextChunk(CsvChunkSource file, boolean completeLinesOnly) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer chunk = file.nextChunk(completeLinesOnly);
+        ForecastMetrics.recordStage(ForecastMetrics.Stage.READ, System.nanoTime() - start);
+        return chunk;
+    }
+
+    private static ParsedChunk getChunk(Future<ParsedChunk> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a chunk to be parsed", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse chunk", e.getCause());
         }
     }
 
+    static String formatParseError(int lineNumber, String message) {
+        return "Failed to parse line " + lineNumber + ": " + message;
+    }
+
     /**
-     * Parse a line of text from .csv data.
+     * @param source     Name of the data file the line is from, null when there is only one data file.
+     * @param lineNumber
+     * @param message
+     * @return
+     */
+    static String formatParseError(String source, int lineNumber, String message) {
+        return source == null ? formatParseError(lineNumber, message) : "Failed to parse line " + lineNumber + " of " + source + ": " + message;
+    }
+
+    /**
+     * Parse the current line of a .csv chunk.
      *
      * @param line
      * @throws ParseException If any parsing fails.
      */
-    private static void parseLine(String line) throws ParseException {
-        String[] split = line.split(",");
-        if (split.length != EXPECTED_NUM_FIELDS) {
-            throw new ParseException("Invalid record length, got " + split.length + ", expected " + EXPECTED_NUM_FIELDS + ". Full line:\n" + line);
+    // Visible for testing
+    void parseLine(CsvChunkReader line) throws ParseException {
+        if (line.fieldCount() != EXPECTED_NUM_FIELDS) {
+            throw new ParseException("Invalid record length, got %d, expected %d. Full line:\n%s", line.fieldCount(), EXPECTED_NUM_FIELDS, line.lineBytes());
         }
 
         // Parsing/validation order is mostly arbitrary, more expensive operations you would want last, but more likely
@@ -107,140 +542,219 @@ public class DataParser {
         // Either way, most entries will parse fine, so it's not very important
 
         // Both types of date are parsable, received date is before due date and due utc and due epoch dates match
-        SimpleDate paymentDate = parseTimeData(split[RECIEVED_UTC], split[DUE_UTC], split[DUE_EPOCH]);
+        this.enterStage(ForecastMetrics.Stage.DATES);
+        int paymentDay = parseTimeData(line);
 
         // Each merchant id is a number and has a single corresponding merchant name and a single merchant public key
-        MerchantData merchantData = parseMerchantData(split[MERCHANT_ID], split[MERCHANT_NAME], split[MERCHANT_PUB_KEY]);
+        this.enterStage(ForecastMetrics.Stage.MERCHANT_PAYER);
+        int merchantId = parseMerchantData(line);
 
         // Each payer id is a number and has a single corresponding payer public key
-        parsePayerData(split[PAYER_ID], split[PAYER_PUB_KEY]);
+        parsePayerData(line);
 
         // Debit permission ID is a parsable number
-        parseDebitPermissionID(split[DEBIT_PERMISSION_ID]);
+        parseDebitPermissionID(line);
 
-        BigDecimal paymentAmount = parsePaymentAmount(split[CURRENCY], split[AMOUNT]);
+        this.enterStage(ForecastMetrics.Stage.AMOUNT);
+        long paymentAmount = parsePaymentAmount(line);
 
-        // Validates (and parses) the SHA256 hash. This is done last as missing data would cause a hash mismatch, but the
+        // Validates the SHA256 hash. This is done last as missing data would cause a hash mismatch, but the
         // other checks would provide a more useful output
-        validateHash(split);
+        this.enterStage(ForecastMetrics.Stage.HASH);
+        byte[] hash = validateHash(line);
+
+        // Each payment is only counted once, however many times its record is sent
+        RecordHashSet hashes = this.hashes;
+        if (hashes != null) {
+            this.enterStage(ForecastMetrics.Stage.DUPLICATE);
+            if (hashes.contains(hash)) {
+                throw new ParseException("Duplicate record, a record with the same hash has already been parsed");
+            }
+        }
 
-        HashMap<Integer, BigDecimal> idToAmount = DAY_TO_MERCHANT_ID_TO_AMOUNT_MAP_MAP.get(paymentDate);
-        if (idToAmount == null) {
-            idToAmount = new HashMap<>();
-            DAY_TO_MERCHANT_ID_TO_AMOUNT_MAP_MAP.put(paymentDate, idToAmount);
+        this.enterStage(ForecastMetrics.Stage.AGGREGATE);
+        try {
+            this.laneAmounts[this.lane].add(paymentDay, merchantId, paymentAmount);
+        } catch (ArithmeticException e) {
+            throw new ParseException("Amount (%s %s) would make the total for merchant %d on the same day too large",
+                    line.fieldBytes(AMOUNT), this.laneCurrencies[this.lane].code, merchantId);
         }
+        // Only once the record has been counted, so that a record that failed to parse can be sent again
+        if (hashes != null) {
+            hashes.add(hash);
+        }
+        this.enterStage(ForecastMetrics.Stage.TOKENISE);
+    }
 
-        Integer merchantID = merchantData.id;
-        BigDecimal amount = idToAmount.get(merchantID);
-        if (amount == null) {
-            idToAmount.put(merchantID, paymentAmount);
-        } else {
-            idToAmount.put(merchantID, amount.add(paymentAmount));
+    /**
+     * Start reading the next line, which is timed if it is one of the sampled lines.
+     */
+    private void startLine() {
+        this.stage = ForecastMetrics.Stage.TOKENISE;
+        this.field = NO_FIELD;
+        this.timingLine = this.linesStarted++ % STAGE_SAMPLE_INTERVAL == 0;
+        if (this.timingLine) {
+            this.stageStart = System.nanoTime();
         }
     }
 
     /**
-     * Parse the payment amount and currency.
+     * Finish the current stage of the line being parsed, adding the time taken by it if the line is being timed.
+     *
+     * @param stage Stage being started.
+     */
+    private void enterStage(ForecastMetrics.Stage stage) {
+        if (this.timingLine) {
+            long now = System.nanoTime();
+            this.stageNanos[this.stage.ordinal()] += now - this.stageStart;
+            this.stageStart = now;
+        }
+        this.stage = stage;
+    }
+
+    /**
+     * Add the time taken by the stages of the timed lines to {@link ForecastMetrics}, scaled up to estimate the time
+     * taken by every line.
+     */
+    private void recordStageTimings() {
+        ForecastMetrics.Stage[] stages = ForecastMetrics.Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            if (this.stageNanos[i] != 0) {
+                ForecastMetrics.recordStage(stages[i], this.stageNanos[i] * STAGE_SAMPLE_INTERVAL);
+                this.stageNanos[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Parse the payment amount and currency, setting the lane that the amount is added to.
      * <p>
-     * Currency must be GBP.
-     * Amount must be a positive number with 2 or 0 digits after a decimal point.
+     * Currency must be one of the accepted currencies.
+     * Amount must be a positive number with either no decimal point or as many digits after one as the minor unit of
+     * the currency has, 2 for GBP.
      *
-     * @param currencyType
-     * @param amount
-     * @return
+     * @param line
+     * @return amount in the minor unit of the currency.
      * @throws ParseException
      */
-    private static BigDecimal parsePaymentAmount(String currencyType, String amount) throws ParseException {
-        if (!currencyType.equals("GBP")) {
-            throw new ParseException("Unrecognised currency type \"" + currencyType + "\"");
+    private long parsePaymentAmount(CsvChunkReader line) throws ParseException {
+        this.field = CURRENCY;
+        byte[] bytes = line.bytes();
+        int packedCode = line.fieldLength(CURRENCY) == 3 ? CurrencyUnit.pack(bytes, line.fieldStart(CURRENCY)) : CurrencyUnit.NO_CODE;
+        // Only a handful of currencies are expected, so a linear search is quicker than a map, and the first currency
+        // costs no more than comparing against a single currency
+        CurrencyUnit[] currencies = this.laneCurrencies;
+        int lane = 0;
+        while (lane < currencies.length && currencies[lane].packedCode != packedCode) {
+            lane++;
         }
-        int pointIndex = amount.indexOf('.');
-        // To extend functionality, a Map<String, Function<String, BigDecimal> could be used, where there is a function for
-        // converting amount to BigDecimal for each recognised currency type
-        try {
-            // If a decimal point is found
-            if (pointIndex != -1) {
-                // Need 2 digits after the decimal point to be valid
-                if (pointIndex != amount.length() - 3) {
-                    throw new ParseException(String.format("Invalid amount (%s) for currency type %s", amount, currencyType));
-                }
-            }
-            BigDecimal parsedAmount = new BigDecimal(amount).setScale(2, RoundingMode.HALF_UP);
-            if (parsedAmount.compareTo(BigDecimal.ZERO) < 1) {
-                throw new ParseException(String.format("Invalid amount (%s). Must be greater than zero", amount));
-            }
-            return parsedAmount;
-        } catch (NumberFormatException e) {
-            throw new ParseException(e);
+        if (lane == currencies.length) {
+            throw new ParseException("Unrecognised currency type \"%s\"", line.fieldBytes(CURRENCY));
         }
+        this.lane = lane;
+        this.field = AMOUNT;
+        CurrencyUnit currency = currencies[lane];
+        return FieldParser.parseMinorUnits(bytes, line.fieldStart(AMOUNT), line.fieldEnd(AMOUNT), currency.minorDigits, currency.code);
     }
 
 
     /**
      * Uniqueness is not ensured. Only check is that the permissionID is a valid number
      *
-     * @param permissionIDString
+     * @param line
      * @throws ParseException
      */
-    private static void parseDebitPermissionID(String permissionIDString) throws ParseException {
-        try {
-            //noinspection ResultOfMethodCallIgnored
-            Integer.parseInt(permissionIDString);
-        } catch (NumberFormatException e) {
-            throw new ParseException(e);
+    private void parseDebitPermissionID(CsvChunkReader line) throws ParseException {
+        this.field = DEBIT_PERMISSION_ID;
+        parseIntField(line, DEBIT_PERMISSION_ID);
+    }
+
+    /**
+     * Parse an int field in the same way as {@link Integer#parseInt(String)}.
+     *
+     * @param line
+     * @param field
+     * @return
+     * @throws ParseException with the same message as if it was caused by the NumberFormatException that
+     *                        {@link Integer#parseInt(String)} would throw.
+     */
+    private static int parseIntField(CsvChunkReader line, int field) throws ParseException {
+        long parsed = FieldParser.parseInt(line.bytes(), line.fieldStart(field), line.fieldEnd(field));
+        if (parsed == FieldParser.INVALID) {
+            throw new ParseException(INVALID_INT_MESSAGE, line.fieldBytes(field));
         }
+        return (int) parsed;
     }
 
     /**
      * Payer data is currently unused aside from checking data consistency, so currently, nothing is returned
      *
-     * @param payerIDString
-     * @param payerPubKey
+     * @param line
      * @throws ParseException
      */
-    private static void parsePayerData(String payerIDString, String payerPubKey) throws ParseException {
-        try {
-            Integer payerID = Integer.parseInt(payerIDString);
-            String retrievedPubKey = PAYER_ID_TO_PUB_KEY.get(payerID);
-            if (retrievedPubKey == null) {
-                PAYER_ID_TO_PUB_KEY.put(payerID, payerPubKey);
-            } else if (!retrievedPubKey.equals(payerPubKey)) {
-                throw new ParseException(String.format("Parsed payer public key for ID %d (%s) does not match existing payer public key (%s)",
-                        payerID, payerPubKey, retrievedPubKey));
-            }
-        } catch (NumberFormatException e) {
-            throw new ParseException(e);
+    private void parsePayerData(CsvChunkReader line) throws ParseException {
+        this.field = PAYER_ID;
+        int payerID = parseIntField(line, PAYER_ID);
+        this.field = PAYER_PUB_KEY;
+        int entry = this.payers.find(payerID);
+        if (entry == -1) {
+            this.payers.add(payerID, line, PAYER_PUB_KEY);
+        } else if (!matches(this.payers, entry, PAYER_ENTRY_PUB_KEY, line, PAYER_PUB_KEY)) {
+            throw new ParseException("Parsed payer public key for ID %d (%s) does not match existing payer public key (%s)",
+                    payerID, line.fieldBytes(PAYER_PUB_KEY), this.payers.fieldBytes(entry, PAYER_ENTRY_PUB_KEY));
         }
     }
 
     /**
-     * Returns the year/month/day that payment will occur on as well as validates all date data
+     * Compares a field of an identity table entry with a field of a line, in the same way as comparing them as Strings.
      *
-     * @param receivedUTCStr
-     * @param dueUTCStr
-     * @param dueEpochStr
+     * @param table
+     * @param entry
+     * @param entryField
+     * @param line
+     * @param lineField
      * @return
+     */
+    private static boolean matches(IdentityTable table, int entry, int entryField, CsvChunkReader line, int lineField) {
+        return table.fieldEquals(entry, entryField, line.bytes(), line.fieldStart(lineField), line.fieldEnd(lineField))
+                // Different bytes only decode to the same String when they aren't valid in the charset, which is rare
+                || table.field(entry, entryField).equals(line.fieldString(lineField));
+    }
+
+    /**
+     * Returns the day that payment will occur on as well as validates all date data
+     *
+     * @param line
+     * @return days since epoch.
      * @throws ParseException
      */
-    private static SimpleDate parseTimeData(String receivedUTCStr, String dueUTCStr, String dueEpochStr) throws ParseException {
-        Instant received = parseUTCData(receivedUTCStr);
-        Instant dueUTC = parseUTCData(dueUTCStr);
-        if (received.isAfter(dueUTC)) {
-            throw new ParseException(String.format("Received UTC time (%s) is after due UTC time (%s)", receivedUTCStr, dueUTCStr));
+    private int parseTimeData(CsvChunkReader line) throws ParseException {
+        long received = parseUTCData(line, RECIEVED_UTC);
+        long dueUTC = parseUTCData(line, DUE_UTC);
+        this.field = RECIEVED_UTC;
+        if (received > dueUTC) {
+            throw new ParseException("Received UTC time (%s) is after due UTC time (%s)",
+                    line.fieldBytes(RECIEVED_UTC), line.fieldBytes(DUE_UTC));
         }
-        Instant dueEpoch = parseEpochData(dueEpochStr);
-        if (!dueUTC.equals(dueEpoch)) {
-            throw new ParseException(String.format("Due UTC (%s, %s) and due epoch (%s) times don't match",
-                    dueUTCStr, dueUTC.getEpochSecond(), dueEpoch.getEpochSecond()));
+        this.field = DUE_EPOCH;
+        long dueEpoch = parseEpochData(line);
+        if (dueUTC != dueEpoch) {
+            throw new ParseException("Due UTC (%s, %s) and due epoch (%s) times don't match",
+                    line.fieldBytes(DUE_UTC), dueUTC, dueEpoch);
         }
 
-        UTC_CALENDAR.setTimeInMillis(dueEpoch.toEpochMilli());
-        // Due time after 4pm is processed the day after
-        if (UTC_CALENDAR.get(Calendar.HOUR_OF_DAY) >= 16) {
-            UTC_CALENDAR.add(Calendar.DAY_OF_MONTH, 1);
-        }
+        return paymentDay(dueEpoch);
+    }
 
-        return new SimpleDate(UTC_CALENDAR);
+    /**
+     * @param dueEpochSecond Due time in seconds since epoch.
+     * @return days since epoch of the day that a payment due at the time is processed on.
+     */
+    // Visible for testing
+    static int paymentDay(long dueEpochSecond) {
+        int day = SimpleDate.epochDay(dueEpochSecond);
+        // Due time after 4pm is processed the day after
+        return SimpleDate.secondOfDay(dueEpochSecond) >= PAYMENT_CUTOFF_SECOND_OF_DAY ? day + 1 : day;
     }
 
     /**
@@ -248,117 +762,430 @@ public class DataParser {
      * MerchantId must be an integer.
      * MerchantPubKey must be 20 characters long.
      * <p>
-     * Any existing MerchantData for the MerchantId must match the parsed MerchantData
+     * Any existing name and public key for the MerchantId must match the parsed ones
      * <p>
      * Assumes public keys are always 20 characters long.
      *
-     * @param merchantIDString
-     * @param merchantName
-     * @param merchantPubKey
-     * @return
+     * @param line
+     * @return the merchant id.
      * @throws ParseException
      */
-    private static MerchantData parseMerchantData(String merchantIDString, String merchantName, String merchantPubKey) throws ParseException {
-        try {
-            Integer merchantID = Integer.parseInt(merchantIDString);
+    private int parseMerchantData(CsvChunkReader line) throws ParseException {
+        this.field = MERCHANT_ID;
+        int merchantID = parseIntField(line, MERCHANT_ID);
+        this.field = MERCHANT_PUB_KEY;
+        byte[] bytes = line.bytes();
+        int keyStart = line.fieldStart(MERCHANT_PUB_KEY);
+        int keyEnd = line.fieldEnd(MERCHANT_PUB_KEY);
+        // ASCII bytes are one character each, anything else is decoded to count its characters
+        if (keyEnd - keyStart != PUBLIC_KEY_LENGTH || !FieldParser.isAscii(bytes, keyStart, keyEnd)) {
+            String merchantPubKey = line.fieldString(MERCHANT_PUB_KEY);
             if (merchantPubKey.length() != PUBLIC_KEY_LENGTH) {
-                throw new ParseException(String.format("Public key for merchant %s with id %s is %d characters long, expected %d",
-                        merchantName, merchantIDString, merchantPubKey.length(), PUBLIC_KEY_LENGTH));
-            }
-            MerchantData retrievedData = MERCHANT_ID_TO_DATA.get(merchantID);
-            if (retrievedData == null) {
-                retrievedData = new MerchantData(merchantID, merchantName, merchantPubKey);
-                MERCHANT_ID_TO_DATA.put(merchantID, retrievedData);
+                throw new ParseException("Public key for merchant %s with id %s is %d characters long, expected %d",
+                        line.fieldBytes(MERCHANT_NAME), line.fieldBytes(MERCHANT_ID), merchantPubKey.length(), PUBLIC_KEY_LENGTH);
             }
-            // It's unnecessary to create a new instance in most cases, so the field values are compared in the same way as if by call of .equals(...)
-            else if (!retrievedData.matches(merchantID, merchantName, merchantPubKey)) {
-                throw new ParseException(String.format("Parsed merchant data (%s) does not match existing merchant data (%s)",
-                        new MerchantData(merchantID, merchantName, merchantPubKey), retrievedData));
+        }
+        int entry = this.merchants.find(merchantID);
+        if (entry == -1) {
+            this.merchants.add(merchantID, line, MERCHANT_NAME);
+        } else {
+            boolean nameMatches = matches(this.merchants, entry, MERCHANT_ENTRY_NAME, line, MERCHANT_NAME);
+            if (!nameMatches || !matches(this.merchants, entry, MERCHANT_ENTRY_PUB_KEY, line, MERCHANT_PUB_KEY)) {
+                this.field = nameMatches ? MERCHANT_PUB_KEY : MERCHANT_NAME;
+                // Formatted in the same way as MerchantData.toString()
+                throw new ParseException("Parsed merchant data (ID: %d, Name: %s, PubKey: %s) does not match existing merchant data (ID: %d, Name: %s, PubKey: %s)",
+                        merchantID, line.fieldBytes(MERCHANT_NAME), line.fieldBytes(MERCHANT_PUB_KEY),
+                        merchantID, this.merchants.fieldBytes(entry, MERCHANT_ENTRY_NAME), this.merchants.fieldBytes(entry, MERCHANT_ENTRY_PUB_KEY));
             }
-            // Return whatever's in the map as that won't be garbage collected
-            return retrievedData;
-        } catch (NumberFormatException e) {
-            throw new ParseException(e);
         }
+        return merchantID;
     }
 
     /**
-     * Parse a UTC string into an Instant in time.
+     * Parse a UTC date field into seconds since epoch.
      *
-     * @param utcDate
+     * @param line
+     * @param field
      * @return
      * @throws ParseException If the read date format is invalid.
      */
-    private static Instant parseUTCData(String utcDate) throws ParseException {
-        int firstSplit = utcDate.indexOf('T');
-        if (firstSplit == -1) {
-            throw new ParseException("Failed to parse UTC date (unable to find 'T') in \"" + utcDate + "\"");
-        }
-        String yearMonthDay = utcDate.substring(0, firstSplit);
-        String hourDaySeconds = utcDate.substring(firstSplit + 1, utcDate.length() - 1);
-        String[] ymd = yearMonthDay.split("-");
-        String[] hms = hourDaySeconds.split(":");
-        UTC_CALENDAR.clear();
-        try {
-            // Months are 0 indexed (jan = 0, dec = 11)
-            //noinspection MagicConstant
-            UTC_CALENDAR.set(Integer.parseInt(ymd[YEAR]), Integer.parseInt(ymd[MONTH]) - 1, Integer.parseInt(ymd[DAY]),
-                    Integer.parseInt(hms[HOURS]), Integer.parseInt(hms[MINUTES]), Integer.parseInt(hms[SECONDS]));
-        } catch (NumberFormatException e) {
-            throw new ParseException("Failed to parse UTC date \"" + utcDate + "\"", e);
-        }
-        return UTC_CALENDAR.toInstant();
+    private long parseUTCData(CsvChunkReader line, int field) throws ParseException {
+        this.field = field;
+        return FieldParser.parseUTCSeconds(line.bytes(), line.fieldStart(field), line.fieldEnd(field), this.utcDateFields);
     }
 
     /**
-     * Parse a time in seconds since epoch into an Instant in time
+     * Parse a time in seconds since epoch
      *
-     * @param epochSeconds
+     * @param line
      * @return
-     * @throws ParseException If input string is not an integer.
+     * @throws ParseException If the field is not an integer.
      */
-    private static Instant parseEpochData(String epochSeconds) throws ParseException {
-        try {
-            int parsedSeconds = Integer.parseInt(epochSeconds);
-            return Instant.ofEpochSecond(parsedSeconds);
-        } catch (NumberFormatException e) {
-            throw new ParseException("Failed to parse seconds since epoch\"" + epochSeconds + "\"", e);
+    private static long parseEpochData(CsvChunkReader line) throws ParseException {
+        long parsedSeconds = FieldParser.parseInt(line.bytes(), line.fieldStart(DUE_EPOCH), line.fieldEnd(DUE_EPOCH));
+        if (parsedSeconds == FieldParser.INVALID) {
+            throw new ParseException("Failed to parse seconds since epoch\"%s\"", line.fieldBytes(DUE_EPOCH));
         }
+        return parsedSeconds;
     }
 
     /**
-     * Validate a hash, given an entire split csv record
+     * Validate the hash of a csv record
      *
-     * @param splitLine
+     * @param line
+     * @return the hash, only valid until the next line is parsed.
      * @throws ParseException If parsed and calculated hashes differ.
      */
-    private static void validateHash(String[] splitLine) throws ParseException {
-        byte[] preCalculatedHash = Hasher.fromPreComputedString(splitLine[SHA256]);
-        byte[] calculatedHash = Hasher.hash(splitLine[MERCHANT_PUB_KEY], splitLine[PAYER_PUB_KEY], splitLine[DEBIT_PERMISSION_ID], splitLine[DUE_EPOCH], splitLine[AMOUNT]);
+    private byte[] validateHash(CsvChunkReader line) throws ParseException {
+        this.field = SHA256;
+        byte[] bytes = line.bytes();
+        Hasher hasher = this.hasher;
+        hasher.reset();
+        for (int field : HASHED_FIELDS) {
+            if (!hasher.update(bytes, line.fieldStart(field), line.fieldEnd(field))) {
+                return validateHashFromStrings(line);
+            }
+        }
+        switch (hasher.compareDigestToHex(bytes, line.fieldStart(SHA256), line.fieldEnd(SHA256))) {
+            case Hasher.HASH_MATCHES:
+                return hasher.digest();
+            case Hasher.HASH_DIFFERS:
+                throw new ParseException("Hash mismatch, got %s, expected %s", new HexHash(hasher.digest().clone()), line.fieldBytes(SHA256));
+            default:
+                return validateHashFromStrings(line);
+        }
+    }
+
+    /**
+     * Slower equivalent of {@link #validateHash(CsvChunkReader)} for records with non-ASCII characters or hashes that
+     * aren't plain hex.
+     *
+     * @param line
+     * @return the hash.
+     * @throws ParseException If parsed and calculated hashes differ.
+     */
+    private static byte[] validateHashFromStrings(CsvChunkReader line) throws ParseException {
+        String sha256 = line.fieldString(SHA256);
+        byte[] preCalculatedHash = Hasher.fromPreComputedString(sha256);
+        byte[] calculatedHash = Hasher.hash(line.fieldString(MERCHANT_PUB_KEY), line.fieldString(PAYER_PUB_KEY),
+                line.fieldString(DEBIT_PERMISSION_ID), line.fieldString(DUE_EPOCH), line.fieldString(AMOUNT));
         if (!Arrays.equals(preCalculatedHash,
                 calculatedHash)) {
-            throw new ParseException("Hash mismatch, got " + Hasher.bytesToNiceString(calculatedHash) + ", expected " + splitLine[SHA256]);
+            throw new ParseException("Hash mismatch, got %s, expected %s", new HexHash(calculatedHash), sha256);
+        }
+        return calculatedHash;
+    }
+
+    /**
+     * A chunk of consecutive lines of the file, parsed either directly into the main maps or by a worker into its own
+     * maps that are later merged into the main maps.
+     */
+    private static class ParsedChunk {
+        // Null once discarded, see ParsedFile
+        private ByteBuffer chunk;
+        private final DataParser parser;
+        // Lines that failed to parse, replaced rather than cleared when parsed again as it is handed to the error sink
+        private ArrayList<ParseError> errors = new ArrayList<>();
+        private int lineCount;
+        // Set if parsing a line threw something other than a ParseException, in which case parsing stops at that line
+        private RuntimeException failure;
+
+        ParsedChunk(ByteBuffer chunk) {
+            this(chunk, new DataParser());
+        }
+
+        /**
+         * @param chunk
+         * @param parser Parser with its own maps that the chunk is parsed into, may be shared with the chunks before it.
+         */
+        ParsedChunk(ByteBuffer chunk, DataParser parser) {
+            this.chunk = chunk;
+            this.parser = parser;
+        }
+
+        ParsedChunk parse() {
+            this.parseLines(this.parser);
+            return this;
+        }
+
+        /**
+         * Parse this chunk directly into the target parser's maps and output the parsing errors of this chunk.
+         *
+         * @param target
+         * @param firstLineNumber Line number of the first line of this chunk.
+         * @param errorSink
+         * @return line number of the first line after this chunk.
+         */
+        int parseInto(DataParser target, int firstLineNumber, ParseErrorSink errorSink) {
+            this.parseLines(target);
+            return this.outputErrors(firstLineNumber, errorSink);
+        }
+
+        private void parseLines(DataParser parser) {
+            this.errors = new ArrayList<>();
+            this.failure = null;
+            CsvChunkReader reader = new CsvChunkReader(this.chunk);
+            try {
+                for (parser.startLine(); reader.nextLine(); parser.startLine()) {
+                    try {
+                        parser.parseLine(reader);
+                    } catch (ParseException parseException) {
+                        int field = parser.field;
+                        boolean hasField = field != NO_FIELD && field < reader.fieldCount();
+                        // The value and message are only decoded and formatted when the error is written
+                        this.errors.add(new ParseError(reader.linesRead() - 1, parser.stage, hasField ? FIELD_NAMES[field] : null,
+                                hasField ? reader.fieldBytes(field) : null, parseException));
+                    }
+                }
+            } catch (RuntimeException e) {
+                this.failure = e;
+            }
+            this.lineCount = reader.linesRead();
+            parser.recordStageTimings();
+        }
+
+        /**
+         * Merge the results of this chunk into the target parser's maps and output the parsing errors of this chunk.
+         * <p>
+         * Merchants and payers are only known by this chunk's own parser, so if any of them were already known to the
+         * target with different data, the consistency checks of this chunk were made against the wrong data and the
+         * chunk is parsed again using the target's maps directly. This is rare as it only happens for inconsistent
+         * data. The same is done if adding this chunk's sums could overflow, so that the line that overflows is found, and
+         * if any record of this chunk duplicates a record already parsed by the target, so that the duplicate is found.
+         *
+         * @param target
+         * @param firstLineNumber Line number of the first line of this chunk.
+         * @param errorSink
+         * @return line number of the first line after this chunk.
+         */
+        int mergeInto(DataParser target, int firstLineNumber, ParseErrorSink errorSink) {
+            if (!target.canMerge(this.parser)) {
+                return this.parseInto(target, firstLineNumber, errorSink);
+            }
+            target.merge(this.parser);
+            return this.outputErrors(firstLineNumber, errorSink);
+        }
+
+        private int outputErrors(int firstLineNumber, ParseErrorSink errorSink) {
+            for (ParseError error : this.errors) {
+                ForecastMetrics.recordParseError(error.code);
+            }
+            errorSink.report(firstLineNumber, this.errors);
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return firstLineNumber + this.lineCount;
+        }
+    }
+
+    /**
+     * @param other Parser with its own maps.
+     * @return false if any merchant or payer of the other parser is known to this one with different data, if adding
+     * the other parser's sums could overflow or if any record of the other parser duplicates one already parsed by this
+     * one.
+     */
+    private boolean canMerge(DataParser other) {
+        if (this.merchants.conflictsWith(other.merchants) || this.payers.conflictsWith(other.payers)
+                || this.hashes != null && this.hashes.containsAny(other.hashes)) {
+            return false;
+        }
+        for (int lane = 0; lane < this.laneAmounts.length; lane++) {
+            if (!this.laneAmounts[lane].canAddAll(other.laneAmounts[lane])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds everything parsed by another parser to this one's maps.
+     *
+     * @param other Parser with its own maps, that {@link #canMerge(DataParser)}.
+     */
+    private void merge(DataParser other) {
+        long start = System.nanoTime();
+        this.merchants.addAll(other.merchants);
+        this.payers.addAll(other.payers);
+        if (this.hashes != null) {
+            this.hashes.addAll(other.hashes);
+        }
+        for (int lane = 0; lane < this.laneAmounts.length; lane++) {
+            this.laneAmounts[lane].addAll(other.laneAmounts[lane]);
+        }
+        ForecastMetrics.recordStage(ForecastMetrics.Stage.AGGREGATE, System.nanoTime() - start);
+    }
+
+    /**
+     * A whole data file, parsed by a worker into its own maps that are later merged into the main maps, and kept so
+     * that it can be merged again by later parses for as long as the file doesn't change.
+     */
+    static final class ParsedFile {
+        final Path path;
+        private final long lastModified;
+        private final DataParser parser = new DataParser();
+        // Parsed by the parser above, in order
+        private final ArrayList<ParsedChunk> chunks = new ArrayList<>();
+        private final int firstLineNumber;
+        private int lineCount;
+        // Number of bytes of lines parsed, more than the size of the file if it is compressed
+        private long bytes;
+        // The whole of the file as it was parsed
+        private ParsedPrefix parsed;
+
+        private ParsedFile(Path path, long lastModified, int firstLineNumber) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.firstLineNumber = firstLineNumber;
+        }
+
+        /**
+         * @param path
+         * @return the parsed file.
+         * @throws IOException If the file can't be read.
+         */
+        static ParsedFile parse(Path path) throws IOException {
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            // Files are already parsed concurrently with each other
+            try (CsvChunkSource file = CsvChunkSource.open(path, CHUNK_SIZE, 1)) {
+                // Every file starts with its own header line
+                ParsedFile parsedFile = new ParsedFile(path, lastModified, file.skipLine() ? 2 : 1);
+                // Decompressed chunks would be kept on the heap rather than just mapped, see decompressInto
+                boolean keepChunks = !CompressedCsvFile.isCompressed(path);
+                ByteBuffer buffer;
+                while ((buffer = nextChunk(file, false)) != null) {
+                    ParsedChunk chunk = new ParsedChunk(buffer, parsedFile.parser).parse();
+                    if (!keepChunks) {
+                        chunk.chunk = null;
+                    }
+                    parsedFile.chunks.add(chunk);
+                    parsedFile.lineCount += chunk.lineCount;
+                }
+                parsedFile.bytes = file.position();
+                parsedFile.parsed = ParsedPrefix.of(path, file.filePosition(), parsedFile.firstLineNumber + parsedFile.lineCount);
+                return parsedFile;
+            }
+        }
+
+        /**
+         * @return true if the file still has the same size, modification time and checksums as when it was parsed.
+         */
+        boolean isUnchanged() {
+            try {
+                return Files.size(this.path) == this.parsed.offset
+                        && Files.getLastModifiedTime(this.path).toMillis() == this.lastModified
+                        && this.parsed.isPrefixOf(this.path);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Merge the results of this file into the target parser's maps and output the parsing errors of this file. As
+         * with {@link ParsedChunk#mergeInto(DataParser, int, ParseErrorSink)}, the file is parsed again using the
+         * target's maps directly if it can't be merged, without changing the results kept by this file. A compressed
+         * file is decompressed again to do so.
+         *
+         * @param target
+         * @param errorSink
+         */
+        void mergeInto(DataParser target, ParseErrorSink errorSink) {
+            int lineNumber = this.firstLineNumber;
+            if (!target.canMerge(this.parser)) {
+                if (CompressedCsvFile.isCompressed(this.path)) {
+                    this.decompressInto(target, errorSink);
+                    return;
+                }
+                for (ParsedChunk chunk : this.chunks) {
+                    lineNumber = new ParsedChunk(chunk.chunk, target).parseInto(target, lineNumber, errorSink);
+                }
+                return;
+            }
+            target.merge(this.parser);
+            for (ParsedChunk chunk : this.chunks) {
+                lineNumber = chunk.outputErrors(lineNumber, errorSink);
+            }
+        }
+
+        /**
+         * Decompress and parse a compressed file again using the target's maps directly, as its chunks aren't kept.
+         *
+         * @param target
+         * @param errorSink
+         */
+        private void decompressInto(DataParser target, ParseErrorSink errorSink) {
+            int lineNumber = this.firstLineNumber;
+            try (CsvChunkSource file = CsvChunkSource.open(this.path, CHUNK_SIZE, 1)) {
+                file.skipLine();
+                ByteBuffer buffer;
+                while ((buffer = nextChunk(file, false)) != null) {
+                    lineNumber = new ParsedChunk(buffer, target).parseInto(target, lineNumber, errorSink);
+                }
+            } catch (IOException e) {
+                // Only if the file has been removed or rewritten since it was parsed
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * General Exception class for when parsing fails
+     * General Exception class for when parsing fails.
+     * <p>
+     * One is thrown for every line that fails to parse, so it has no stack trace and its message is only formatted
+     * when asked for, usually by the error writer thread, from a {@link String#format(String, Object...)} template and
+     * the arguments recorded when it was thrown. Arguments that are byte arrays are text copied from the data file and
+     * are decoded by {@link CsvChunkReader#decode(byte[])} first.
      */
     static class ParseException extends Exception {
-        public ParseException() {
-            super();
+        final String template;
+        final Object[] args;
+
+        /**
+         * @param template Message if there are no arguments, otherwise a format string.
+         * @param args
+         */
+        public ParseException(String template, Object... args) {
+            super(null, null, false, false);
+            this.template = template;
+            this.args = args;
         }
 
-        public ParseException(String message) {
-            super(message);
+        @Override
+        public String getMessage() {
+            return format(this.template, this.args);
         }
 
-        public ParseException(String message, Throwable cause) {
-            super(message, cause);
+        /**
+         * @param template
+         * @param args
+         * @return the message of a {@link ParseException} thrown with the template and arguments.
+         */
+        static String format(String template, Object[] args) {
+            if (args.length == 0) {
+                return template;
+            }
+            Object[] decoded = args.clone();
+            for (int i = 0; i < decoded.length; i++) {
+                if (decoded[i] instanceof byte[]) {
+                    decoded[i] = CsvChunkReader.decode((byte[]) decoded[i]);
+                }
+            }
+            return String.format(template, decoded);
+        }
+    }
+
+    /**
+     * A hash that is only converted to hex when an error message is formatted.
+     */
+    private static class HexHash {
+        private final byte[] hash;
+
+        HexHash(byte[] hash) {
+            this.hash = hash;
         }
 
-        public ParseException(Throwable cause) {
-            super(cause);
+        @Override
+        public String toString() {
+            return Hasher.bytesToNiceString(this.hash);
         }
     }
 }
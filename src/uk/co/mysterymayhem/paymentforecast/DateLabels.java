@@ -0,0 +1,60 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormatSymbols;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Labels of the rows of the forecast table, e.g. "24 Apr 2017", looked up by epoch day from a table of already encoded
+ * labels, so that rendering a row's label is a single copy.
+ * <p>
+ * The table is shared by everything in the JVM and built lazily in blocks of consecutive days, the first time that any
+ * day of a block is asked for. Thread-safe, a block that is built by two threads at once is just built twice.
+ */
+class DateLabels {
+    // Same month names as Calendar.getDisplayName(Calendar.MONTH, Calendar.SHORT, Locale.ENGLISH)
+    private static final String[] MONTHS = new DateFormatSymbols(Locale.ENGLISH).getShortMonths();
+    private static final int DAYS_PER_BLOCK = 1024;
+    // Days of years 0 to 9999 are kept, labels of any other day are built every time
+    private static final int FIRST_DAY = (int) LocalDate.of(0, 1, 1).toEpochDay();
+    private static final int END_DAY = (int) LocalDate.of(10000, 1, 1).toEpochDay();
+    private static final AtomicReferenceArray<byte[][]> BLOCKS = new AtomicReferenceArray<>((END_DAY - FIRST_DAY + DAYS_PER_BLOCK - 1) / DAYS_PER_BLOCK);
+
+    /**
+     * @param epochDay
+     * @return the label of the day encoded as ASCII, which is the same in UTF-8. Must not be modified.
+     */
+    static byte[] encoded(int epochDay) {
+        if (epochDay < FIRST_DAY || epochDay >= END_DAY) {
+            return build(epochDay);
+        }
+        int offset = epochDay - FIRST_DAY;
+        int blockIndex = offset / DAYS_PER_BLOCK;
+        byte[][] block = BLOCKS.get(blockIndex);
+        if (block == null) {
+            block = new byte[DAYS_PER_BLOCK][];
+            int blockStart = FIRST_DAY + blockIndex * DAYS_PER_BLOCK;
+            for (int i = 0; i < DAYS_PER_BLOCK; i++) {
+                block[i] = build(blockStart + i);
+            }
+            BLOCKS.set(blockIndex, block);
+        }
+        return block[offset % DAYS_PER_BLOCK];
+    }
+
+    /**
+     * @param epochDay
+     * @return the label of the day.
+     */
+    static String label(int epochDay) {
+        return new String(encoded(epochDay), StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] build(int epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        String label = date.getDayOfMonth() + " " + MONTHS[date.getMonthValue() - 1] + " " + date.getYear();
+        return label.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,212 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable response body that is encoded and compressed once, up front, and then served as is to every request.
+ * <p>
+ * Handles content negotiation of the gzip and deflate content codings and conditional GETs through the ETag and
+ * Last-Modified headers, so that clients polling for unchanged content only get a 304 response.
+ */
+class EncodedResponse {
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private final String contentType;
+    private final long lastModified;
+    private final byte[] identity;
+    // Null when compressing doesn't make the body any smaller
+    private final byte[] gzip;
+    private final byte[] deflate;
+    // Opaque part of the entity tag of each variant, without the quotes
+    private final String entityTag;
+
+    /**
+     * @param body         Encoded body, must not be modified afterwards.
+     * @param contentType  Content-Type of the body, including its charset.
+     * @param lastModified Time in milliseconds since epoch when the content last changed.
+     * @throws IOException
+     */
+    EncodedResponse(byte[] body, String contentType, long lastModified) throws IOException {
+        this.contentType = contentType;
+        // HTTP dates only have second precision
+        this.lastModified = lastModified - lastModified % 1000;
+        this.identity = body;
+        this.gzip = smallerOrNull(compress(body, true), body);
+        this.deflate = smallerOrNull(compress(body, false), body);
+        this.entityTag = Hasher.bytesToNiceString(Arrays.copyOf(Hasher.hash(body), 16));
+    }
+
+    private static byte[] compress(byte[] body, boolean gzip) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        // Only compressed once, so the best compression is worth the extra time. Both streams use their own Deflater,
+        // which they end when closed
+        try (OutputStream out = gzip ? new GZIPOutputStream(compressed) {
+            {
+                this.def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        } : new DeflaterOutputStream(compressed) {
+            {
+                this.def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] smallerOrNull(byte[] compressed, byte[] body) {
+        return compressed.length < body.length ? compressed : null;
+    }
+
+    /**
+     * Equivalent to {@link #write(HttpServletRequest, HttpServletResponse, ResponseBody)}, blocking until the body has
+     * been sent.
+     *
+     * @param req
+     * @param resp
+     * @return number of bytes of the body sent.
+     * @throws IOException
+     */
+    long write(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        return this.write(req, resp, new ResponseBody(resp));
+    }
+
+    /**
+     * Writes the best variant of the body that the client accepts, or a 304 response if the client already has it.
+     *
+     * @param req
+     * @param resp
+     * @param responseBody Body of resp, the variant is written to it without being copied.
+     * @return number of bytes of the body sent.
+     * @throws IOException
+     */
+    long write(HttpServletRequest req, HttpServletResponse resp, ResponseBody responseBody) throws IOException {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        String contentEncoding = null;
+        byte[] body = this.identity;
+        if (this.gzip != null && accepts(acceptEncoding, GZIP)) {
+            contentEncoding = GZIP;
+            body = this.gzip;
+        } else if (this.deflate != null && accepts(acceptEncoding, DEFLATE)) {
+            contentEncoding = DEFLATE;
+            body = this.deflate;
+        }
+
+        resp.addHeader("Vary", "Accept-Encoding");
+        // Clients may cache the body but must check that it is still current before using it
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("ETag", this.entityTag(contentEncoding));
+        resp.setDateHeader("Last-Modified", this.lastModified);
+        if (this.isNotModified(req)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return 0;
+        }
+        resp.setContentType(this.contentType);
+        if (contentEncoding != null) {
+            resp.setHeader("Content-Encoding", contentEncoding);
+        }
+        resp.setContentLengthLong(body.length);
+        responseBody.write(body);
+        return body.length;
+    }
+
+    /**
+     * @return the body without any content coding. Must not be modified.
+     */
+    byte[] identity() {
+        return this.identity;
+    }
+
+    /**
+     * @return total size of every variant of the body.
+     */
+    long sizeInBytes() {
+        return this.identity.length + (this.gzip == null ? 0 : this.gzip.length) + (this.deflate == null ? 0 : this.deflate.length);
+    }
+
+    private String entityTag(String contentEncoding) {
+        // Each variant has different bytes, so needs its own strong entity tag
+        return contentEncoding == null ? '"' + this.entityTag + '"' : '"' + this.entityTag + '-' + contentEncoding + '"';
+    }
+
+    private boolean isNotModified(HttpServletRequest req) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison, as only the body and not the exact bytes of the response matter for a GET
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(this.entityTag(null)) || tag.equals(this.entityTag(GZIP)) || tag.equals(this.entityTag(DEFLATE))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            // Invalid dates are ignored
+            return false;
+        }
+        return ifModifiedSince != -1 && this.lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Checks if an Accept-Encoding header allows a content coding, either by name or through "*".
+     *
+     * @param acceptEncoding
+     * @param coding
+     * @return false if the header is missing, doesn't list the coding or lists it with a q value of 0.
+     */
+    // Visible for testing
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String name = parameters[0].trim();
+            boolean acceptable = qValue(parameters) > 0;
+            if (name.equalsIgnoreCase(coding)) {
+                return acceptable;
+            }
+            if (name.equals("*")) {
+                wildcard = acceptable;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * @param parameters Parameters of an element of an Accept or Accept-Encoding header, the first is ignored as it is
+     *                   the element itself.
+     * @return the q value of the element, 1 if it doesn't have one.
+     */
+    static double qValue(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
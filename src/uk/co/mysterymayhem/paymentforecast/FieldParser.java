@@ -0,0 +1,327 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Parsers for the numeric fields of a record that read digits directly from a range of bytes, without creating any
+ * objects unless the field turns out to be invalid.
+ * <p>
+ * Each parser accepts exactly the same input as the String based parsing it replaces. Bytes outside of the ASCII range
+ * are rare, so rather than handling the non-ASCII digits that {@link Integer#parseInt(String)} also accepts, such
+ * input is decoded and handed to the String based parsing instead.
+ */
+class FieldParser {
+    /**
+     * Returned by {@link #parseInt(byte[], int, int)} when the bytes are not a valid int.
+     */
+    static final long INVALID = Long.MIN_VALUE;
+    /**
+     * Number of fields in a UTC date, year, month, day, hours, minutes and seconds.
+     */
+    static final int UTC_DATE_FIELDS = 6;
+
+    // Same charset as would be used by a FileReader
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    // Indices of the fields of a UTC date
+    private static final int YEAR = 0;
+    private static final int MONTH = 1;
+    private static final int DAY = 2;
+    private static final int HOURS = 3;
+    private static final int MINUTES = 4;
+    private static final int SECONDS = 5;
+    // Amounts with more digits than this could overflow a long when converted to the minor unit of a currency with up to
+    // CurrencyUnit.MAX_MINOR_DIGITS digits, so are left to BigDecimal
+    private static final int MAX_FAST_AMOUNT_DIGITS = 15;
+    // Indexed by the number of minor digits of a currency
+    static final long[] POWERS_OF_TEN = {1, 10, 100, 1000};
+
+    /**
+     * Parse a range of bytes in the same way as {@link Integer#parseInt(String)}.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @return the parsed int or {@link #INVALID} if the bytes are not a valid int.
+     */
+    static long parseInt(byte[] bytes, int start, int end) {
+        if (start == end) {
+            return INVALID;
+        }
+        boolean negative = false;
+        int i = start;
+        byte first = bytes[i];
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+                return INVALID;
+            }
+        }
+        // Accumulated negatively as the magnitude of Integer.MIN_VALUE is larger than that of Integer.MAX_VALUE
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return bytes[i] < 0 ? parseNonAsciiInt(bytes, start, end) : INVALID;
+            }
+            result = result * 10 - digit;
+            if (result < Integer.MIN_VALUE) {
+                return INVALID;
+            }
+        }
+        if (negative) {
+            return result;
+        }
+        return result == Integer.MIN_VALUE ? INVALID : -result;
+    }
+
+    private static long parseNonAsciiInt(byte[] bytes, int start, int end) {
+        try {
+            return Integer.parseInt(new String(bytes, start, end - start, CHARSET));
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Parse a UTC date such as "2017-04-24T16:30:00Z" into seconds since epoch.
+     * <p>
+     * As when setting the fields of a lenient {@link java.util.Calendar}, out of range fields roll over into the next
+     * field, so "2017-13-01T00:00:00Z" is the same as "2018-01-01T00:00:00Z". The last character, normally 'Z', is
+     * ignored, as are any fields after the seconds.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @param fields Array of at least {@link #UTC_DATE_FIELDS} elements, used to hold the parsed fields.
+     * @return seconds since epoch.
+     * @throws DataParser.ParseException If the date format is invalid.
+     */
+    static long parseUTCSeconds(byte[] bytes, int start, int end, long[] fields) throws DataParser.ParseException {
+        if (!isAscii(bytes, start, end)) {
+            // The last character may be more than one byte
+            return parseUTCSeconds(decode(bytes, start, end), fields);
+        }
+        int timeSeparator = indexOf(bytes, start, end, (byte) 'T');
+        if (timeSeparator == -1) {
+            throw new DataParser.ParseException("Failed to parse UTC date (unable to find 'T') in \"%s\"", Arrays.copyOfRange(bytes, start, end));
+        }
+        if (!parseSeparatedInts(bytes, start, timeSeparator, (byte) '-', fields, YEAR)
+                // Excludes the last character, assumed to be 'Z'
+                || !parseSeparatedInts(bytes, timeSeparator + 1, end - 1, (byte) ':', fields, HOURS)) {
+            throw new DataParser.ParseException("Failed to parse UTC date \"%s\"", Arrays.copyOfRange(bytes, start, end));
+        }
+        return toEpochSeconds(fields);
+    }
+
+    /**
+     * Equivalent of {@link #parseUTCSeconds(byte[], int, int, long[])} for dates containing non-ASCII characters.
+     *
+     * @param utcDate
+     * @param fields
+     * @return
+     * @throws DataParser.ParseException
+     */
+    private static long parseUTCSeconds(String utcDate, long[] fields) throws DataParser.ParseException {
+        int firstSplit = utcDate.indexOf('T');
+        if (firstSplit == -1) {
+            throw new DataParser.ParseException("Failed to parse UTC date (unable to find 'T') in \"%s\"", utcDate);
+        }
+        try {
+            String[] ymd = utcDate.substring(0, firstSplit).split("-");
+            String[] hms = utcDate.substring(firstSplit + 1, utcDate.length() - 1).split(":");
+            for (int i = 0; i < 3; i++) {
+                fields[YEAR + i] = Integer.parseInt(ymd[i]);
+                fields[HOURS + i] = Integer.parseInt(hms[i]);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new DataParser.ParseException("Failed to parse UTC date \"%s\"", utcDate);
+        }
+        return toEpochSeconds(fields);
+    }
+
+    private static long toEpochSeconds(long[] fields) {
+        // Months are parsed 1 indexed, any month outside of 1-12 rolls over into the year
+        long monthIndex = fields[MONTH] - 1;
+        long year = fields[YEAR] + Math.floorDiv(monthIndex, 12);
+        long month = Math.floorMod(monthIndex, 12) + 1;
+        long epochDay = epochDay(year, month, 1) + fields[DAY] - 1;
+        return epochDay * SECONDS_PER_DAY + fields[HOURS] * 3600 + fields[MINUTES] * 60 + fields[SECONDS];
+    }
+
+    /**
+     * Parse the first three of the ints separated by a separator, in the same way as {@code String.split(separator)}
+     * followed by {@link Integer#parseInt(String)} of the first three results.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @param separator
+     * @param output      Array to put the parsed ints into.
+     * @param outputIndex Index in the output array to put the first parsed int.
+     * @return false if there are fewer than three ints or any of the first three are not valid ints.
+     */
+    private static boolean parseSeparatedInts(byte[] bytes, int start, int end, byte separator, long[] output, int outputIndex) {
+        if (start > end) {
+            return false;
+        }
+        int partStart = start;
+        for (int i = 0; i < 3; i++) {
+            int partEnd = indexOf(bytes, partStart, end, separator);
+            if (partEnd == -1) {
+                if (i < 2) {
+                    return false;
+                }
+                partEnd = end;
+            }
+            long parsed = parseInt(bytes, partStart, partEnd);
+            if (parsed == INVALID) {
+                return false;
+            }
+            output[outputIndex + i] = parsed;
+            partStart = partEnd + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Number of days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     *
+     * @param year
+     * @param month 1 indexed, must be between 1 and 12.
+     * @param day   1 indexed, may be outside of the month, in which case it rolls over into the surrounding months.
+     * @return
+     */
+    static long epochDay(long year, long month, long day) {
+        // Counts from March so that the leap day is the last day of the year
+        if (month <= 2) {
+            year--;
+        }
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        // 719468 days from 0000-03-01 to 1970-01-01
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Parse a positive amount with either no decimal point or exactly minorDigits digits after one into the minor unit
+     * of a currency, e.g. an amount of GBP, which has 2 minor digits, into pence.
+     * <p>
+     * Plain digits are parsed directly, anything else, such as signs, exponents or non-ASCII digits, is parsed by
+     * {@link BigDecimal#BigDecimal(String)}.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @param minorDigits  Number of digits of the minor unit of the currency, at most
+     *                     {@link CurrencyUnit#MAX_MINOR_DIGITS}.
+     * @param currencyType Used in error messages.
+     * @return amount in the minor unit.
+     * @throws DataParser.ParseException If the amount is invalid or not greater than zero.
+     */
+    static long parseMinorUnits(byte[] bytes, int start, int end, int minorDigits, String currencyType) throws DataParser.ParseException {
+        long amount;
+        int pointIndex = indexOf(bytes, start, end, (byte) '.');
+        if (pointIndex == -1) {
+            long whole = parseDigits(bytes, start, end);
+            amount = whole == INVALID ? INVALID : whole * POWERS_OF_TEN[minorDigits];
+        } else if (minorDigits != 0 && pointIndex == end - 1 - minorDigits) {
+            // An empty whole part is allowed as long as there is a fractional part, e.g. ".50"
+            long whole = pointIndex == start ? 0 : parseDigits(bytes, start, pointIndex);
+            long fraction = parseDigits(bytes, pointIndex + 1, end);
+            amount = whole == INVALID || fraction == INVALID ? INVALID : whole * POWERS_OF_TEN[minorDigits] + fraction;
+        } else {
+            amount = INVALID;
+        }
+        if (amount == INVALID) {
+            return parseMinorUnits(decode(bytes, start, end), minorDigits, currencyType);
+        }
+        if (amount == 0) {
+            throw new DataParser.ParseException("Invalid amount (%s). Must be greater than zero", Arrays.copyOfRange(bytes, start, end));
+        }
+        return amount;
+    }
+
+    /**
+     * Equivalent of {@link #parseMinorUnits(byte[], int, int, int, String)} for amounts that aren't plain digits.
+     *
+     * @param amount
+     * @param minorDigits
+     * @param currencyType
+     * @return
+     * @throws DataParser.ParseException
+     */
+    private static long parseMinorUnits(String amount, int minorDigits, String currencyType) throws DataParser.ParseException {
+        int pointIndex = amount.indexOf('.');
+        try {
+            // If a decimal point is found
+            if (pointIndex != -1) {
+                // Need exactly as many digits after the decimal point as the minor unit has to be valid
+                if (minorDigits == 0 || pointIndex != amount.length() - 1 - minorDigits) {
+                    throw new DataParser.ParseException("Invalid amount (%s) for currency type %s", amount, currencyType);
+                }
+            }
+            BigDecimal parsedAmount = new BigDecimal(amount).setScale(minorDigits, RoundingMode.HALF_UP);
+            if (parsedAmount.signum() <= 0) {
+                throw new DataParser.ParseException("Invalid amount (%s). Must be greater than zero", amount);
+            }
+            return parsedAmount.unscaledValue().longValueExact();
+        } catch (NumberFormatException e) {
+            // Formatted as the exception itself, as when it was the cause
+            throw new DataParser.ParseException("%s", e);
+        } catch (ArithmeticException e) {
+            throw new DataParser.ParseException("Invalid amount (%s). Too large to be summed", amount);
+        }
+    }
+
+    /**
+     * Parse a range of ASCII digits without a sign.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @return the parsed number or {@link #INVALID} if there are no digits, too many digits or any non-digits.
+     */
+    private static long parseDigits(byte[] bytes, int start, int end) {
+        if (start == end || end - start > MAX_FAST_AMOUNT_DIGITS) {
+            return INVALID;
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    static boolean isAscii(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(byte[] bytes, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String decode(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, CHARSET);
+    }
+}
@@ -0,0 +1,91 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.util.Locale;
+
+/**
+ * Representations that the forecast can be sent as, in order of preference when a client accepts more than one.
+ */
+enum ForecastFormat {
+    HTML("text", "html", "text/html;charset=UTF-8", ".html"),
+    JSON("application", "json", "application/json", ".json"),
+    CSV("text", "csv", "text/csv;charset=UTF-8", ".csv");
+
+    // Content-Type to respond with
+    final String contentType;
+    private final String type;
+    private final String subtype;
+    private final String extension;
+
+    ForecastFormat(String type, String subtype, String contentType, String extension) {
+        this.type = type;
+        this.subtype = subtype;
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+
+    /**
+     * Picks the format of a response, either from the extension of the requested path, e.g. "/forecast.json", or
+     * failing that from the Accept header.
+     *
+     * @param path   Requested path, may be null.
+     * @param accept Accept header of the request, may be null.
+     * @return the requested format, {@link #HTML} if no known format was requested.
+     */
+    static ForecastFormat of(String path, String accept) {
+        if (path != null) {
+            for (ForecastFormat format : values()) {
+                if (path.endsWith(format.extension)) {
+                    return format;
+                }
+            }
+        }
+        if (accept == null) {
+            return HTML;
+        }
+        ForecastFormat best = HTML;
+        double bestQuality = 0;
+        for (ForecastFormat format : values()) {
+            double quality = format.quality(accept);
+            // Ties go to the earlier format
+            if (quality > bestQuality) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param accept
+     * @return q value of the most specific media range in the Accept header that matches this format, 0 if none match.
+     */
+    private double quality(String accept) {
+        int bestSpecificity = -1;
+        double quality = 0;
+        for (String element : accept.split(",")) {
+            String[] parameters = element.split(";");
+            String range = parameters[0].trim().toLowerCase(Locale.ROOT);
+            int slash = range.indexOf('/');
+            if (slash == -1) {
+                continue;
+            }
+            String rangeType = range.substring(0, slash);
+            String rangeSubtype = range.substring(slash + 1);
+            int specificity;
+            if (rangeType.equals(this.type) && rangeSubtype.equals(this.subtype)) {
+                specificity = 2;
+            } else if (rangeType.equals(this.type) && rangeSubtype.equals("*")) {
+                specificity = 1;
+            } else if (rangeType.equals("*") && rangeSubtype.equals("*")) {
+                specificity = 0;
+            } else {
+                continue;
+            }
+            if (specificity > bestSpecificity) {
+                bestSpecificity = specificity;
+                quality = EncodedResponse.qValue(parameters);
+            }
+        }
+        return quality;
+    }
+}
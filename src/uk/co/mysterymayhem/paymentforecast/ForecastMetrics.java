@@ -0,0 +1,273 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of parsing and serving the forecast, shown as text by the /metrics path of
+ * {@link PaymentForecastServlet} and through JMX.
+ * <p>
+ * Counts are kept in {@link LongAdder}s, which are striped across threads, and latencies in lock-free
+ * {@link Histogram}s, so recording never blocks. As with the parsed data in {@link DataParser}, the metrics are shared
+ * by everything in the JVM.
+ */
+class ForecastMetrics implements ForecastMetricsMXBean {
+    static final String OBJECT_NAME = "uk.co.mysterymayhem.paymentforecast:type=ForecastMetrics";
+
+    /**
+     * Stages that the time spent parsing and rendering is split into. Lines that fail to parse are categorised by the
+     * stage that they failed in.
+     */
+    enum Stage {
+        // Mapping chunks of the data file
+        READ,
+        // Splitting lines into fields
+        TOKENISE,
+        DATES,
+        MERCHANT_PAYER,
+        AMOUNT,
+        HASH,
+        // Checking that a record with the same hash hasn't already been parsed
+        DUPLICATE,
+        // Summing amounts, including merging the sums of each chunk
+        AGGREGATE,
+        RENDER;
+
+        final String label = this.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    // Quantiles of the request latency that are reported
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final LongAdder[] STAGE_NANOS = newAdders(STAGES.length);
+    private static final LongAdder[] PARSE_ERRORS = newAdders(STAGES.length);
+    private static final LongAdder LINES_PARSED = new LongAdder();
+    private static final LongAdder BYTES_PARSED = new LongAdder();
+    private static final LongAdder RESPONSE_BYTES = new LongAdder();
+    private static final LongAdder FAILED_REQUESTS = new LongAdder();
+    private static final LongAdder VIEW_CACHE_HITS = new LongAdder();
+    private static final LongAdder VIEW_CACHE_MISSES = new LongAdder();
+    private static final Histogram REQUEST_MICROS = new Histogram();
+    // Lines, bytes and nanoseconds of the most recent parse, replaced as a whole
+    private static volatile long[] lastParse = {0, 0, 0};
+    private static volatile long snapshotBuiltMillis = -1;
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static void recordStage(Stage stage, long nanos) {
+        STAGE_NANOS[stage.ordinal()].add(nanos);
+    }
+
+    static void recordParseError(Stage stage) {
+        PARSE_ERRORS[stage.ordinal()].increment();
+    }
+
+    /**
+     * @param lines Number of lines parsed, including those that failed to parse.
+     * @param bytes
+     * @param nanos Time taken by the whole parse.
+     */
+    static void recordParse(long lines, long bytes, long nanos) {
+        LINES_PARSED.add(lines);
+        BYTES_PARSED.add(bytes);
+        lastParse = new long[]{lines, bytes, nanos};
+    }
+
+    static void recordSnapshotBuilt() {
+        snapshotBuiltMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param nanos         Time taken to respond.
+     * @param responseBytes Number of bytes of the response body sent.
+     */
+    static void recordRequest(long nanos, long responseBytes) {
+        REQUEST_MICROS.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        RESPONSE_BYTES.add(responseBytes);
+    }
+
+    /**
+     * A request failed with an exception before its response could be sent. Not counted by
+     * {@link #recordRequest(long, long)}.
+     */
+    static void recordFailedRequest() {
+        FAILED_REQUESTS.increment();
+    }
+
+    /**
+     * A filtered view was found in the {@link RenderedViewCache}, or was already being rendered by another request.
+     */
+    static void recordViewCacheHit() {
+        VIEW_CACHE_HITS.increment();
+    }
+
+    static void recordViewCacheMiss() {
+        VIEW_CACHE_MISSES.increment();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, unless they already have been.
+     *
+     * @return true if registered by this call.
+     * @throws JMException
+     */
+    static boolean register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new ForecastMetrics(), new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    static void unregister() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format.
+     */
+    static String toText() {
+        ForecastMetrics metrics = new ForecastMetrics();
+        StringBuilder builder = new StringBuilder();
+        appendMetric(builder, "payment_forecast_lines_parsed_total", metrics.getLinesParsed());
+        appendMetric(builder, "payment_forecast_bytes_parsed_total", metrics.getBytesParsed());
+        appendMetric(builder, "payment_forecast_last_parse_lines_per_second", metrics.getLinesPerSecond());
+        appendMetric(builder, "payment_forecast_last_parse_bytes_per_second", metrics.getBytesPerSecond());
+        for (Stage stage : STAGES) {
+            appendMetric(builder, "payment_forecast_stage_seconds_total{stage=\"" + stage.label + "\"}",
+                    STAGE_NANOS[stage.ordinal()].sum() / 1e9);
+        }
+        for (Stage stage : STAGES) {
+            appendMetric(builder, "payment_forecast_parse_errors_total{stage=\"" + stage.label + "\"}", PARSE_ERRORS[stage.ordinal()].sum());
+        }
+        long snapshotAgeMillis = metrics.getSnapshotAgeMillis();
+        appendMetric(builder, "payment_forecast_snapshot_age_seconds", snapshotAgeMillis == -1 ? Double.NaN : snapshotAgeMillis / 1e3);
+        for (String quantile : QUANTILES) {
+            appendMetric(builder, "payment_forecast_request_latency_seconds{quantile=\"" + quantile + "\"}",
+                    latencyMicros(quantile) / 1e6);
+        }
+        appendMetric(builder, "payment_forecast_request_latency_seconds_max", REQUEST_MICROS.max() / 1e6);
+        appendMetric(builder, "payment_forecast_requests_total", metrics.getRequests());
+        appendMetric(builder, "payment_forecast_failed_requests_total", metrics.getFailedRequests());
+        appendMetric(builder, "payment_forecast_response_bytes_total", metrics.getResponseBytes());
+        appendMetric(builder, "payment_forecast_view_cache_hits_total", metrics.getViewCacheHits());
+        appendMetric(builder, "payment_forecast_view_cache_misses_total", metrics.getViewCacheMisses());
+        return builder.toString();
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, long value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, double value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return LINES_PARSED.sum();
+    }
+
+    @Override
+    public long getBytesParsed() {
+        return BYTES_PARSED.sum();
+    }
+
+    @Override
+    public double getLinesPerSecond() {
+        long[] lastParse = ForecastMetrics.lastParse;
+        return lastParse[2] == 0 ? 0 : lastParse[0] * 1e9 / lastParse[2];
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        long[] lastParse = ForecastMetrics.lastParse;
+        return lastParse[2] == 0 ? 0 : lastParse[1] * 1e9 / lastParse[2];
+    }
+
+    @Override
+    public Map<String, Long> getStageNanos() {
+        return sums(STAGE_NANOS);
+    }
+
+    @Override
+    public Map<String, Long> getParseErrors() {
+        return sums(PARSE_ERRORS);
+    }
+
+    private static Map<String, Long> sums(LongAdder[] byStage) {
+        Map<String, Long> sums = new LinkedHashMap<>();
+        for (Stage stage : STAGES) {
+            sums.put(stage.label, byStage[stage.ordinal()].sum());
+        }
+        return sums;
+    }
+
+    @Override
+    public long getSnapshotAgeMillis() {
+        long built = snapshotBuiltMillis;
+        return built == -1 ? -1 : System.currentTimeMillis() - built;
+    }
+
+    @Override
+    public long getRequests() {
+        return REQUEST_MICROS.count();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return FAILED_REQUESTS.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestLatencyMicros() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        latencies.put("mean", Math.round(REQUEST_MICROS.mean()));
+        for (String quantile : QUANTILES) {
+            latencies.put(quantile, latencyMicros(quantile));
+        }
+        latencies.put("max", REQUEST_MICROS.max());
+        return latencies;
+    }
+
+    private static long latencyMicros(String quantile) {
+        return REQUEST_MICROS.percentile(Double.parseDouble(quantile) * 100);
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return RESPONSE_BYTES.sum();
+    }
+
+    @Override
+    public long getViewCacheHits() {
+        return VIEW_CACHE_HITS.sum();
+    }
+
+    @Override
+    public long getViewCacheMisses() {
+        return VIEW_CACHE_MISSES.sum();
+    }
+}
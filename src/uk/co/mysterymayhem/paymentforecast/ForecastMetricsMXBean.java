@@ -0,0 +1,59 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ForecastMetrics}, registered with the platform MBean server by
+ * {@link PaymentForecastServlet} as {@value ForecastMetrics#OBJECT_NAME}.
+ */
+public interface ForecastMetricsMXBean {
+    long getLinesParsed();
+
+    long getBytesParsed();
+
+    /**
+     * @return lines per second of the most recent parse.
+     */
+    double getLinesPerSecond();
+
+    /**
+     * @return bytes per second of the most recent parse.
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return nanoseconds spent in each stage of parsing and rendering.
+     */
+    Map<String, Long> getStageNanos();
+
+    /**
+     * @return number of lines that failed to parse, by the stage that they failed in.
+     */
+    Map<String, Long> getParseErrors();
+
+    /**
+     * @return milliseconds since the current snapshot was built, -1 if there isn't one.
+     */
+    long getSnapshotAgeMillis();
+
+    long getRequests();
+
+    /**
+     * @return number of requests that failed with an exception before their response could be sent.
+     */
+    long getFailedRequests();
+
+    /**
+     * @return mean, quantiles and maximum of the time taken to respond to requests, in microseconds.
+     */
+    Map<String, Long> getRequestLatencyMicros();
+
+    long getResponseBytes();
+
+    /**
+     * @return number of requests for filtered views that were served from the cache of rendered views.
+     */
+    long getViewCacheHits();
+
+    long getViewCacheMisses();
+}
@@ -0,0 +1,220 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Selection of the rows and columns of the forecast table to respond with, parsed from the query parameters of a
+ * request.
+ * <p>
+ * Parameters are:
+ * <ul>
+ * <li>from - First date to include, e.g. 2017-04-24.</li>
+ * <li>to - Last date to include.</li>
+ * <li>merchant - Ids of the merchants to include, either comma separated or as separate parameters.</li>
+ * <li>limit - Maximum number of dates per page.</li>
+ * <li>page - Page of dates to respond with, starting from 1.</li>
+ * <li>currency - Code of the currency of the amounts to respond with, e.g. EUR.</li>
+ * </ul>
+ * All of the parameters are optional, by default every date and merchant is included, with the amounts in the first
+ * of the accepted currencies.
+ */
+class ForecastQuery {
+    static final ForecastQuery ALL = new ForecastQuery(Integer.MIN_VALUE, Integer.MAX_VALUE, null, 1, Integer.MAX_VALUE, null);
+
+    // Inclusive range of epoch days
+    final int fromDay;
+    final int toDay;
+    // Sorted without duplicates, null for every merchant
+    private final int[] merchantIds;
+    final int page;
+    final int limit;
+    // Upper case currency code, null for the first of the accepted currencies
+    final String currency;
+
+    private ForecastQuery(int fromDay, int toDay, int[] merchantIds, int page, int limit, String currency) {
+        this.fromDay = fromDay;
+        this.toDay = toDay;
+        this.merchantIds = merchantIds;
+        this.page = page;
+        this.limit = limit;
+        this.currency = currency;
+    }
+
+    /**
+     * @param parameters Query parameters of a request, as from {@link javax.servlet.ServletRequest#getParameterMap()}.
+     *                   Unknown parameters are ignored.
+     * @return
+     * @throws IllegalArgumentException If any parameter has an invalid value.
+     */
+    static ForecastQuery parse(Map<String, String[]> parameters) {
+        int fromDay = parseDay(parameters, "from", Integer.MIN_VALUE);
+        int toDay = parseDay(parameters, "to", Integer.MAX_VALUE);
+        int page = parsePositiveInt(parameters, "page", 1);
+        int limit = parsePositiveInt(parameters, "limit", Integer.MAX_VALUE);
+        int[] merchantIds = null;
+        String[] merchantValues = parameters.get("merchant");
+        if (merchantValues != null) {
+            merchantIds = Arrays.stream(merchantValues)
+                    .flatMap(value -> Arrays.stream(value.split(",")))
+                    .map(String::trim)
+                    .filter(id -> !id.isEmpty())
+                    .mapToInt(id -> parseInt("merchant", id))
+                    .sorted()
+                    .distinct()
+                    .toArray();
+        }
+        String currency = lastValue(parameters, "currency");
+        if (currency != null) {
+            currency = currency.trim().toUpperCase(Locale.ROOT);
+            if (currency.isEmpty()) {
+                currency = null;
+            }
+        }
+        return new ForecastQuery(fromDay, toDay, merchantIds, page, limit, currency);
+    }
+
+    private static String lastValue(Map<String, String[]> parameters, String name) {
+        String[] values = parameters.get(name);
+        return values == null || values.length == 0 ? null : values[values.length - 1];
+    }
+
+    private static int parseDay(Map<String, String[]> parameters, String name, int defaultDay) {
+        String value = lastValue(parameters, name);
+        if (value == null) {
+            return defaultDay;
+        }
+        try {
+            return Math.toIntExact(LocalDate.parse(value.trim()).toEpochDay());
+        } catch (DateTimeParseException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid " + name + " date \"" + value + "\", expected yyyy-mm-dd");
+        }
+    }
+
+    private static int parsePositiveInt(Map<String, String[]> parameters, String name, int defaultValue) {
+        String value = lastValue(parameters, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int parsed = parseInt(name, value.trim());
+        if (parsed < 1) {
+            throw new IllegalArgumentException("Invalid " + name + " \"" + value + "\", must be at least 1");
+        }
+        return parsed;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " \"" + value + "\", expected a whole number");
+        }
+    }
+
+    /**
+     * @return true if every row and column is selected, in whichever currency.
+     */
+    boolean isAll() {
+        return this.fromDay == Integer.MIN_VALUE && this.toDay == Integer.MAX_VALUE && this.merchantIds == null
+                && this.page == 1 && this.limit == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Index of the first selected row of a snapshot, found by binary search of its days.
+     *
+     * @param snapshot
+     * @return
+     */
+    int firstRow(ForecastSnapshot snapshot) {
+        int first = lowerBound(snapshot.days, this.fromDay);
+        long pageStart = first + (long) (this.page - 1) * this.limit;
+        return (int) Math.min(pageStart, this.endOfRange(snapshot));
+    }
+
+    /**
+     * Index after the last selected row of a snapshot.
+     *
+     * @param snapshot
+     * @return
+     */
+    int endRow(ForecastSnapshot snapshot) {
+        int firstRow = this.firstRow(snapshot);
+        return (int) Math.min((long) firstRow + this.limit, this.endOfRange(snapshot));
+    }
+
+    private int endOfRange(ForecastSnapshot snapshot) {
+        // Index of the first day after toDay
+        return this.toDay == Integer.MAX_VALUE ? snapshot.days.length : lowerBound(snapshot.days, this.toDay + 1);
+    }
+
+    /**
+     * Indices of the selected columns of a snapshot, in ascending order.
+     *
+     * @param snapshot
+     * @return
+     */
+    int[] columns(ForecastSnapshot snapshot) {
+        if (this.merchantIds == null) {
+            int[] columns = new int[snapshot.merchantIds.length];
+            Arrays.setAll(columns, i -> i);
+            return columns;
+        }
+        // Ids that the snapshot has no payments for have no column, so are left out
+        BitSet selected = new BitSet(snapshot.merchantIds.length);
+        for (int id : this.merchantIds) {
+            int column = Arrays.binarySearch(snapshot.merchantIds, id);
+            if (column >= 0) {
+                selected.set(column);
+            }
+        }
+        return selected.stream().toArray();
+    }
+
+    /**
+     * @param sorted
+     * @param key
+     * @return index of the first element that is not less than key.
+     */
+    private static int lowerBound(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 31 + this.fromDay;
+        hashCode = 31 * hashCode + this.toDay;
+        hashCode = 31 * hashCode + Arrays.hashCode(this.merchantIds);
+        hashCode = 31 * hashCode + this.page;
+        hashCode = 31 * hashCode + this.limit;
+        hashCode = 31 * hashCode + Objects.hashCode(this.currency);
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof ForecastQuery) {
+            ForecastQuery other = (ForecastQuery) obj;
+            return this.fromDay == other.fromDay && this.toDay == other.toDay && Arrays.equals(this.merchantIds, other.merchantIds)
+                    && this.page == other.page && this.limit == other.limit && Objects.equals(this.currency, other.currency);
+        }
+        return false;
+    }
+}
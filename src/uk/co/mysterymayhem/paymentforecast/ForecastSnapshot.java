@@ -0,0 +1,98 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+/**
+ * Everything needed to respond to requests, built from a single parse of the data file.
+ * <p>
+ * Each snapshot holds the amounts of a single currency, the snapshot of the first of the accepted currencies also
+ * holds the snapshots of the others, see {@link #forCurrency(String)}.
+ * <p>
+ * Never modified once built, so a snapshot can be used by any number of requests while the next one is being built.
+ */
+class ForecastSnapshot {
+    private static final ForecastSnapshot[] NO_SNAPSHOTS = new ForecastSnapshot[0];
+
+    // Size and modification time of the data file from just before it was parsed, -1 if it couldn't be read
+    final long sourceSize;
+    final long sourceLastModified;
+    // Currency of the amounts, null if this snapshot only holds an error message
+    final CurrencyUnit currency;
+    final DailyAmounts amounts;
+    // Rows and columns of the table, both sorted
+    final int[] days;
+    final int[] merchantIds;
+    final String[] merchantNames;
+    // Html headers of each merchant, rows are labelled by DateLabels
+    final HtmlTableHeader htmlHeader;
+    // Full page when not streaming the response and encoding it failed, or the error message of a failed snapshot,
+    // otherwise null
+    final String message;
+    // Encoded full page, null if streaming the response or encoding failed
+    final EncodedResponse page;
+    // True if this snapshot only holds an error message
+    final boolean failed;
+    // Snapshots of the rest of the accepted currencies, only held by the snapshot of the first currency
+    private final ForecastSnapshot[] otherCurrencies;
+
+    ForecastSnapshot(long sourceSize, long sourceLastModified, CurrencyUnit currency, DailyAmounts amounts, int[] days,
+                     int[] merchantIds, String[] merchantNames, HtmlTableHeader htmlHeader, String message, EncodedResponse page,
+                     ForecastSnapshot[] otherCurrencies) {
+        this.sourceSize = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+        this.currency = currency;
+        this.amounts = amounts;
+        this.days = days;
+        this.merchantIds = merchantIds;
+        this.merchantNames = merchantNames;
+        this.htmlHeader = htmlHeader;
+        this.message = message;
+        this.page = page;
+        this.failed = false;
+        this.otherCurrencies = otherCurrencies == null ? NO_SNAPSHOTS : otherCurrencies;
+    }
+
+    private ForecastSnapshot(String message) {
+        this.sourceSize = -1;
+        this.sourceLastModified = -1;
+        this.currency = null;
+        this.amounts = new DailyAmounts();
+        this.days = new int[0];
+        this.merchantIds = new int[0];
+        this.merchantNames = new String[0];
+        this.htmlHeader = new HtmlTableHeader(this.merchantNames);
+        this.message = message;
+        this.page = null;
+        this.failed = true;
+        this.otherCurrencies = NO_SNAPSHOTS;
+    }
+
+    /**
+     * Snapshot to use when the data file couldn't be parsed, it is replaced as soon as the data file can be read.
+     *
+     * @param message Message to respond with.
+     * @return
+     */
+    static ForecastSnapshot error(String message) {
+        return new ForecastSnapshot(message);
+    }
+
+    /**
+     * @param code Code of a currency, or null for the first of the accepted currencies.
+     * @return the snapshot of the currency, or null if it isn't accepted. A snapshot that only holds an error message
+     * is returned for any currency.
+     */
+    ForecastSnapshot forCurrency(String code) {
+        if (code == null || this.failed || code.equals(this.currency.code)) {
+            return this;
+        }
+        for (ForecastSnapshot other : this.otherCurrencies) {
+            if (other.currency.code.equals(code)) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    boolean isStreamed() {
+        return this.page == null && this.message == null;
+    }
+}
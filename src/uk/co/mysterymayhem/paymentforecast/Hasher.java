@@ -2,29 +2,69 @@ package uk.co.mysterymayhem.paymentforecast;
 
 import uk.co.mysterymayhem.paymentforecast.DataParser.ParseException;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * Created by Mysteryem on 24/04/2017.
  */
 public class Hasher {
-    private static final MessageDigest SHA_256;
+    /**
+     * Returned by {@link #compareDigestToHex(byte[], int, int)} when the digest matches.
+     */
+    static final int HASH_MATCHES = 0;
+    /**
+     * Returned by {@link #compareDigestToHex(byte[], int, int)} when the digest doesn't match.
+     */
+    static final int HASH_DIFFERS = 1;
+    /**
+     * Returned by {@link #compareDigestToHex(byte[], int, int)} when the bytes aren't 64 plain hex characters.
+     */
+    static final int NOT_PLAIN_HEX = 2;
+
+    // MessageDigest instances are not thread-safe, so each thread gets its own
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(Hasher::newSha256);
     private static final int HASH_STRING_LENGTH = 64;
     private static final int HASH_BYTE_LENGTH = 32;
+    // Value of each ASCII hex character, -1 for everything else
+    private static final byte[] HEX_VALUES = new byte[128];
 
     static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    // Each instance has its own digest and is reused for every record it hashes, so instances must not be shared
+    // between threads
+    private final MessageDigest sha256 = newSha256();
+    private final byte[] digest = new byte[HASH_BYTE_LENGTH];
+
+    private static MessageDigest newSha256() {
         try {
-            SHA_256 = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Unable to find SHA-256 hashing algorithm", e);
         }
     }
 
-    // Note, caching byte arrays of frequently occurring strings may provide a performance benefit
-    // Also, using a single byte array of say, size 512 (or dynamic) to prevent unnecessary object creation may help
     public static byte[] hash(String merchantPubKey, String payerPubKey, String debitPermissionId, String dueEpoc, String amount) {
-        return SHA_256.digest((merchantPubKey + payerPubKey + debitPermissionId + dueEpoc + amount).getBytes());
+        return SHA_256.get().digest((merchantPubKey + payerPubKey + debitPermissionId + dueEpoc + amount).getBytes());
+    }
+
+    /**
+     * @param bytes
+     * @return the SHA-256 hash of the bytes.
+     */
+    static byte[] hash(byte[] bytes) {
+        return SHA_256.get().digest(bytes);
     }
 
     // Each pair of hex characters is one byte
@@ -45,12 +85,88 @@ public class Hasher {
                 // Remember the byte array is half the length
                 bytes[i / 2] = parsedByte;
             } catch (NumberFormatException e) {
-                throw new ParseException("Failed to parse \"" + twoCharacterString + "\" as a hex byte in " + precomputedHash);
+                throw new ParseException("Failed to parse \"%s\" as a hex byte in %s", twoCharacterString, precomputedHash);
             }
         }
         return bytes;
     }
 
+    /**
+     * Start hashing a new record.
+     */
+    void reset() {
+        this.sha256.reset();
+    }
+
+    /**
+     * Add a range of bytes to the record being hashed.
+     * <p>
+     * Only ASCII bytes are added, as they are encoded the same by every charset that the data file could be read with.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @return false if the bytes contain non-ASCII bytes, in which case nothing is added and
+     * {@link #hash(String, String, String, String, String)} should be used instead.
+     */
+    boolean update(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        this.sha256.update(bytes, start, end - start);
+        return true;
+    }
+
+    /**
+     * Finish hashing the record and compare the digest against a hex representation of the expected digest, without
+     * decoding the hex into a separate array.
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @return {@link #HASH_MATCHES}, {@link #HASH_DIFFERS} or {@link #NOT_PLAIN_HEX} if the bytes need parsing by
+     * {@link #fromPreComputedString(String)} instead.
+     */
+    int compareDigestToHex(byte[] bytes, int start, int end) {
+        try {
+            this.sha256.digest(this.digest, 0, HASH_BYTE_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException("Unable to compute SHA-256 digest", e);
+        }
+        if (end - start != HASH_STRING_LENGTH) {
+            return NOT_PLAIN_HEX;
+        }
+        // Every character has to be checked, as an invalid character anywhere takes priority over a mismatch
+        int invalid = 0;
+        int difference = 0;
+        for (int i = 0; i < HASH_BYTE_LENGTH; i++) {
+            int high = hexValue(bytes[start + 2 * i]);
+            int low = hexValue(bytes[start + 2 * i + 1]);
+            invalid |= high | low;
+            difference |= ((high << 4) | low) ^ (this.digest[i] & 0xFF);
+        }
+        if (invalid < 0) {
+            return NOT_PLAIN_HEX;
+        }
+        return difference == 0 ? HASH_MATCHES : HASH_DIFFERS;
+    }
+
+    private static int hexValue(byte b) {
+        return b < 0 ? -1 : HEX_VALUES[b];
+    }
+
+    /**
+     * Returns the digest of the last record compared by {@link #compareDigestToHex(byte[], int, int)}. Reused by the
+     * next record.
+     *
+     * @return
+     */
+    byte[] digest() {
+        return this.digest;
+    }
+
     public static String bytesToNiceString(byte[] bytes) {
         StringBuilder builder = new StringBuilder();
         for (byte b : bytes) {
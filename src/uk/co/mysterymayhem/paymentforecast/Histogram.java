@@ -0,0 +1,101 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, such as latencies, that many threads can record to at once without locking.
+ * <p>
+ * As with HdrHistogram, each power of two is split into a fixed number of equal width buckets, so every value is
+ * counted to within 1/8 (12.5%) of itself using fewer than 500 buckets for the whole range of long.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    // Number of buckets per power of two, values below this each have their own bucket
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value Negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(value, 0);
+        this.counts.incrementAndGet(bucketIndex(value));
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    // Visible for testing
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Number of low bits that are dropped, so that the top SUB_BUCKET_BITS + 1 bits of the value remain
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    // Visible for testing
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * @return number of values recorded.
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    /**
+     * @return mean of the values recorded, 0 if there are none.
+     */
+    double mean() {
+        long count = this.count();
+        return count == 0 ? 0 : (double) this.sum.sum() / count;
+    }
+
+    /**
+     * Values still being recorded while this runs may or may not be included.
+     *
+     * @param percentile Between 0 and 100.
+     * @return a value that at least the percentile of recorded values are less than or equal to, rounded up to the end
+     * of its bucket. 0 if there are no values.
+     */
+    long percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+            total += counts[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return Math.min(highestValueInBucket(i), this.max());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The start of the forecast table up to the end of its header row, for the merchants of a snapshot. Each merchant's
+ * header cell is escaped and encoded once, when the snapshot is built, and the header row of every merchant is kept
+ * whole as well, so writing it is a single copy.
+ * <p>
+ * Never modified once built.
+ */
+class HtmlTableHeader {
+    private static final String TABLE_START = "<table><tr><th>Date</th>";
+    private static final String ROW_END = "</tr>";
+
+    // "<th>name</th>" of each merchant, in the same order as the names
+    private final byte[][] cells;
+    // Table start and the header row with every merchant
+    private final byte[] allColumns;
+
+    /**
+     * @param merchantNames Names of each merchant, in column order.
+     */
+    HtmlTableHeader(String[] merchantNames) {
+        this.cells = new byte[merchantNames.length][];
+        StringBuilder row = new StringBuilder(TABLE_START);
+        for (int i = 0; i < merchantNames.length; i++) {
+            String cell = "<th>" + escape(String.valueOf(merchantNames[i])) + "</th>";
+            this.cells[i] = cell.getBytes(StandardCharsets.UTF_8);
+            row.append(cell);
+        }
+        this.allColumns = row.append(ROW_END).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param writer
+     * @param columns Indices of the merchants to write, in ascending order.
+     * @throws IOException
+     */
+    void writeTo(ResponseWriter writer, int[] columns) throws IOException {
+        // Columns are distinct, so there are only as many as there are merchants when every merchant is selected
+        if (columns.length == this.cells.length) {
+            writer.write(this.allColumns);
+            return;
+        }
+        writer.write(TABLE_START);
+        for (int column : columns) {
+            writer.write(this.cells[column]);
+        }
+        writer.write(ROW_END);
+    }
+
+    /**
+     * @param s
+     * @return s with the characters that are special in html text and attribute values escaped.
+     */
+    static String escape(String s) {
+        StringBuilder builder = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String escaped;
+            switch (c) {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                case '\'':
+                    escaped = "&#39;";
+                    break;
+                default:
+                    escaped = null;
+            }
+            if (escaped != null) {
+                if (builder == null) {
+                    builder = new StringBuilder(s.length() + 16).append(s, 0, i);
+                }
+                builder.append(escaped);
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder == null ? s : builder.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a html table straight to an {@link OutputStream}, so that it can be sent as it is rendered instead of being
+ * built in memory first, as with {@link HtmlTableBuilder}.
+ * <p>
+ * Output is the same as that of {@link HtmlTableBuilder#toString()} for the same headers and cells.
+ */
+class HtmlTableWriter extends ResponseWriter {
+    private static final byte[] ROW_START = "<tr><td>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CELL_END = "</td>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ROW_END = "</tr>".getBytes(StandardCharsets.US_ASCII);
+
+    HtmlTableWriter(OutputStream out, int bufferSize) {
+        super(out, bufferSize);
+    }
+
+    /**
+     * Writes a table with a "Date" column followed by a column for each of the selected merchants, and a row for each
+     * of the selected days.
+     * <p>
+     * Everything but the amounts is already encoded, so only touches shared tables that are never modified and can be
+     * called by any number of threads at once.
+     *
+     * @param amounts     Amounts of each cell, days and merchants without any payments are written as 0.
+     * @param currency    Currency of the amounts.
+     * @param days        Epoch days of each row, labelled by {@link DateLabels}.
+     * @param firstRow    Index of the first day to write.
+     * @param endRow      Index after the last day to write.
+     * @param merchantIds Merchant ids of each column.
+     * @param header      Headers of each column, in the same order as merchantIds.
+     * @param columns     Indices of the merchants to write.
+     * @throws IOException
+     */
+    void writeTable(DailyAmounts amounts, CurrencyUnit currency, int[] days, int firstRow, int endRow,
+                    int[] merchantIds, HtmlTableHeader header, int[] columns) throws IOException {
+        byte[] cellStart = ("<td>" + currency.htmlSymbol).getBytes(StandardCharsets.UTF_8);
+        header.writeTo(this, columns);
+        // Send everything before the rows straight away, so the time to the first byte doesn't depend on the table size
+        this.flush();
+        for (int row = firstRow; row < endRow; row++) {
+            int day = days[row];
+            this.write(ROW_START);
+            this.write(DateLabels.encoded(day));
+            this.write(CELL_END);
+            for (int column : columns) {
+                this.writeMoney(cellStart, amounts.get(day, merchantIds[column]), currency.minorDigits);
+                this.write(CELL_END);
+            }
+            this.write(ROW_END);
+        }
+        this.write("</table>");
+    }
+
+    /**
+     * Writes an amount with its currency symbol, e.g. 1205 pence as "&amp;pound;12.05", the same as
+     * {@code currency.htmlSymbol + Pence.toDecimal(minorUnits, currency.minorDigits)}.
+     *
+     * @param symbol      Encoded html symbol of the currency, along with anything written before it.
+     * @param minorUnits  Must not be negative.
+     * @param minorDigits
+     * @throws IOException
+     */
+    private void writeMoney(byte[] symbol, long minorUnits, int minorDigits) throws IOException {
+        this.write(symbol);
+        this.writeAmount(minorUnits, minorDigits);
+    }
+}
@@ -0,0 +1,288 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Identities of merchants or payers, keyed by id, each with a fixed number of text fields such as a name and public
+ * key.
+ * <p>
+ * Rather than a HashMap of boxed ids to objects holding Strings, ids are kept in an open addressing hash table of ints
+ * and the fields of every entry are packed one after another into a single byte array, as the bytes they were read
+ * from. Fields are compared against the bytes of a line without decoding them, so parsing a line of an already known
+ * merchant or payer allocates nothing.
+ * <p>
+ * Entries are never removed and are numbered from 0 in the order they were added. Not thread-safe.
+ */
+class IdentityTable {
+    // Same charset as the data file is decoded with
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int INITIAL_CAPACITY = 1 << 8;
+    // Bytes allowed per entry before the packed fields are first grown
+    private static final int INITIAL_BYTES_PER_ENTRY = 32;
+
+    private final int fieldCount;
+    private int size;
+    // Open addressing hash table of entry numbers plus one, 0 for unused slots
+    private int[] slots = new int[INITIAL_CAPACITY];
+    // Indexed by entry number
+    private int[] ids = new int[INITIAL_CAPACITY / 2];
+    // fieldEnds[entry * fieldCount + field] is the index in fieldBytes after the end of that field, each field starts
+    // where the one before it ends
+    private int[] fieldEnds;
+    private byte[] fieldBytes;
+
+    /**
+     * @param fieldCount Number of fields of each entry.
+     */
+    IdentityTable(int fieldCount) {
+        this.fieldCount = fieldCount;
+        this.fieldEnds = new int[this.ids.length * fieldCount];
+        this.fieldBytes = new byte[this.ids.length * INITIAL_BYTES_PER_ENTRY];
+    }
+
+    /**
+     * @param id
+     * @return number of the entry with the id, or -1 if there isn't one.
+     */
+    int find(int id) {
+        return this.slots[this.findSlot(id)] - 1;
+    }
+
+    /**
+     * Adds an entry whose fields are consecutive fields of a line.
+     *
+     * @param id         Must not already have an entry.
+     * @param line
+     * @param firstField Field of the line that is the first field of the entry.
+     * @return number of the new entry.
+     */
+    int add(int id, CsvChunkReader line, int firstField) {
+        int entry = this.addId(id);
+        for (int field = 0; field < this.fieldCount; field++) {
+            int lineField = firstField + field;
+            this.appendField(entry, field, line.bytes(), line.fieldStart(lineField), line.fieldEnd(lineField));
+        }
+        return entry;
+    }
+
+    /**
+     * Adds every entry of another table whose id doesn't already have an entry in this one.
+     *
+     * @param other Must have the same number of fields.
+     */
+    void addAll(IdentityTable other) {
+        for (int otherEntry = 0; otherEntry < other.size; otherEntry++) {
+            int id = other.ids[otherEntry];
+            if (this.find(id) == -1) {
+                int entry = this.addId(id);
+                for (int field = 0; field < this.fieldCount; field++) {
+                    this.appendField(entry, field, other.fieldBytes, other.fieldStart(otherEntry, field), other.fieldEnd(otherEntry, field));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param other Must have the same number of fields.
+     * @return true if any id has an entry in both tables with different fields.
+     */
+    boolean conflictsWith(IdentityTable other) {
+        for (int otherEntry = 0; otherEntry < other.size; otherEntry++) {
+            int entry = this.find(other.ids[otherEntry]);
+            if (entry != -1) {
+                for (int field = 0; field < this.fieldCount; field++) {
+                    if (!this.fieldEquals(entry, field, other.fieldBytes, other.fieldStart(otherEntry, field), other.fieldEnd(otherEntry, field))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param entry
+     * @param field
+     * @param bytes
+     * @param start
+     * @param end
+     * @return true if the field of the entry is exactly the same bytes as the range.
+     */
+    boolean fieldEquals(int entry, int field, byte[] bytes, int start, int end) {
+        int fieldStart = this.fieldStart(entry, field);
+        int length = this.fieldEnd(entry, field) - fieldStart;
+        if (length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.fieldBytes[fieldStart + i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param entry
+     * @param field
+     * @return the field decoded in the same way as {@link CsvChunkReader#fieldString(int)}.
+     */
+    String field(int entry, int field) {
+        int fieldStart = this.fieldStart(entry, field);
+        return new String(this.fieldBytes, fieldStart, this.fieldEnd(entry, field) - fieldStart, CHARSET);
+    }
+
+    /**
+     * @param entry
+     * @param field
+     * @return a copy of the field, not yet decoded, see {@link CsvChunkReader#decode(byte[])}.
+     */
+    byte[] fieldBytes(int entry, int field) {
+        return Arrays.copyOfRange(this.fieldBytes, this.fieldStart(entry, field), this.fieldEnd(entry, field));
+    }
+
+    int id(int entry) {
+        return this.ids[entry];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void clear() {
+        this.size = 0;
+        Arrays.fill(this.slots, 0);
+    }
+
+    /**
+     * @param out
+     * @throws IOException
+     * @see #readFrom(ByteBuffer)
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (int entry = 0; entry < this.size; entry++) {
+            out.writeInt(this.ids[entry]);
+            for (int field = 0; field < this.fieldCount; field++) {
+                int fieldStart = this.fieldStart(entry, field);
+                int length = this.fieldEnd(entry, field) - fieldStart;
+                out.writeInt(length);
+                out.write(this.fieldBytes, fieldStart, length);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries written by {@link #writeTo(DataOutput)} of a table with the same number of fields.
+     *
+     * @param in
+     */
+    void readFrom(ByteBuffer in) {
+        for (int i = in.getInt(); i > 0; i--) {
+            int entry = this.addId(in.getInt());
+            for (int field = 0; field < this.fieldCount; field++) {
+                int length = in.getInt();
+                int fieldStart = this.reserveField(entry, field, length);
+                in.get(this.fieldBytes, fieldStart, length);
+            }
+        }
+    }
+
+    private int fieldStart(int entry, int field) {
+        int index = entry * this.fieldCount + field;
+        return index == 0 ? 0 : this.fieldEnds[index - 1];
+    }
+
+    private int fieldEnd(int entry, int field) {
+        return this.fieldEnds[entry * this.fieldCount + field];
+    }
+
+    private int addId(int id) {
+        if ((this.size + 1) * 2 > this.slots.length) {
+            this.rehash(this.slots.length * 2);
+        }
+        int entry = this.size++;
+        if (entry == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, entry * 2);
+            this.fieldEnds = Arrays.copyOf(this.fieldEnds, entry * 2 * this.fieldCount);
+        }
+        this.ids[entry] = id;
+        this.slots[this.findSlot(id)] = entry + 1;
+        return entry;
+    }
+
+    private void appendField(int entry, int field, byte[] bytes, int start, int end) {
+        int fieldStart = this.reserveField(entry, field, end - start);
+        System.arraycopy(bytes, start, this.fieldBytes, fieldStart, end - start);
+    }
+
+    /**
+     * Must be called for each field of a new entry in order.
+     *
+     * @return index in fieldBytes to copy the field to.
+     */
+    private int reserveField(int entry, int field, int length) {
+        int fieldStart = this.fieldStart(entry, field);
+        int fieldEnd = fieldStart + length;
+        if (fieldEnd > this.fieldBytes.length) {
+            this.fieldBytes = Arrays.copyOf(this.fieldBytes, Math.max(fieldEnd, this.fieldBytes.length * 2));
+        }
+        this.fieldEnds[entry * this.fieldCount + field] = fieldEnd;
+        return fieldStart;
+    }
+
+    private int findSlot(int id) {
+        int mask = this.slots.length - 1;
+        int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (this.slots[slot] != 0 && this.ids[this.slots[slot] - 1] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        this.slots = new int[capacity];
+        for (int entry = 0; entry < this.size; entry++) {
+            this.slots[this.findSlot(this.ids[entry])] = entry + 1;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof IdentityTable) {
+            IdentityTable other = (IdentityTable) obj;
+            if (this.size != other.size || this.fieldCount != other.fieldCount) {
+                return false;
+            }
+            // Entries may have been added in a different order
+            for (int entry = 0; entry < this.size; entry++) {
+                if (other.find(this.ids[entry]) == -1) {
+                    return false;
+                }
+            }
+            return !this.conflictsWith(other);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        // Independent of the order that entries were added
+        int hashCode = 0;
+        for (int entry = 0; entry < this.size; entry++) {
+            int entryHashCode = this.ids[entry];
+            for (int i = this.fieldStart(entry, 0); i < this.fieldEnd(entry, this.fieldCount - 1); i++) {
+                entryHashCode = 31 * entryHashCode + this.fieldBytes[i];
+            }
+            hashCode += entryHashCode;
+        }
+        return hashCode;
+    }
+}
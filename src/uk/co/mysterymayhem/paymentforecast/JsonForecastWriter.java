@@ -0,0 +1,88 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the forecast as JSON straight to an {@link OutputStream}, one day at a time, e.g.
+ * <pre>
+ * {"currency":"GBP","merchants":[{"id":1,"name":"Merchant"}],"days":[{"date":"2017-04-24","amounts":[12.05]}]}
+ * </pre>
+ * The amounts of each day are in the same order as the merchants, and are in the major unit of their currency with
+ * exactly as many decimal places as its minor unit has, e.g. pounds with two decimal places.
+ */
+class JsonForecastWriter extends ResponseWriter {
+
+    JsonForecastWriter(OutputStream out, int bufferSize) {
+        super(out, bufferSize);
+    }
+
+    /**
+     * @param amounts       Amounts of each day and merchant, days and merchants without any payments are written as 0.
+     * @param currency      Currency of the amounts.
+     * @param days          Epoch days of each row.
+     * @param firstRow      Index of the first day to write.
+     * @param endRow        Index after the last day to write.
+     * @param merchantIds   Merchant ids of each column.
+     * @param merchantNames Names of each merchant, in the same order as merchantIds.
+     * @param columns       Indices of the merchants to write.
+     * @throws IOException
+     */
+    void writeForecast(DailyAmounts amounts, CurrencyUnit currency, int[] days, int firstRow, int endRow,
+                       int[] merchantIds, String[] merchantNames, int[] columns) throws IOException {
+        this.write("{\"currency\":\"");
+        this.write(currency.code);
+        this.write("\",\"merchants\":[");
+        for (int i = 0; i < columns.length; i++) {
+            if (i != 0) {
+                this.write(",");
+            }
+            this.write("{\"id\":");
+            this.write(Integer.toString(merchantIds[columns[i]]));
+            this.write(",\"name\":\"");
+            this.write(escape(merchantNames[columns[i]]));
+            this.write("\"}");
+        }
+        this.write("],\"days\":[");
+        this.flush();
+        for (int row = firstRow; row < endRow; row++) {
+            int day = days[row];
+            this.write(row == firstRow ? "{\"date\":\"" : ",{\"date\":\"");
+            this.writeIsoDate(day);
+            this.write("\",\"amounts\":[");
+            for (int i = 0; i < columns.length; i++) {
+                if (i != 0) {
+                    this.write(",");
+                }
+                this.writeAmount(amounts.get(day, merchantIds[columns[i]]), currency.minorDigits);
+            }
+            this.write("]}");
+        }
+        this.write("]}");
+    }
+
+    /**
+     * @param s
+     * @return s with any characters that can't appear in a JSON string escaped.
+     */
+    // Visible for testing
+    static String escape(String s) {
+        StringBuilder builder = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (builder == null) {
+                    builder = new StringBuilder(s.length() + 16).append(s, 0, i);
+                }
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else {
+                    builder.append(String.format("\\u%04x", (int) c));
+                }
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder == null ? s : builder.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a file into memory mapped chunks that each end on a line boundary, so that each chunk can be read by its own
+ * {@link CsvChunkReader}, possibly on separate threads.
+ * <p>
+ * Chunks are only split after a '\n', so a "\r\n" line terminator is never split across two chunks. A chunk is made
+ * larger than the requested size when there is no '\n' in it.
+ */
+class MappedCsvFile implements CsvChunkSource {
+    // Limit of a single MappedByteBuffer
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    // Start of the next chunk
+    private long position;
+
+    MappedCsvFile(Path path, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = this.channel.size();
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean skipLine() throws IOException {
+        long regionSize = this.chunkSize;
+        while (this.position < this.size) {
+            MappedByteBuffer region = this.map(regionSize);
+            int limit = region.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = region.get(i);
+                if (b == '\n') {
+                    this.position += i + 1;
+                    return true;
+                }
+                if (b == '\r') {
+                    if (i + 1 < limit) {
+                        this.position += region.get(i + 1) == '\n' ? i + 2 : i + 1;
+                        return true;
+                    }
+                    if (this.position + limit == this.size) {
+                        this.position = this.size;
+                        return true;
+                    }
+                    // '\r' is the last byte of the region, so map a larger region to check if "\r\n" follows
+                    break;
+                }
+            }
+            if (this.position + limit == this.size) {
+                // Only line has no line terminator
+                this.position = this.size;
+                return true;
+            }
+            regionSize = this.nextRegionSize(regionSize);
+        }
+        return false;
+    }
+
+    /**
+     * Maps the next chunk of the file.
+     *
+     * @return the next chunk or null if the end of the file has been reached.
+     * @throws IOException
+     */
+    MappedByteBuffer nextChunk() throws IOException {
+        return this.nextChunk(false);
+    }
+
+    @Override
+    public MappedByteBuffer nextChunk(boolean completeLinesOnly) throws IOException {
+        long regionSize = this.chunkSize;
+        while (this.position < this.size) {
+            MappedByteBuffer region = this.map(regionSize);
+            int limit = region.limit();
+            boolean endOfFile = this.position + limit == this.size;
+            if (endOfFile && !completeLinesOnly) {
+                this.position = this.size;
+                return region;
+            }
+            for (int i = limit - 1; i >= 0; i--) {
+                if (region.get(i) == '\n') {
+                    region.limit(i + 1);
+                    this.position += i + 1;
+                    return region;
+                }
+            }
+            if (endOfFile) {
+                return null;
+            }
+            regionSize = this.nextRegionSize(regionSize);
+        }
+        return null;
+    }
+
+    /**
+     * @return offset in the file of the start of the next chunk.
+     */
+    @Override
+    public long position() {
+        return this.position;
+    }
+
+    @Override
+    public long filePosition() {
+        return this.position;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    private MappedByteBuffer map(long regionSize) throws IOException {
+        return this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, Math.min(regionSize, this.size - this.position));
+    }
+
+    private long nextRegionSize(long regionSize) throws IOException {
+        if (regionSize >= MAX_MAPPED_SIZE) {
+            throw new IOException("Line starting at byte " + this.position + " is too long to be mapped");
+        }
+        return Math.min(regionSize * 2, MAX_MAPPED_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Buffers that have already been mapped remain valid after the channel is closed
+        this.channel.close();
+    }
+}
@@ -5,6 +5,9 @@ import java.util.Objects;
 /**
  * Data that must be constant for each merchant.
  * This assumes that a specific id has a constant name and public key
+ * <p>
+ * Parsed merchant data is held in an {@link IdentityTable}, this is only used to describe merchant data in parse
+ * errors.
  * Created by Mysteryem on 25/04/2017.
  */
 public class MerchantData {
@@ -32,19 +35,6 @@ public class MerchantData {
         return false;
     }
 
-    /**
-     * Convenience method for comparisons prior to constructing a new instance. This should be a minimal timesave where
-     * it is not necessary to construct a new MerchantData beforehand.
-     *
-     * @param id
-     * @param name
-     * @param publicKey
-     * @return
-     */
-    public boolean matches(Integer id, String name, String publicKey) {
-        return this.id.equals(id) && this.name.equals(name) && this.publicKey.equals(publicKey);
-    }
-
     @Override
     public int hashCode() {
         return Objects.hash(this.id, this.name, this.publicKey);
@@ -0,0 +1,45 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+/**
+ * A line of a data file that failed to parse.
+ * <p>
+ * Only what is needed to describe the error is recorded while parsing, the value and message are decoded and formatted
+ * when the error is written.
+ */
+class ParseError {
+    // Index of the line within the chunk of the file that it was parsed from
+    final int lineIndex;
+    // Stage of parsing that failed
+    final ForecastMetrics.Stage code;
+    // Name of the field that was being parsed, null if the line couldn't be split into the expected fields
+    final String field;
+    // Value of the field as it was encoded in the file, null if there is no field
+    private final byte[] value;
+    private final DataParser.ParseException exception;
+
+    ParseError(int lineIndex, ForecastMetrics.Stage code, String field, byte[] value, DataParser.ParseException exception) {
+        this.lineIndex = lineIndex;
+        this.code = code;
+        this.field = field;
+        this.value = value;
+        this.exception = exception;
+    }
+
+    /**
+     * @return the value of the field, null if there is no field.
+     */
+    String value() {
+        return this.value == null ? null : CsvChunkReader.decode(this.value);
+    }
+
+    String message() {
+        return this.exception.getMessage();
+    }
+
+    /**
+     * @return the message before its arguments are filled in, which is the same for every error of the same kind.
+     */
+    String template() {
+        return this.exception.template;
+    }
+}
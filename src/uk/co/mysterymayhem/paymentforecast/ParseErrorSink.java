@@ -0,0 +1,272 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes parse errors to a stream on a separate writer thread, so that parsing doesn't wait for each error to be
+ * written.
+ * <p>
+ * Errors are reported in batches, one per chunk of the data file, and are written in the order that they are reported.
+ * Batches wait in a bounded queue, so reporting only blocks when the writer has fallen a long way behind.
+ * <p>
+ * The number of errors written of each kind can be capped, in which case the number of errors of each kind that weren't
+ * written is summarised once the sink is closed. Errors are of the same kind when they have the same error code, field
+ * and message template, so that one common kind of error can't hide the other kinds that share its code, e.g. every
+ * kind of amount error.
+ */
+class ParseErrorSink implements Closeable {
+    enum Format {
+        // "Failed to parse line n: message", or "Failed to parse line n of file: message" when there is more than one
+        // data file, one per error
+        TEXT,
+        // One JSON object per line, with the file if there is more than one data file, and the line number, error code,
+        // field, value and message of each error
+        JSON
+    }
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    // Number of batches that can be waiting to be written
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Marks the end of the batches
+    private static final Batch END = new Batch(null, 0, null);
+
+    private final Format format;
+    private final int maxErrorsPerKind;
+    private final Writer writer;
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Number of errors of each kind that have been reported, in the order that each kind was first reported, only used
+    // by the writer thread
+    private final Map<Kind, long[]> reported = new LinkedHashMap<>();
+    private final Thread writerThread;
+    // Set by the writer thread if writing fails, after which further errors are discarded
+    private volatile IOException failure;
+    private boolean closed;
+    // Name of the data file that errors are currently being reported for, only used by the reporting thread
+    private String source;
+
+    /**
+     * @param out              Stream to write to. It's flushed, but not closed, when the sink is closed.
+     * @param format
+     * @param maxErrorsPerKind Maximum number of errors to write of each kind, {@link #UNLIMITED} to write all of them.
+     */
+    ParseErrorSink(OutputStream out, Format format, int maxErrorsPerKind) {
+        this.format = format;
+        this.maxErrorsPerKind = maxErrorsPerKind;
+        // Encoded with the default charset, the same as a PrintStream, and not closed along with the writer
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.flush();
+            }
+        }, Charset.defaultCharset()), WRITE_BUFFER_SIZE);
+        this.writerThread = new Thread(this::writeBatches, "payment-forecast-error-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @param source Name of the data file that errors reported afterwards are from, null when there is only one data
+     *               file.
+     */
+    void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Queue errors to be written, waiting if the queue is full.
+     *
+     * @param firstLineNumber Line number of the first line of the chunk that the errors are from.
+     * @param errors          Not modified afterwards by the caller.
+     */
+    void report(int firstLineNumber, List<ParseError> errors) {
+        if (errors.isEmpty()) {
+            return;
+        }
+        try {
+            this.queue.put(new Batch(this.source, firstLineNumber, errors));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reporting parse errors", e);
+        }
+    }
+
+    /**
+     * Waits for every reported error to be written, then writes the summary of any errors that weren't written and
+     * flushes.
+     *
+     * @throws IOException If writing any of the errors failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.queue.put(END);
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing parse errors");
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        this.writer.close();
+    }
+
+    private void writeBatches() {
+        try {
+            Batch batch;
+            while ((batch = this.queue.take()) != END) {
+                if (this.failure != null) {
+                    continue;
+                }
+                try {
+                    for (ParseError error : batch.errors) {
+                        if (this.maxErrorsPerKind == UNLIMITED || this.count(error) <= this.maxErrorsPerKind) {
+                            this.write(batch.source, batch.firstLineNumber + error.lineIndex, error);
+                        }
+                    }
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            if (this.failure == null) {
+                try {
+                    this.writeSuppressed();
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            this.failure = new InterruptedIOException("Interrupted while writing parse errors");
+        }
+    }
+
+    private void write(String source, int lineNumber, ParseError error) throws IOException {
+        if (this.format == Format.TEXT) {
+            this.writer.write(DataParser.formatParseError(source, lineNumber, error.message()));
+            this.writer.write(System.lineSeparator());
+            return;
+        }
+        if (source != null) {
+            this.writer.write("{\"file\":\"");
+            this.writer.write(JsonForecastWriter.escape(source));
+            this.writer.write("\",\"line\":");
+        } else {
+            this.writer.write("{\"line\":");
+        }
+        this.writer.write(Integer.toString(lineNumber));
+        this.writer.write(",\"code\":\"");
+        this.writer.write(error.code.label);
+        this.writer.write('"');
+        if (error.field != null) {
+            this.writer.write(",\"field\":\"");
+            this.writer.write(error.field);
+            this.writer.write("\",\"value\":\"");
+            this.writer.write(JsonForecastWriter.escape(error.value()));
+            this.writer.write('"');
+        }
+        this.writer.write(",\"message\":\"");
+        this.writer.write(JsonForecastWriter.escape(error.message()));
+        this.writer.write("\"}\n");
+    }
+
+    /**
+     * @param error
+     * @return the number of errors of the same kind as the error that have been reported, including the error.
+     */
+    private long count(ParseError error) {
+        long[] count = this.reported.computeIfAbsent(new Kind(error), kind -> new long[1]);
+        return ++count[0];
+    }
+
+    private void writeSuppressed() throws IOException {
+        for (Map.Entry<Kind, long[]> entry : this.reported.entrySet()) {
+            long suppressed = entry.getValue()[0] - this.maxErrorsPerKind;
+            if (suppressed <= 0) {
+                continue;
+            }
+            Kind kind = entry.getKey();
+            if (this.format == Format.TEXT) {
+                this.writer.write(suppressed + " more " + kind.code.label + " errors" + (kind.field != null ? " in " + kind.field : "")
+                        + " were not written, with the message " + kind.template);
+                this.writer.write(System.lineSeparator());
+                continue;
+            }
+            this.writer.write("{\"code\":\"");
+            this.writer.write(kind.code.label);
+            if (kind.field != null) {
+                this.writer.write("\",\"field\":\"");
+                this.writer.write(kind.field);
+            }
+            this.writer.write("\",\"template\":\"");
+            this.writer.write(JsonForecastWriter.escape(kind.template));
+            this.writer.write("\",\"suppressed\":" + suppressed + "}\n");
+        }
+    }
+
+    /**
+     * Error code, field and message template of an error.
+     */
+    private static class Kind {
+        final ForecastMetrics.Stage code;
+        // Null if there is no field
+        final String field;
+        final String template;
+
+        Kind(ParseError error) {
+            this.code = error.code;
+            this.field = error.field;
+            this.template = error.template();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Kind)) {
+                return false;
+            }
+            Kind other = (Kind) obj;
+            return this.code == other.code && Objects.equals(this.field, other.field) && this.template.equals(other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.code.hashCode() * 31 + Objects.hashCode(this.field)) * 31 + this.template.hashCode();
+        }
+    }
+
+    private static class Batch {
+        final String source;
+        final int firstLineNumber;
+        final List<ParseError> errors;
+
+        Batch(String source, int firstLineNumber, List<ParseError> errors) {
+            this.source = source;
+            this.firstLineNumber = firstLineNumber;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The part of a data file that has already been parsed, so that lines appended to the file afterwards can be parsed on
+ * their own.
+ * <p>
+ * Files are only expected to be appended to, so to check that the parsed part of a file hasn't been rewritten, only
+ * checksums of its first and last few KB are compared instead of reading the whole of it again.
+ */
+class ParsedPrefix {
+    // Number of bytes at each end of the prefix that are checksummed
+    private static final int CHECKSUM_WINDOW = 64 * 1024;
+
+    // Offset of the first byte that hasn't been parsed, always the start of a line
+    final long offset;
+    // Line number of the line starting at offset
+    final int nextLineNumber;
+    private final long headChecksum;
+    private final long tailChecksum;
+
+    private ParsedPrefix(long offset, int nextLineNumber, long headChecksum, long tailChecksum) {
+        this.offset = offset;
+        this.nextLineNumber = nextLineNumber;
+        this.headChecksum = headChecksum;
+        this.tailChecksum = tailChecksum;
+    }
+
+    /**
+     * @param path           Parsed file.
+     * @param offset         Number of bytes of the file that have been parsed.
+     * @param nextLineNumber Line number of the first line that hasn't been parsed.
+     * @return
+     * @throws IOException
+     */
+    static ParsedPrefix of(Path path, long offset, int nextLineNumber) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ParsedPrefix(offset, nextLineNumber, headChecksum(channel, offset), tailChecksum(channel, offset));
+        }
+    }
+
+    /**
+     * @param out
+     * @throws IOException
+     * @see #readFrom(ByteBuffer)
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(this.offset);
+        out.writeInt(this.nextLineNumber);
+        out.writeLong(this.headChecksum);
+        out.writeLong(this.tailChecksum);
+    }
+
+    /**
+     * @param in
+     * @return a prefix previously written by {@link #writeTo(DataOutput)}.
+     */
+    static ParsedPrefix readFrom(ByteBuffer in) {
+        return new ParsedPrefix(in.getLong(), in.getInt(), in.getLong(), in.getLong());
+    }
+
+    /**
+     * Checks that a file still starts with the bytes that have been parsed, meaning that it has at most been appended
+     * to since.
+     *
+     * @param path
+     * @return false if the file is shorter than the parsed part or its start has changed.
+     * @throws IOException
+     */
+    boolean isPrefixOf(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.size() >= this.offset
+                    && headChecksum(channel, this.offset) == this.headChecksum
+                    && tailChecksum(channel, this.offset) == this.tailChecksum;
+        }
+    }
+
+    private static long headChecksum(FileChannel channel, long offset) throws IOException {
+        return checksum(channel, 0, Math.min(offset, CHECKSUM_WINDOW));
+    }
+
+    private static long tailChecksum(FileChannel channel, long offset) throws IOException {
+        long start = Math.max(0, offset - CHECKSUM_WINDOW);
+        return checksum(channel, start, offset - start);
+    }
+
+    private static long checksum(FileChannel channel, long start, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) == -1) {
+                // Shorter than expected, so can't match
+                return -1;
+            }
+        }
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,170 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary file holding everything that {@link DataParser} has parsed from a data file, so that a restarted servlet can
+ * restore it instead of parsing the data file again.
+ * <p>
+ * The file starts with a header identifying the format version, the data file it was parsed from, the currencies that
+ * were accepted and whether duplicates were detected, followed by the parsed data and a CRC32 of everything before it.
+ * Files of a different version, that are corrupt, that were parsed with different settings or from a data file that has
+ * since changed are ignored.
+ */
+class ParsedStateFile {
+    // "PFST"
+    private static final int MAGIC = 0x50465354;
+    // Must be incremented whenever the format changes
+    private static final int VERSION = 4;
+    private static final int CHECKSUM_LENGTH = Long.BYTES;
+
+    // Size and modification time of the data file from just before it was parsed
+    final long sourceSize;
+    final long sourceLastModified;
+    // Part of the data file that was parsed
+    final ParsedPrefix prefix;
+    // True if only complete lines were parsed, see DataParser.parseAppendedLines
+    final boolean completeLinesOnly;
+    private final ByteBuffer parsedState;
+
+    private ParsedStateFile(long sourceSize, long sourceLastModified, ParsedPrefix prefix, boolean completeLinesOnly, ByteBuffer parsedState) {
+        this.sourceSize = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+        this.prefix = prefix;
+        this.completeLinesOnly = completeLinesOnly;
+        this.parsedState = parsedState;
+    }
+
+    /**
+     * Writes the data currently parsed by {@link DataParser}. The file is replaced atomically, so a file that is only
+     * partially written is never read.
+     *
+     * @param path
+     * @param sourceSize         Size of the data file from just before it was parsed.
+     * @param sourceLastModified Modification time of the data file from just before it was parsed.
+     * @param prefix             Part of the data file that was parsed.
+     * @param completeLinesOnly  True if the data file was parsed by DataParser.parseAppendedLines.
+     * @throws IOException
+     */
+    static void write(Path path, long sourceSize, long sourceLastModified, ParsedPrefix prefix, boolean completeLinesOnly) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath), 64 * 1024), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceLastModified);
+            prefix.writeTo(out);
+            out.writeBoolean(completeLinesOnly);
+            CurrencyUnit[] currencies = DataParser.currencies();
+            out.writeInt(currencies.length);
+            for (CurrencyUnit currency : currencies) {
+                writeString(out, currency.code);
+                out.writeInt(currency.minorDigits);
+            }
+            out.writeBoolean(DataParser.detectsDuplicates());
+            DataParser.writeParsedState(out);
+            // Read before writing the checksum itself, which also updates the CRC
+            out.writeLong(crc.getValue());
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory maps a file written by {@link #write(Path, long, long, ParsedPrefix, boolean)} and checks its header and
+     * checksum.
+     *
+     * @param path
+     * @return the file or null if it doesn't exist, is of a different version, is corrupt or was parsed with different
+     * currencies or duplicate detection to that currently used by {@link DataParser}.
+     * @throws IOException
+     */
+    static ParsedStateFile read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < CHECKSUM_LENGTH || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int contentLength = buffer.limit() - CHECKSUM_LENGTH;
+        ByteBuffer content = buffer.duplicate();
+        content.limit(contentLength);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (crc.getValue() != buffer.getLong(contentLength)) {
+            return null;
+        }
+        buffer.limit(contentLength);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long sourceSize = buffer.getLong();
+            long sourceLastModified = buffer.getLong();
+            ParsedPrefix prefix = ParsedPrefix.readFrom(buffer);
+            boolean completeLinesOnly = buffer.get() != 0;
+            CurrencyUnit[] currencies = new CurrencyUnit[buffer.getInt()];
+            for (int i = 0; i < currencies.length; i++) {
+                currencies[i] = new CurrencyUnit(readString(buffer), buffer.getInt());
+            }
+            boolean detectsDuplicates = buffer.get() != 0;
+            if (!Arrays.equals(currencies, DataParser.currencies()) || detectsDuplicates != DataParser.detectsDuplicates()) {
+                return null;
+            }
+            return new ParsedStateFile(sourceSize, sourceLastModified, prefix, completeLinesOnly, buffer.slice());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the data file hasn't changed at all since it was parsed.
+     *
+     * @param dataPath
+     * @return
+     * @throws IOException
+     */
+    boolean isUnchanged(Path dataPath) throws IOException {
+        return Files.size(dataPath) == this.sourceSize
+                && Files.getLastModifiedTime(dataPath).toMillis() == this.sourceLastModified
+                && this.prefix.isPrefixOf(dataPath);
+    }
+
+    /**
+     * Replaces the data parsed by {@link DataParser} with the data in this file.
+     */
+    void restore() {
+        DataParser.readParsedState(this.parsedState.duplicate());
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
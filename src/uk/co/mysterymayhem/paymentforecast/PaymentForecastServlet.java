@@ -1,22 +1,30 @@
 package uk.co.mysterymayhem.paymentforecast;
 
+import javax.management.JMException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static uk.co.mysterymayhem.paymentforecast.DataParser.printTimeStampedLine;
 
@@ -25,6 +33,7 @@ import static uk.co.mysterymayhem.paymentforecast.DataParser.printTimeStampedLin
  */
 public class PaymentForecastServlet extends HttpServlet {
 
+    // A single .csv or .csv.gz data file, or a directory or glob of data files, see DataFileSet
     // Visible for testing
     String filePath;
     // Visible for testing
@@ -32,13 +41,71 @@ public class PaymentForecastServlet extends HttpServlet {
     // Visible for testing
     String runtimeLogPath;
     // Visible for testing
-    String message;
+    int parserThreads = Runtime.getRuntime().availableProcessors();
+    // Visible for testing
+    boolean streamResponse;
+    // How often to check the data file for changes, 0 to never reload it
+    // Visible for testing
+    long reloadIntervalMillis;
+    // When the data file is only ever appended to, reloads only parse the lines added since the previous parse
+    // Visible for testing
+    boolean appendOnly;
+    // Where to save the parsed data so that it can be restored on the next start, null to always parse the data file
+    // Visible for testing
+    String parsedStatePath;
+    // Format of the parse error file
+    // Visible for testing
+    ParseErrorSink.Format parseErrorFormat = ParseErrorSink.Format.TEXT;
+    // Maximum number of parse errors written of each kind, meaning each error code, field and message template, the rest
+    // are only counted
+    // Visible for testing
+    int maxParseErrorsPerKind = ParseErrorSink.UNLIMITED;
+    // Currencies that payments are accepted in, the first is the one responded with by default
+    // Visible for testing
+    CurrencyUnit[] currencies = {CurrencyUnit.GBP};
+    // Records with the same SHA256 hash as an earlier record are reported as duplicates and not counted again
+    // Visible for testing
+    boolean detectDuplicates = true;
+    // Front the hashes of the records parsed with a Bloom filter, worthwhile once there are millions of records
+    // Visible for testing
+    boolean duplicateBloomFilter;
+    // Respond asynchronously, sending bodies without blocking so that slow clients don't each hold a container thread
+    // Visible for testing
+    boolean asyncOutput;
+    // When asyncOutput, render responses on virtual threads rather than the container's threads, if the JVM has them
+    // Visible for testing
+    boolean virtualThreads;
+    // Budget in bytes of the cache of rendered filtered views and JSON/.csv responses, 0 to render every one
+    // Visible for testing
+    long viewCacheBytes = 64L * 1024 * 1024;
+    // Replaced as a whole when the data file is reloaded, so a request always sees one complete snapshot
+    // Visible for testing
+    volatile ForecastSnapshot snapshot;
 
     private ServletConfig config;
+    private PrintStream runtimeLogStream;
+    private ScheduledExecutorService reloader;
+    // Runs asynchronous responses when virtualThreads, null to run them on the container's threads
+    private ExecutorService responder;
+    // Null when viewCacheBytes is 0
+    private RenderedViewCache viewCache;
+    // Size and modification time of the data file the last time it was seen to have changed, only used by the reloader
+    private long changedSize = -1;
+    private long changedLastModified = -1;
+    // Part of the data file parsed so far when appendOnly, only used by whichever thread is building snapshots
+    private ParsedPrefix parsedPrefix;
+    // True if filePath is a directory or glob
+    private boolean multiFile;
+    // Data files parsed so far when multiFile, only used by whichever thread is building snapshots
+    private Map<Path, DataParser.ParsedFile> parsedFiles = Collections.emptyMap();
+    // True if this servlet registered the metrics MBean, so should unregister it
+    private boolean registeredMetrics;
+
+    // Asynchronous responses that take longer than this to send are given up on
+    private static final long ASYNC_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
     // @formatter:off
-    private static void prependHtml(StringBuilder builder) {
-        builder.append(
+    private static final String HTML_PREFIX =
                 "<html>" +
                     "<head>" +
                         "<style>" +
@@ -57,101 +124,611 @@ public class PaymentForecastServlet extends HttpServlet {
                             "}" +
                         "</style>" +
                     "</head>" +
-                    "<body>");
-    }
+                    "<body>";
 
-    private static void appendHtml(StringBuilder builder) {
-        builder.append(
+    private static final String HTML_SUFFIX =
                     "</body>" +
-                "</html>");
-    }
+                "</html>";
     // @formatter:on
 
     @Override
     public void init(ServletConfig config) throws ServletException {
         this.config = config;
-        this.filePath = config.getServletContext().getRealPath("payment-forecast-data.csv");
+        String dataPathString = config.getInitParameter("dataPath");
+        this.filePath = dataPathString != null ? dataPathString : config.getServletContext().getRealPath("payment-forecast-data.csv");
+        String parserThreadsString = config.getInitParameter("parserThreads");
+        if (parserThreadsString != null) {
+            this.parserThreads = Integer.parseInt(parserThreadsString);
+        }
+        this.streamResponse = Boolean.parseBoolean(config.getInitParameter("streamResponse"));
+        String reloadIntervalString = config.getInitParameter("reloadIntervalSeconds");
+        if (reloadIntervalString != null) {
+            this.reloadIntervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(reloadIntervalString));
+        }
+        this.appendOnly = Boolean.parseBoolean(config.getInitParameter("appendOnly"));
+        String parseErrorFormatString = config.getInitParameter("parseErrorFormat");
+        if (parseErrorFormatString != null) {
+            this.parseErrorFormat = ParseErrorSink.Format.valueOf(parseErrorFormatString.toUpperCase(Locale.ROOT));
+        }
+        String maxParseErrorsString = config.getInitParameter("maxParseErrorsPerKind");
+        if (maxParseErrorsString != null) {
+            this.maxParseErrorsPerKind = Integer.parseInt(maxParseErrorsString);
+        }
+        String currenciesString = config.getInitParameter("currencies");
+        if (currenciesString != null) {
+            this.currencies = CurrencyUnit.parseList(currenciesString);
+        }
+        String detectDuplicatesString = config.getInitParameter("detectDuplicates");
+        if (detectDuplicatesString != null) {
+            this.detectDuplicates = Boolean.parseBoolean(detectDuplicatesString);
+        }
+        this.duplicateBloomFilter = Boolean.parseBoolean(config.getInitParameter("duplicateBloomFilter"));
+        this.asyncOutput = Boolean.parseBoolean(config.getInitParameter("asyncOutput"));
+        this.virtualThreads = Boolean.parseBoolean(config.getInitParameter("virtualThreads"));
+        String viewCacheBytesString = config.getInitParameter("viewCacheBytes");
+        if (viewCacheBytesString != null) {
+            this.viewCacheBytes = Long.parseLong(viewCacheBytesString);
+        }
+        String parsedStatePathString = config.getInitParameter("parsedStatePath");
+        this.parsedStatePath = parsedStatePathString != null ? parsedStatePathString : config.getServletContext().getRealPath("payment-forecast-parsed-state.bin");
         super.init(config);
     }
 
     @Override
     public void init() throws ServletException {
-        PrintStream printStream;
-        PrintStream runtimeLogStream;
         try {
-            String filePathString;
-            if (this.parseErrorPath == null) {
-                filePathString = config.getServletContext().getRealPath("payment-forecast-parsing-errors.txt");
-            } else {
-                filePathString = this.parseErrorPath;
+            this.runtimeLogStream = runtimeLogPath == null ? System.out : new PrintStream(Files.newOutputStream(Paths.get(runtimeLogPath)));
+            this.registerMetrics();
+            this.multiFile = DataFileSet.isMultiFile(this.filePath);
+            if (this.multiFile && (this.appendOnly || this.parsedStatePath != null)) {
+                // Both only track the parsed part of a single data file, unchanged files of a directory are skipped anyway
+                printTimeStampedLine(this.runtimeLogStream, "Data files are " + this.filePath + ", appendOnly and parsedStatePath are ignored");
+                this.appendOnly = false;
+                this.parsedStatePath = null;
             }
-            Path path = Paths.get(filePathString);
-            // StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE and StandardOpenOption.WRITE are the defaults
-            OutputStream outputStream = Files.newOutputStream(path);
-            printStream = new PrintStream(outputStream);
-
-            runtimeLogStream = runtimeLogPath == null ? System.out : new PrintStream(Files.newOutputStream(Paths.get(runtimeLogPath)));
+            if (this.appendOnly && CompressedCsvFile.isCompressed(Paths.get(this.filePath))) {
+                // Can only be decompressed from the start
+                printTimeStampedLine(this.runtimeLogStream, "Data file " + this.filePath + " is compressed, appendOnly is ignored");
+                this.appendOnly = false;
+            }
+            DataParser.setCurrencies(this.currencies);
+            DataParser.setDuplicateDetection(this.detectDuplicates, this.duplicateBloomFilter);
+            if (this.viewCacheBytes > 0) {
+                this.viewCache = new RenderedViewCache(this.viewCacheBytes);
+            }
+            if (this.asyncOutput && this.virtualThreads) {
+                this.responder = newVirtualThreadPerTaskExecutor();
+                if (this.responder == null) {
+                    printTimeStampedLine(this.runtimeLogStream, "Virtual threads are not available, responding on the container's threads");
+                }
+            }
+            boolean restored = this.restoreParsedState();
+            this.snapshot = this.buildSnapshot(!restored);
+            ForecastMetrics.recordSnapshotBuilt();
         } catch (IOException e) {
             e.printStackTrace();
-            this.message = "Internal server error";
-            return;
+            this.snapshot = ForecastSnapshot.error("Internal server error");
+            if (this.runtimeLogStream == null) {
+                return;
+            }
+        }
+        if (this.reloadIntervalMillis > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "payment-forecast-reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.reloader.scheduleWithFixedDelay(this::reloadIfChanged, this.reloadIntervalMillis, this.reloadIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        //super.init();
+    }
+
+    @Override
+    public void destroy() {
+        if (this.reloader != null) {
+            this.reloader.shutdownNow();
+        }
+        if (this.responder != null) {
+            this.responder.shutdown();
+        }
+        if (this.registeredMetrics) {
+            try {
+                ForecastMetrics.unregister();
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        super.destroy();
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is only available from Java 21, so is found reflectively.
+     *
+     * @return the executor or null if the JVM doesn't have virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            this.registeredMetrics = ForecastMetrics.register();
+        } catch (JMException e) {
+            // Metrics are still available from /metrics
+            printTimeStampedLine(this.runtimeLogStream, "Failed to register metrics MBean: " + e);
+        }
+    }
+
+    /**
+     * Restores the data saved by a previous parse into the static maps in {@link DataParser}.
+     *
+     * @return true if the data file hasn't changed since, so doesn't need to be parsed. When appendOnly, the data is
+     * also restored if the data file has only been appended to, in which case only the appended lines need parsing.
+     */
+    private boolean restoreParsedState() {
+        if (this.parsedStatePath == null) {
+            return false;
         }
-        printTimeStampedLine(runtimeLogStream, "Starting reading/parsing/processing of data file");
-        DataParser.parseDataFile(this.filePath, printStream, runtimeLogStream);
+        try {
+            printTimeStampedLine(this.runtimeLogStream, "Reading saved parsed data");
+            ParsedStateFile state = ParsedStateFile.read(Paths.get(this.parsedStatePath));
+            // Data saved from complete lines only may be missing the last line, so is only used in the same mode
+            if (state == null || state.completeLinesOnly != this.appendOnly) {
+                printTimeStampedLine(this.runtimeLogStream, "No usable saved parsed data");
+                return false;
+            }
+            Path dataPath = Paths.get(this.filePath);
+            if (state.isUnchanged(dataPath)) {
+                state.restore();
+                this.parsedPrefix = this.appendOnly ? state.prefix : null;
+                printTimeStampedLine(this.runtimeLogStream, "Restored saved parsed data");
+                return true;
+            }
+            if (this.appendOnly && state.prefix.isPrefixOf(dataPath)) {
+                state.restore();
+                this.parsedPrefix = state.prefix;
+                printTimeStampedLine(this.runtimeLogStream, "Restored saved parsed data, data file has been appended to");
+                return false;
+            }
+            printTimeStampedLine(this.runtimeLogStream, "Data file has changed since the saved parsed data");
+        } catch (IOException | RuntimeException e) {
+            printTimeStampedLine(this.runtimeLogStream, "Failed to restore saved parsed data: " + e);
+            // Anything partially restored is reset before parsing
+            this.parsedPrefix = null;
+        }
+        return false;
+    }
 
-        HashMap<SimpleDate, HashMap<Integer, BigDecimal>> dayToMerchantIdToAmountMapMap = DataParser.DAY_TO_MERCHANT_ID_TO_AMOUNT_MAP_MAP;
-        TreeMap<SimpleDate, HashMap<Integer, BigDecimal>> sortedMap = new TreeMap<>();
+    /**
+     * Parses the data file into a new snapshot, replacing the contents of the static maps in {@link DataParser}.
+     * <p>
+     * Must not be called by more than one thread at a time.
+     *
+     * @param parse False to build the snapshot from the current contents of the static maps, when they have been
+     *              restored from an unchanged data file.
+     * @return
+     * @throws IOException If the parse error file can't be opened.
+     */
+    private ForecastSnapshot buildSnapshot(boolean parse) throws IOException {
+        PrintStream runtimeLogStream = this.runtimeLogStream;
+        String filePathString;
+        if (this.parseErrorPath == null) {
+            filePathString = config.getServletContext().getRealPath("payment-forecast-parsing-errors.txt");
+        } else {
+            filePathString = this.parseErrorPath;
+        }
+        // Read before parsing, so that changes made during parsing cause another reload
+        long sourceSize = -1;
+        long sourceLastModified = -1;
+        DataFileSet dataFiles = null;
+        try {
+            dataFiles = DataFileSet.list(this.filePath);
+            sourceSize = dataFiles.size;
+            sourceLastModified = dataFiles.lastModified;
+        } catch (IOException e) {
+            // Reported by the parser when there's a single data file
+            if (this.multiFile) {
+                printTimeStampedLine(runtimeLogStream, "Failed to list data files: " + e);
+            }
+        }
 
-        printTimeStampedLine(runtimeLogStream, "Determining table columns");
+        // Only continue from the previous parse if the file has just been appended to, otherwise start again
+        ParsedPrefix previous = this.parsedPrefix;
+        if (previous != null && !isPrefixOf(previous, Paths.get(this.filePath))) {
+            printTimeStampedLine(runtimeLogStream, "Data file has been rewritten, parsing all of it");
+            previous = null;
+        }
+        if (parse) {
+            // StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE and StandardOpenOption.WRITE are the defaults
+            // when no options are given, errors in appended lines are added to those of the previous parse
+            OpenOption[] errorFileOptions = previous == null ? new OpenOption[0] : new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND};
+            ParsedPrefix parsed;
+            // Buffered by the sink, which writes on its own thread
+            try (OutputStream errorFile = Files.newOutputStream(Paths.get(filePathString), errorFileOptions);
+                 ParseErrorSink errorSink = new ParseErrorSink(errorFile, this.parseErrorFormat, this.maxParseErrorsPerKind)) {
+                printTimeStampedLine(runtimeLogStream, "Starting reading/parsing/processing of data file");
+                if (previous == null) {
+                    // Otherwise the results of the previous parse would be added to
+                    DataParser.reset();
+                }
+                // Cleared first so that if parsing fails part way through, the next reload starts again from the beginning
+                this.parsedPrefix = null;
+                if (this.multiFile) {
+                    List<Path> files = dataFiles == null ? Collections.emptyList() : dataFiles.files;
+                    this.parsedFiles = DataParser.parseDataFiles(files, errorSink, runtimeLogStream, this.parserThreads, this.parsedFiles);
+                    // Parsed data is only saved for a single data file
+                    parsed = null;
+                } else if (this.appendOnly) {
+                    parsed = DataParser.parseAppendedLines(this.filePath, errorSink, runtimeLogStream, this.parserThreads, previous);
+                    this.parsedPrefix = parsed;
+                } else {
+                    parsed = DataParser.parseWholeFile(this.filePath, errorSink, runtimeLogStream, this.parserThreads);
+                }
+            }
+            if (parsed != null && this.parsedStatePath != null) {
+                printTimeStampedLine(runtimeLogStream, "Saving parsed data");
+                try {
+                    ParsedStateFile.write(Paths.get(this.parsedStatePath), sourceSize, sourceLastModified, parsed, this.appendOnly);
+                    printTimeStampedLine(runtimeLogStream, "Saved parsed data");
+                } catch (IOException e) {
+                    // Only makes the next start slower
+                    printTimeStampedLine(runtimeLogStream, "Failed to save parsed data: " + e);
+                }
+            }
+        }
+        CurrencyUnit[] currencies = DataParser.currencies();
+        ForecastSnapshot[] otherCurrencies = new ForecastSnapshot[currencies.length - 1];
+        for (int lane = 1; lane < currencies.length; lane++) {
+            otherCurrencies[lane - 1] = this.buildCurrencySnapshot(sourceSize, sourceLastModified, currencies[lane], lane, null);
+        }
+        return this.buildCurrencySnapshot(sourceSize, sourceLastModified, currencies[0], 0, otherCurrencies);
+    }
+
+    /**
+     * Builds the snapshot of the amounts of a single currency from the current contents of the static maps in
+     * {@link DataParser}.
+     *
+     * @param sourceSize
+     * @param sourceLastModified
+     * @param currency
+     * @param lane               Lane of the amounts of the currency.
+     * @param otherCurrencies    Snapshots of the other currencies when building that of the first currency, otherwise
+     *                           null.
+     * @return
+     */
+    private ForecastSnapshot buildCurrencySnapshot(long sourceSize, long sourceLastModified, CurrencyUnit currency, int lane,
+                                                   ForecastSnapshot[] otherCurrencies) {
+        PrintStream runtimeLogStream = this.runtimeLogStream;
+        // Copied, as the static maps are changed by the next reload while this snapshot may still be in use
+        DailyAmounts dailyAmounts = new DailyAmounts();
+        dailyAmounts.addAll(DataParser.dailyAmounts(lane));
+
+        printTimeStampedLine(runtimeLogStream, "Determining table columns for " + currency.code);
         // Determines number of columns of the table, this could change for different periods of time that are to be displayed
         // for now, we're simply displaying all of the available data
-        // TreeSet as uniqueness and sorting is required, using a HashSet and then converting it to a list/array and then
-        // sorting would also work
-        TreeSet<Integer> knownSortedMerchantIds = new TreeSet<>();
-        for (Map.Entry<SimpleDate, HashMap<Integer, BigDecimal>> entry : dayToMerchantIdToAmountMapMap.entrySet()) {
-            HashMap<Integer, BigDecimal> innerMap = entry.getValue();
-            sortedMap.put(entry.getKey(), innerMap);
-            knownSortedMerchantIds.addAll(innerMap.keySet());
+        // Both are sorted and contain no duplicates
+        int[] days = dailyAmounts.days();
+        int[] merchantIds = dailyAmounts.merchantIds();
+
+        // Headers are always escaped and encoded up front, as filtered pages are rendered as they are being sent, rows are
+        // labelled from the shared table of DateLabels
+        printTimeStampedLine(runtimeLogStream, "Building html table headers");
+        String[] merchantNames = new String[merchantIds.length];
+        for (int i = 0; i < merchantIds.length; i++) {
+            merchantNames[i] = DataParser.merchantName(merchantIds[i]);
+        }
+        HtmlTableHeader htmlHeader = new HtmlTableHeader(merchantNames);
+        printTimeStampedLine(runtimeLogStream, "Built html table headers");
+
+        if (this.streamResponse) {
+            // Each response renders the table as it is being sent
+            return new ForecastSnapshot(sourceSize, sourceLastModified, currency, dailyAmounts, days, merchantIds, merchantNames,
+                    htmlHeader, null, null, otherCurrencies);
         }
 
+        long renderStart = System.nanoTime();
         HtmlTableBuilder builder = new HtmlTableBuilder();
 
         printTimeStampedLine(runtimeLogStream, "Building html table");
         builder.addHeader("Date");
-        knownSortedMerchantIds.forEach(i -> builder.addHeader(DataParser.MERCHANT_ID_TO_DATA.get(i).name));
+        for (String name : merchantNames) {
+            builder.addHeader(HtmlTableHeader.escape(String.valueOf(name)));
+        }
 
-        sortedMap.entrySet().forEach(entry -> {
-            SimpleDate key = entry.getKey();
-            HashMap<Integer, BigDecimal> todaysPayements = entry.getValue();
+        for (int row = 0; row < days.length; row++) {
+            int day = days[row];
             int rowIndex = builder.addRow();
-            builder.addToRow(rowIndex, key.prettyToString());
+            builder.addToRow(rowIndex, DateLabels.label(day));
 
-            for (Integer id : knownSortedMerchantIds) {
-                BigDecimal bigDecimal = todaysPayements.get(id);
-                if (bigDecimal == null) {
-                    bigDecimal = new BigDecimal("0.00");
-                }
-                builder.addToRow(rowIndex, "&pound;" + bigDecimal.toPlainString());
-            }
-        });
-        StringBuilder stringBuilder = new StringBuilder();
-        prependHtml(stringBuilder);
-        stringBuilder.append(builder.toString());
-        appendHtml(stringBuilder);
-        this.message = stringBuilder.toString();
+            for (int id : merchantIds) {
+                // Days and merchants without any payments are 0
+                builder.addToRow(rowIndex, currency.htmlSymbol + Pence.toDecimal(dailyAmounts.get(day, id), currency.minorDigits));
+            }
+        }
+        String message = HTML_PREFIX + builder.toString() + HTML_SUFFIX;
         printTimeStampedLine(runtimeLogStream, "Built html");
-        //super.init();
+
+        printTimeStampedLine(runtimeLogStream, "Encoding and compressing html");
+        EncodedResponse page = null;
+        try {
+            long lastModified = sourceLastModified == -1 ? System.currentTimeMillis() : sourceLastModified;
+            page = new EncodedResponse(message.getBytes(StandardCharsets.UTF_8), ForecastFormat.HTML.contentType, lastModified);
+        } catch (IOException e) {
+            // The uncached message is still served
+            e.printStackTrace();
+        }
+        printTimeStampedLine(runtimeLogStream, "Encoded and compressed html");
+        ForecastMetrics.recordStage(ForecastMetrics.Stage.RENDER, System.nanoTime() - renderStart);
+        // The page is only kept as a String if it couldn't be encoded, as otherwise it is never read again
+        return new ForecastSnapshot(sourceSize, sourceLastModified, currency, dailyAmounts, days, merchantIds, merchantNames,
+                htmlHeader, page == null ? message : null, page, otherCurrencies);
+    }
+
+    private static boolean isPrefixOf(ParsedPrefix prefix, Path path) {
+        try {
+            return prefix.isPrefixOf(path);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the snapshot if the size or modification time of the data file has changed since the current snapshot
+     * was built, and has then stayed the same since the last check, so that a file that is still being written isn't
+     * parsed. When appendOnly, the snapshot is rebuilt as soon as the file changes. For a directory or glob of data
+     * files, their total size and latest modification time are checked instead.
+     * <p>
+     * Run periodically by the reloader thread, requests carry on using the current snapshot until the new one has been
+     * built.
+     */
+    // Visible for testing
+    void reloadIfChanged() {
+        try {
+            DataFileSet dataFiles = DataFileSet.list(this.filePath);
+            long size = dataFiles.size;
+            long lastModified = dataFiles.lastModified;
+            ForecastSnapshot current = this.snapshot;
+            if (size == current.sourceSize && lastModified == current.sourceLastModified) {
+                return;
+            }
+            // Partially written lines are left until they are finished when appendOnly, so there's no need to wait
+            if (!this.appendOnly && (size != this.changedSize || lastModified != this.changedLastModified)) {
+                this.changedSize = size;
+                this.changedLastModified = lastModified;
+                return;
+            }
+            printTimeStampedLine(this.runtimeLogStream, "Data file changed, reloading");
+            this.snapshot = this.buildSnapshot(true);
+            if (this.viewCache != null) {
+                // Views of the previous snapshot are never requested again
+                this.viewCache.clear();
+            }
+            ForecastMetrics.recordSnapshotBuilt();
+            printTimeStampedLine(this.runtimeLogStream, "Reloaded data file");
+        } catch (IOException | RuntimeException e) {
+            // Keeps serving the current snapshot, an exception would also stop any further reloads
+            printTimeStampedLine(this.runtimeLogStream, "Failed to reload data file: " + e);
+        }
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         //super.doGet(req, resp);
+        long start = System.nanoTime();
+        if (this.asyncOutput && req.isAsyncSupported()) {
+            this.respondAsync(req, resp, start);
+            return;
+        }
+        long responseBytes;
+        try {
+            responseBytes = this.respond(req, resp, new ResponseBody(resp));
+        } catch (IOException | RuntimeException e) {
+            ForecastMetrics.recordFailedRequest();
+            throw e;
+        }
+        ForecastMetrics.recordRequest(System.nanoTime() - start, responseBytes);
+    }
+
+    /**
+     * Responds with the body held in memory, then sends it without blocking. The response is built on the responder
+     * when there is one, as rendering a filtered page or JSON blocks the thread doing it, otherwise on the container's
+     * thread.
+     *
+     * @param req
+     * @param resp
+     * @param start Time the request started, in nanoseconds.
+     */
+    private void respondAsync(HttpServletRequest req, HttpServletResponse resp, long start) {
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+        Runnable respond = () -> {
+            ResponseBody body = new ResponseBody(resp, asyncContext);
+            try {
+                long responseBytes = this.respond(req, resp, body);
+                body.send(() -> ForecastMetrics.recordRequest(System.nanoTime() - start, responseBytes));
+            } catch (IOException | RuntimeException e) {
+                printTimeStampedLine(this.runtimeLogStream, "Failed to respond: " + e);
+                ForecastMetrics.recordFailedRequest();
+                // Otherwise the client would get an empty 200 response, as the container would when the exception was
+                // thrown by doGet
+                if (!resp.isCommitted()) {
+                    try {
+                        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException | IllegalStateException sendError) {
+                        // Nothing more can be sent to the client
+                    }
+                }
+                asyncContext.complete();
+            }
+        };
+        if (this.responder != null) {
+            this.responder.execute(respond);
+        } else {
+            respond.run();
+        }
+    }
+
+    /**
+     * @param req
+     * @param resp
+     * @param body Body of resp.
+     * @return number of bytes of the response body sent.
+     * @throws IOException
+     */
+    private long respond(HttpServletRequest req, HttpServletResponse resp, ResponseBody body) throws IOException {
+        String path = req.getPathInfo() == null ? req.getServletPath() : req.getPathInfo();
+        if (path != null && path.endsWith("/metrics")) {
+            byte[] metrics = ForecastMetrics.toText().getBytes(StandardCharsets.UTF_8);
+            resp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+            resp.setHeader("Cache-Control", "no-cache");
+            resp.setContentLengthLong(metrics.length);
+            body.write(metrics);
+            return metrics.length;
+        }
+        ForecastQuery query;
+        try {
+            query = ForecastQuery.parse(req.getParameterMap());
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return 0;
+        }
+        ForecastSnapshot snapshot = this.snapshot.forCurrency(query.currency);
+        if (snapshot == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unrecognised currency \"" + query.currency + "\"");
+            return 0;
+        }
+        ForecastFormat format = ForecastFormat.of(path, req.getHeader("Accept"));
+        resp.addHeader("Vary", "Accept");
+        if (format != ForecastFormat.HTML) {
+            if (snapshot.failed) {
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, snapshot.message);
+                return 0;
+            }
+            if (this.viewCache != null) {
+                return this.writeView(req, resp, body, snapshot, query, format);
+            }
+            resp.setContentType(format.contentType);
+            return writeData(snapshot, query, format, body.stream());
+        }
+        if (!query.isAll() && !snapshot.failed) {
+            if (this.viewCache != null) {
+                return this.writeView(req, resp, body, snapshot, query, ForecastFormat.HTML);
+            }
+            // Only the selected part of the table is rendered, as it is being sent
+            resp.setContentType(ForecastFormat.HTML.contentType);
+            return writePage(snapshot, query, body.stream());
+        }
+        if (snapshot.page != null) {
+            return snapshot.page.write(req, resp, body);
+        }
+        if (snapshot.isStreamed()) {
+            // No Content-Length is set, so the container sends the page using chunked transfer encoding
+            resp.setContentType(ForecastFormat.HTML.contentType);
+            return writePage(snapshot, ForecastQuery.ALL, body.stream());
+        }
         // Set response content type
         resp.setContentType("text/html");
 
         // Actual logic goes here.
-        PrintWriter out = resp.getWriter();
-        //out.println("<h1>" + this.message + ", " + this.counter + ", " + this.counter2 + "</h1>");
-        out.print(this.message);
+        // Without a charset, text/html is ISO-8859-1, which is one byte per character
+        byte[] message = snapshot.message.getBytes(StandardCharsets.ISO_8859_1);
+        body.write(message);
+        return message.length;
+    }
+
+    /**
+     * Writes a view of a snapshot from the view cache, rendering it if it isn't cached.
+     *
+     * @param req
+     * @param resp
+     * @param body
+     * @param snapshot
+     * @param query
+     * @param format
+     * @return number of bytes of the response body sent.
+     * @throws IOException
+     */
+    private long writeView(HttpServletRequest req, HttpServletResponse resp, ResponseBody body, ForecastSnapshot snapshot,
+                           ForecastQuery query, ForecastFormat format) throws IOException {
+        EncodedResponse view = this.viewCache.get(snapshot, query, format, () -> renderView(snapshot, query, format));
+        return view.write(req, resp, body);
+    }
+
+    /**
+     * Renders and compresses a view of a snapshot.
+     *
+     * @param snapshot
+     * @param query
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    // Visible for testing
+    static EncodedResponse renderView(ForecastSnapshot snapshot, ForecastQuery query, ForecastFormat format) throws IOException {
+        ByteArrayOutputStream rendered = new ByteArrayOutputStream(ResponseWriter.DEFAULT_BUFFER_SIZE);
+        if (format == ForecastFormat.HTML) {
+            writePage(snapshot, query, rendered);
+        } else {
+            writeData(snapshot, query, format, rendered);
+        }
+        long lastModified = snapshot.sourceLastModified == -1 ? System.currentTimeMillis() : snapshot.sourceLastModified;
+        return new EncodedResponse(rendered.toByteArray(), format.contentType, lastModified);
+    }
+
+    /**
+     * Renders the selected part of the page of a snapshot straight to a stream.
+     *
+     * @param snapshot
+     * @param query
+     * @param outputStream
+     * @return number of bytes written.
+     * @throws IOException
+     */
+    // Visible for testing
+    static long writePage(ForecastSnapshot snapshot, ForecastQuery query, OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        HtmlTableWriter writer = new HtmlTableWriter(outputStream, ResponseWriter.DEFAULT_BUFFER_SIZE);
+        writer.write(HTML_PREFIX);
+        writer.writeTable(snapshot.amounts, snapshot.currency, snapshot.days, query.firstRow(snapshot), query.endRow(snapshot),
+                snapshot.merchantIds, snapshot.htmlHeader, query.columns(snapshot));
+        writer.write(HTML_SUFFIX);
+        writer.flush();
+        ForecastMetrics.recordStage(ForecastMetrics.Stage.RENDER, System.nanoTime() - start);
+        return writer.bytesWritten();
+    }
+
+    /**
+     * Writes the selected part of a snapshot straight to a stream, as JSON or .csv.
+     *
+     * @param snapshot
+     * @param query
+     * @param format       Either {@link ForecastFormat#JSON} or {@link ForecastFormat#CSV}.
+     * @param outputStream
+     * @return number of bytes written.
+     * @throws IOException
+     */
+    // Visible for testing
+    static long writeData(ForecastSnapshot snapshot, ForecastQuery query, ForecastFormat format, OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        int firstRow = query.firstRow(snapshot);
+        int endRow = query.endRow(snapshot);
+        int[] columns = query.columns(snapshot);
+        ResponseWriter writer;
+        if (format == ForecastFormat.JSON) {
+            JsonForecastWriter jsonWriter = new JsonForecastWriter(outputStream, ResponseWriter.DEFAULT_BUFFER_SIZE);
+            jsonWriter.writeForecast(snapshot.amounts, snapshot.currency, snapshot.days, firstRow, endRow, snapshot.merchantIds, snapshot.merchantNames, columns);
+            writer = jsonWriter;
+        } else {
+            CsvForecastWriter csvWriter = new CsvForecastWriter(outputStream, ResponseWriter.DEFAULT_BUFFER_SIZE);
+            csvWriter.writeForecast(snapshot.amounts, snapshot.currency, snapshot.days, firstRow, endRow, snapshot.merchantIds, snapshot.merchantNames, columns);
+            writer = csvWriter;
+        }
+        writer.flush();
+        ForecastMetrics.recordStage(ForecastMetrics.Stage.RENDER, System.nanoTime() - start);
+        return writer.bytesWritten();
     }
 }
@@ -0,0 +1,71 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Amounts of money are held as a whole number of pence, or of the minor unit of other currencies, in a long rather than
+ * as BigDecimals, from being parsed by {@link FieldParser#parseMinorUnits(byte[], int, int, int, String)}, through
+ * being summed by {@link DailyAmounts}, to being rendered.
+ */
+final class Pence {
+    // Enough for the digits of Long.MAX_VALUE, a decimal point and a leading zero
+    static final int MAX_LENGTH = 21;
+
+    private Pence() {
+    }
+
+    /**
+     * @param pence
+     * @param morePence
+     * @return the sum.
+     * @throws ArithmeticException If the sum is too large for a long, rather than silently wrapping around.
+     */
+    static long add(long pence, long morePence) {
+        return Math.addExact(pence, morePence);
+    }
+
+    /**
+     * @param minorUnits  Must not be negative.
+     * @param minorDigits Number of digits of the minor unit, at most {@link CurrencyUnit#MAX_MINOR_DIGITS}.
+     * @return the amount in the major unit with exactly minorDigits decimal places, e.g. 1205 with 2 minor digits as
+     * "12.05", the same as {@code BigDecimal.valueOf(minorUnits, minorDigits).toPlainString()}.
+     */
+    static String toDecimal(long minorUnits, int minorDigits) {
+        byte[] bytes = new byte[MAX_LENGTH];
+        return new String(bytes, 0, writeDecimal(bytes, 0, minorUnits, minorDigits), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the ASCII bytes of {@link #toDecimal(long, int)} into a buffer.
+     *
+     * @param buffer      Must have at least {@link #MAX_LENGTH} bytes from offset.
+     * @param offset
+     * @param minorUnits  Must not be negative.
+     * @param minorDigits Number of digits of the minor unit, at most {@link CurrencyUnit#MAX_MINOR_DIGITS}.
+     * @return index in the buffer after the last byte written.
+     */
+    static int writeDecimal(byte[] buffer, int offset, long minorUnits, int minorDigits) {
+        long divisor = FieldParser.POWERS_OF_TEN[minorDigits];
+        long major = minorUnits / divisor;
+        long fraction = minorUnits % divisor;
+        int digits = 1;
+        for (long remaining = major / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        int end = offset + digits + (minorDigits == 0 ? 0 : minorDigits + 1);
+        // Digits are written from the least significant, so start from the end of the amount
+        int index = end - 1;
+        if (minorDigits != 0) {
+            for (int i = 0; i < minorDigits; i++) {
+                buffer[index--] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            buffer[index--] = '.';
+        }
+        do {
+            buffer[index--] = (byte) ('0' + major % 10);
+            major /= 10;
+        } while (major != 0);
+        return end;
+    }
+}
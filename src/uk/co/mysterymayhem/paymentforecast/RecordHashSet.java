@@ -0,0 +1,236 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Set of the SHA256 hashes of the records parsed so far, so that a record that has been sent more than once is only
+ * counted once.
+ * <p>
+ * SHA256 hashes are already uniformly distributed, so only their first 128 bits are kept, as a pair of longs in an open
+ * addressing hash table of primitive longs. The chance of two different records sharing the same first 128 bits is
+ * negligible even for billions of records.
+ * <p>
+ * Optionally, the hash table is fronted by a Bloom filter an eighth of its size. Most records are not duplicates, so
+ * most lookups are answered by the smaller Bloom filter, which stays in cache far better than the hash table does once
+ * there are millions of records.
+ * <p>
+ * Not thread-safe.
+ */
+class RecordHashSet {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    // Number of bits of the Bloom filter set by each hash
+    private static final int BLOOM_HASHES = 3;
+
+    // hashes[2 * slot] and hashes[2 * slot + 1] are the two halves of a hash, both 0 for unused slots
+    private long[] hashes = new long[INITIAL_CAPACITY * 2];
+    // Bits of the Bloom filter, 8 for each slot of the hash table, null if there isn't one
+    private long[] bloomBits;
+    private int size;
+    // A hash that is all zero can't be told apart from an unused slot, so is tracked separately
+    private boolean containsZero;
+
+    /**
+     * @param bloomFilter True to front the set with a Bloom filter.
+     */
+    RecordHashSet(boolean bloomFilter) {
+        this.bloomBits = bloomFilter ? new long[INITIAL_CAPACITY / Long.BYTES] : null;
+    }
+
+    /**
+     * @param hash A SHA256 hash.
+     * @return true if the hash has been added.
+     */
+    boolean contains(byte[] hash) {
+        return this.contains(firstHalf(hash), secondHalf(hash));
+    }
+
+    /**
+     * @param hash A SHA256 hash.
+     * @return false if the hash had already been added.
+     */
+    boolean add(byte[] hash) {
+        return this.add(firstHalf(hash), secondHalf(hash));
+    }
+
+    /**
+     * @param other
+     * @return true if any hash of the other set has been added to this one.
+     */
+    boolean containsAny(RecordHashSet other) {
+        if (other.containsZero && this.containsZero) {
+            return true;
+        }
+        long[] otherHashes = other.hashes;
+        for (int i = 0; i < otherHashes.length; i += 2) {
+            long first = otherHashes[i];
+            long second = otherHashes[i + 1];
+            if ((first != 0 || second != 0) && this.contains(first, second)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add every hash of another set to this one.
+     *
+     * @param other
+     */
+    void addAll(RecordHashSet other) {
+        if (other.containsZero) {
+            this.add(0, 0);
+        }
+        long[] otherHashes = other.hashes;
+        for (int i = 0; i < otherHashes.length; i += 2) {
+            if (otherHashes[i] != 0 || otherHashes[i + 1] != 0) {
+                this.add(otherHashes[i], otherHashes[i + 1]);
+            }
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void clear() {
+        this.size = 0;
+        this.containsZero = false;
+        Arrays.fill(this.hashes, 0);
+        if (this.bloomBits != null) {
+            Arrays.fill(this.bloomBits, 0);
+        }
+    }
+
+    /**
+     * @param out
+     * @throws IOException
+     * @see #readFrom(ByteBuffer)
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        if (this.containsZero) {
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+        for (int i = 0; i < this.hashes.length; i += 2) {
+            if (this.hashes[i] != 0 || this.hashes[i + 1] != 0) {
+                out.writeLong(this.hashes[i]);
+                out.writeLong(this.hashes[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Adds the hashes written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in
+     */
+    void readFrom(ByteBuffer in) {
+        for (int i = in.getInt(); i > 0; i--) {
+            this.add(in.getLong(), in.getLong());
+        }
+    }
+
+    private boolean contains(long first, long second) {
+        if (first == 0 && second == 0) {
+            return this.containsZero;
+        }
+        if (this.bloomBits != null && !this.mightContain(first, second)) {
+            return false;
+        }
+        int slot = this.findSlot(first, second);
+        return this.hashes[2 * slot] != 0 || this.hashes[2 * slot + 1] != 0;
+    }
+
+    private boolean add(long first, long second) {
+        if (first == 0 && second == 0) {
+            if (this.containsZero) {
+                return false;
+            }
+            this.containsZero = true;
+            this.size++;
+            return true;
+        }
+        int slot = this.findSlot(first, second);
+        if (this.hashes[2 * slot] != 0 || this.hashes[2 * slot + 1] != 0) {
+            return false;
+        }
+        if ((this.size + 1) * 2 > this.hashes.length / 2) {
+            this.rehash(this.hashes.length);
+            slot = this.findSlot(first, second);
+        }
+        this.hashes[2 * slot] = first;
+        this.hashes[2 * slot + 1] = second;
+        if (this.bloomBits != null) {
+            this.setBloomBits(first, second);
+        }
+        this.size++;
+        return true;
+    }
+
+    private int findSlot(long first, long second) {
+        int mask = this.hashes.length / 2 - 1;
+        // The bits of a SHA256 hash are already uniformly distributed, so are used as they are
+        int slot = (int) first & mask;
+        while ((this.hashes[2 * slot] != 0 || this.hashes[2 * slot + 1] != 0)
+                && (this.hashes[2 * slot] != first || this.hashes[2 * slot + 1] != second)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean mightContain(long first, long second) {
+        long mask = this.bloomBits.length * (long) Long.SIZE - 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            // Double hashing, using bits of the hash that aren't used to find its slot of the hash table
+            long bit = (second + i * (first >>> 32)) & mask;
+            if ((this.bloomBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBloomBits(long first, long second) {
+        long mask = this.bloomBits.length * (long) Long.SIZE - 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = (second + i * (first >>> 32)) & mask;
+            this.bloomBits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param capacity Number of slots, a power of two.
+     */
+    private void rehash(int capacity) {
+        long[] oldHashes = this.hashes;
+        this.hashes = new long[capacity * 2];
+        if (this.bloomBits != null) {
+            // 8 bits per slot
+            this.bloomBits = new long[capacity / Long.BYTES];
+        }
+        for (int i = 0; i < oldHashes.length; i += 2) {
+            long first = oldHashes[i];
+            long second = oldHashes[i + 1];
+            if (first != 0 || second != 0) {
+                int slot = this.findSlot(first, second);
+                this.hashes[2 * slot] = first;
+                this.hashes[2 * slot + 1] = second;
+                if (this.bloomBits != null) {
+                    this.setBloomBits(first, second);
+                }
+            }
+        }
+    }
+
+    private static long firstHalf(byte[] hash) {
+        return ByteBuffer.wrap(hash, 0, Long.BYTES).getLong();
+    }
+
+    private static long secondHalf(byte[] hash) {
+        return ByteBuffer.wrap(hash, Long.BYTES, Long.BYTES).getLong();
+    }
+}
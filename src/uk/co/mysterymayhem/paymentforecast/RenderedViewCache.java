@@ -0,0 +1,190 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache of the encoded and compressed responses of filtered views of the forecast, so that popular views such as a
+ * single merchant's last 30 days are only rendered once for each snapshot.
+ * <p>
+ * Views are keyed by the snapshot they were rendered from, along with their query and format. The least recently used
+ * views are evicted once the total size in bytes of the cached responses exceeds a budget. Concurrent requests for a
+ * view that isn't cached wait for a single render of it rather than each rendering it themselves.
+ * <p>
+ * Thread-safe.
+ */
+class RenderedViewCache {
+    // Rough size of each entry besides its response, so that a budget can't be used up by lots of tiny views
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /**
+     * Renders a view that isn't cached.
+     */
+    interface Renderer {
+        EncodedResponse render() throws IOException;
+    }
+
+    private final long maxBytes;
+    // In access order, so the eldest is the least recently used
+    private final LinkedHashMap<Key, EncodedResponse> views = new LinkedHashMap<>(16, 0.75f, true);
+    // Views being rendered, completed once they have been
+    private final HashMap<Key, CompletableFuture<EncodedResponse>> rendering = new HashMap<>();
+    private long bytes;
+    // Incremented by clear, views rendered before then aren't added afterwards
+    private int generation;
+
+    /**
+     * @param maxBytes Budget for the total size of the cached responses.
+     */
+    RenderedViewCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param snapshot Snapshot the view is rendered from.
+     * @param query
+     * @param format
+     * @param renderer Renders the view if it isn't cached and isn't already being rendered.
+     * @return the cached view, or the newly rendered view.
+     * @throws IOException If rendering fails, in which case every request waiting on the same render fails too.
+     */
+    EncodedResponse get(ForecastSnapshot snapshot, ForecastQuery query, ForecastFormat format, Renderer renderer) throws IOException {
+        Key key = new Key(snapshot, query, format);
+        CompletableFuture<EncodedResponse> render;
+        boolean inFlight;
+        int generation;
+        synchronized (this) {
+            EncodedResponse view = this.views.get(key);
+            if (view != null) {
+                ForecastMetrics.recordViewCacheHit();
+                return view;
+            }
+            render = this.rendering.get(key);
+            inFlight = render != null;
+            if (inFlight) {
+                ForecastMetrics.recordViewCacheHit();
+            } else {
+                ForecastMetrics.recordViewCacheMiss();
+                render = new CompletableFuture<>();
+                this.rendering.put(key, render);
+            }
+            generation = this.generation;
+        }
+        if (inFlight) {
+            // Waited for outside of the lock, as the render takes the lock before it completes
+            return await(render);
+        }
+        EncodedResponse view;
+        try {
+            view = renderer.render();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                this.rendering.remove(key);
+            }
+            render.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            this.rendering.remove(key);
+            if (generation == this.generation) {
+                this.put(key, view);
+            }
+        }
+        render.complete(view);
+        return view;
+    }
+
+    /**
+     * Evicts every view, called when the data is reloaded, as views of earlier snapshots are never used again.
+     */
+    synchronized void clear() {
+        this.views.clear();
+        this.rendering.clear();
+        this.bytes = 0;
+        this.generation++;
+    }
+
+    // Visible for testing
+    synchronized int size() {
+        return this.views.size();
+    }
+
+    // Visible for testing
+    synchronized long bytes() {
+        return this.bytes;
+    }
+
+    private void put(Key key, EncodedResponse view) {
+        long viewBytes = view.sizeInBytes() + ENTRY_OVERHEAD_BYTES;
+        if (viewBytes > this.maxBytes) {
+            // Would evict everything else and then itself
+            return;
+        }
+        this.views.put(key, view);
+        this.bytes += viewBytes;
+        Iterator<Map.Entry<Key, EncodedResponse>> leastRecentlyUsed = this.views.entrySet().iterator();
+        while (this.bytes > this.maxBytes) {
+            this.bytes -= leastRecentlyUsed.next().getValue().sizeInBytes() + ENTRY_OVERHEAD_BYTES;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private static EncodedResponse await(CompletableFuture<EncodedResponse> render) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return render.get();
+                } catch (InterruptedException e) {
+                    // The render is still needed by whoever started it, so carry on waiting
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw new IOException(cause.getMessage(), cause);
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final ForecastSnapshot snapshot;
+        private final ForecastQuery query;
+        private final ForecastFormat format;
+
+        Key(ForecastSnapshot snapshot, ForecastQuery query, ForecastFormat format) {
+            this.snapshot = snapshot;
+            this.query = query;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                // Each snapshot is a different version of the data
+                return this.snapshot == other.snapshot && this.query.equals(other.query) && this.format == other.format;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * System.identityHashCode(this.snapshot) + this.query.hashCode()) * 31 + this.format.hashCode();
+        }
+    }
+}
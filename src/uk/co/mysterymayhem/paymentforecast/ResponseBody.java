@@ -0,0 +1,153 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of the body of a response, either the response's output stream, blocking until each write has been sent,
+ * or memory, from which the body is later sent without blocking through a {@link WriteListener}.
+ * <p>
+ * When not blocking, bodies that are already encoded, such as the compressed page of a snapshot, are sent as they are
+ * without being copied, and bodies that are rendered per request are rendered into memory first, so no thread ever
+ * waits on a slow client.
+ */
+class ResponseBody implements WriteListener {
+    // Most written at a time when not blocking, so that the container never has to buffer much of a body for a slow
+    // client
+    // Visible for testing
+    static final int ASYNC_CHUNK_SIZE = 64 * 1024;
+
+    private final HttpServletResponse resp;
+    // Null when blocking
+    private final AsyncContext asyncContext;
+    // Rendered body, when not blocking
+    private RenderBuffer rendered;
+    // Body being sent and the part of it left to send, when not blocking
+    private byte[] body;
+    private int offset;
+    private int end;
+    private ServletOutputStream out;
+    private Runnable onDone;
+
+    /**
+     * A body written straight to the response, blocking until each write has been sent.
+     *
+     * @param resp
+     */
+    ResponseBody(HttpServletResponse resp) {
+        this(resp, null);
+    }
+
+    /**
+     * A body held in memory until {@link #send(Runnable)} sends it without blocking.
+     *
+     * @param resp
+     * @param asyncContext Of the request being responded to.
+     */
+    ResponseBody(HttpServletResponse resp, AsyncContext asyncContext) {
+        this.resp = resp;
+        this.asyncContext = asyncContext;
+    }
+
+    /**
+     * @return stream to render the body to, at most one of this and {@link #write(byte[])} may be used.
+     * @throws IOException
+     */
+    OutputStream stream() throws IOException {
+        if (this.asyncContext == null) {
+            return this.resp.getOutputStream();
+        }
+        this.rendered = new RenderBuffer();
+        return this.rendered;
+    }
+
+    /**
+     * Writes a whole body that has already been encoded.
+     *
+     * @param encoded Must not be modified afterwards.
+     * @throws IOException
+     */
+    void write(byte[] encoded) throws IOException {
+        if (this.asyncContext == null) {
+            this.resp.getOutputStream().write(encoded);
+        } else {
+            this.body = encoded;
+            this.end = encoded.length;
+        }
+    }
+
+    /**
+     * Starts sending the body without blocking, then completes the asynchronous request. Only used when not blocking.
+     *
+     * @param onDone Run once the request has completed, whether or not the body could be sent.
+     * @throws IOException
+     */
+    void send(Runnable onDone) throws IOException {
+        this.onDone = onDone;
+        if (this.rendered != null) {
+            this.body = this.rendered.bytes();
+            this.end = this.rendered.size();
+            this.rendered = null;
+        }
+        if (this.body == null || this.end == 0) {
+            // An error, a 304 response or an empty body
+            this.complete();
+            return;
+        }
+        this.out = this.resp.getOutputStream();
+        // The container calls onWritePossible as soon as the stream can be written to
+        this.out.setWriteListener(this);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (this.offset < this.end) {
+            if (!this.out.isReady()) {
+                // Called again by the container once the client has taken what has been written so far
+                return;
+            }
+            int length = Math.min(ASYNC_CHUNK_SIZE, this.end - this.offset);
+            this.out.write(this.body, this.offset, length);
+            this.offset += length;
+        }
+        this.complete();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Usually the client going away, there's no one left to respond to
+        this.complete();
+    }
+
+    private void complete() {
+        Runnable onDone = this.onDone;
+        if (onDone == null) {
+            // Already completed
+            return;
+        }
+        this.onDone = null;
+        // Released as the response may be held on to by the container for a while
+        this.body = null;
+        this.offset = this.end;
+        this.asyncContext.complete();
+        onDone.run();
+    }
+
+    /**
+     * Gives access to its buffer, so that rendered bodies are never copied.
+     */
+    private static class RenderBuffer extends ByteArrayOutputStream {
+        RenderBuffer() {
+            super(ResponseWriter.DEFAULT_BUFFER_SIZE);
+        }
+
+        byte[] bytes() {
+            return this.buf;
+        }
+    }
+}
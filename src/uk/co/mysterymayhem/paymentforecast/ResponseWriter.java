@@ -0,0 +1,130 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Writes text as UTF-8 straight to an {@link OutputStream} through a fixed size buffer, so that a response can be sent
+ * as it is rendered instead of being built in memory first.
+ */
+class ResponseWriter {
+    static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    // yyyy-mm-dd, or more for years outside of 0-9999
+    private static final int MAX_DATE_LENGTH = 16;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    // Bytes written to out so far
+    private long drained;
+
+    /**
+     * @param out
+     * @param bufferSize Number of bytes to buffer before writing them to out, must be larger than
+     *                   {@link Pence#MAX_LENGTH} plus the length of any prefix written before an amount.
+     */
+    ResponseWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+    }
+
+    void write(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Rare, so the rest of the String is left to the encoder
+                this.write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (this.position == this.buffer.length) {
+                this.drain();
+            }
+            this.buffer[this.position++] = (byte) c;
+        }
+    }
+
+    void write(byte[] bytes) throws IOException {
+        for (int offset = 0; offset < bytes.length; ) {
+            if (this.position == this.buffer.length) {
+                this.drain();
+            }
+            int count = Math.min(bytes.length - offset, this.buffer.length - this.position);
+            System.arraycopy(bytes, offset, this.buffer, this.position, count);
+            this.position += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * Writes an amount in the minor unit of a currency as the major unit with exactly minorDigits decimal places, e.g.
+     * 1205 pence as "12.05", the same as {@link Pence#toDecimal(long, int)}.
+     *
+     * @param minorUnits  Must not be negative.
+     * @param minorDigits
+     * @throws IOException
+     */
+    void writeAmount(long minorUnits, int minorDigits) throws IOException {
+        if (this.buffer.length - this.position < Pence.MAX_LENGTH) {
+            this.drain();
+        }
+        this.position = Pence.writeDecimal(this.buffer, this.position, minorUnits, minorDigits);
+    }
+
+    /**
+     * Writes an epoch day as an ISO date, e.g. "2017-04-24".
+     *
+     * @param epochDay
+     * @throws IOException
+     */
+    void writeIsoDate(int epochDay) throws IOException {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        int year = date.getYear();
+        if (year < 0 || year > 9999) {
+            this.write(date.toString());
+            return;
+        }
+        if (this.buffer.length - this.position < MAX_DATE_LENGTH) {
+            this.drain();
+        }
+        this.writeDigits(year, 4);
+        this.buffer[this.position++] = '-';
+        this.writeDigits(date.getMonthValue(), 2);
+        this.buffer[this.position++] = '-';
+        this.writeDigits(date.getDayOfMonth(), 2);
+    }
+
+    private void writeDigits(int value, int digits) {
+        for (int i = this.position + digits - 1; i >= this.position; i--) {
+            this.buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        this.position += digits;
+    }
+
+    /**
+     * Writes everything that has been buffered to the underlying stream and flushes it.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        this.drain();
+        this.out.flush();
+    }
+
+    /**
+     * @return number of bytes written, including those that are still buffered.
+     */
+    long bytesWritten() {
+        return this.drained + this.position;
+    }
+
+    private void drain() throws IOException {
+        this.out.write(this.buffer, 0, this.position);
+        this.drained += this.position;
+        this.position = 0;
+    }
+}
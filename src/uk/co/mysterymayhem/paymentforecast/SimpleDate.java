@@ -2,93 +2,79 @@ package uk.co.mysterymayhem.paymentforecast;
 
 
 import java.time.Instant;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
+ * A UTC date, held as the number of days since 1970-01-01, so that converting to and from it is arithmetic rather than
+ * recomputing the fields of a {@link Calendar}.
+ * <p>
  * Created by Mysteryem on 24/04/2017.
  */
 public class SimpleDate implements Comparable<SimpleDate> {
-    private static final Calendar UTC_CALENDAR = GregorianCalendar.getInstance(TimeZone.getTimeZone(ZoneOffset.UTC), Locale.ENGLISH);
+    static final int SECONDS_PER_DAY = 24 * 60 * 60;
 
-    private final int year;
-    // 0 = jan, just like with Calendar/Date classes
-    private final int month;
-    private final int dayOfMonth;
+    private final int epochDay;
 
     public SimpleDate(Instant instant) {
-        this(setAndGetCalendarFromInstant(instant));
+        this(epochDay(instant.getEpochSecond()));
+    }
+
+    /**
+     * @param epochDay Days since 1970-01-01.
+     */
+    public SimpleDate(int epochDay) {
+        this.epochDay = epochDay;
     }
 
     public SimpleDate(Calendar date) {
-        this.year = date.get(Calendar.YEAR);
-        this.month = date.get(Calendar.MONTH);
-        this.dayOfMonth = date.get(Calendar.DAY_OF_MONTH);
+        this((int) LocalDate.of(date.get(Calendar.YEAR), date.get(Calendar.MONTH) + 1, date.get(Calendar.DAY_OF_MONTH)).toEpochDay());
     }
 
-    private static Calendar setAndGetCalendarFromInstant(Instant instant) {
-        UTC_CALENDAR.setTimeInMillis(instant.toEpochMilli());
-        return UTC_CALENDAR;
+    /**
+     * Same day as {@code new SimpleDate(Instant.ofEpochSecond(epochSecond))}, without creating either.
+     *
+     * @param epochSecond Seconds since 1970-01-01T00:00:00Z, may be negative.
+     * @return days since 1970-01-01 of the UTC date of the time.
+     */
+    static int epochDay(long epochSecond) {
+        return (int) Math.floorDiv(epochSecond, SECONDS_PER_DAY);
     }
 
-    public String prettyToString() {
-        UTC_CALENDAR.clear();
-        UTC_CALENDAR.set(this.year, this.month, this.dayOfMonth);
-        StringBuilder builder = new StringBuilder();
+    /**
+     * @param epochSecond Seconds since 1970-01-01T00:00:00Z, may be negative.
+     * @return seconds since the start of the UTC day of the time.
+     */
+    static int secondOfDay(long epochSecond) {
+        return (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+    }
 
-        builder
-                .append(UTC_CALENDAR.get(Calendar.DAY_OF_MONTH))
-                .append(" ")
-                .append(UTC_CALENDAR.getDisplayName(Calendar.MONTH, Calendar.SHORT, Locale.ENGLISH))
-                .append(" ")
-                .append(UTC_CALENDAR.get(Calendar.YEAR));
+    /**
+     * @return days since 1970-01-01.
+     */
+    public int toEpochDay() {
+        return this.epochDay;
+    }
 
-        return builder.toString();
+    /**
+     * @return the date as e.g. "24 Apr 2017", see {@link DateLabels}.
+     */
+    public String prettyToString() {
+        return DateLabels.label(this.epochDay);
     }
 
     @Override
     public int hashCode() {
-        int hashCode = 31 + this.year;
-        hashCode = 31 * hashCode + this.month;
-        hashCode = 31 * hashCode + this.dayOfMonth;
-        return hashCode;
+        return this.epochDay;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-        if (obj instanceof SimpleDate) {
-            SimpleDate other = (SimpleDate) obj;
-            return this.year == other.year && this.month == other.month && this.dayOfMonth == other.dayOfMonth;
-        }
-        return false;
+        return this == obj || obj instanceof SimpleDate && this.epochDay == ((SimpleDate) obj).epochDay;
     }
 
     @Override
     public int compareTo(SimpleDate o) {
-        if (this.year > o.year) {
-            return 1;
-        } else if (this.year < o.year) {
-            return -1;
-        } else {
-            if (this.month > o.month) {
-                return 1;
-            } else if (this.month < o.month) {
-                return -1;
-            } else {
-                if (this.dayOfMonth > o.dayOfMonth) {
-                    return 1;
-                } else if (this.dayOfMonth < o.dayOfMonth) {
-                    return -1;
-                } else {
-                    return 0;
-                }
-            }
-        }
+        return Integer.compare(this.epochDay, o.epochDay);
     }
 }
@@ -0,0 +1,188 @@
+package uk.co.mysterymayhem.paymentforecast;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generates .csv data files of random records with valid hashes, for tests and benchmarks. The same seed and settings
+ * always generate the same file.
+ * <p>
+ * A fraction of the records can be made invalid in one of the ways that {@link DataParser} reports as a parse error.
+ */
+public class SyntheticDataGenerator {
+    static final String HEADER = "ReceivedUTC,MerchantId,MerchantName,MerchantPubKey,PayerId,PayerPubKey,DebitPermissionId,DueUTC,DueEpoc,Currency,Amount,SHA256";
+
+    private static final String PUBLIC_KEY_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int PUBLIC_KEY_LENGTH = 20;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    // 2017-01-01T00:00:00Z
+    private static final long FIRST_DUE_SECONDS = 1483228800L;
+    // Maximum time between receiving a payment and it being due
+    private static final int MAX_NOTICE_SECONDS = 10 * SECONDS_PER_DAY;
+    private static final int NUM_ERROR_TYPES = 6;
+    private static final DateTimeFormatter UTC_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    private final Random random;
+    private final int days;
+    private final double invalidFraction;
+    private final String[] merchantPubKeys;
+    // Merchants that have had a record whose merchant data is registered by the parser
+    private final boolean[] merchantRegistered;
+    private final String[] payerPubKeys;
+    private final MessageDigest sha256;
+
+    /**
+     * @param seed
+     * @param merchants       Number of distinct merchants.
+     * @param payers          Number of distinct payers.
+     * @param days            Number of days that payments are spread over.
+     * @param invalidFraction Fraction of records, between 0 and 1, that are invalid.
+     */
+    SyntheticDataGenerator(long seed, int merchants, int payers, int days, double invalidFraction) {
+        this.random = new Random(seed);
+        this.days = days;
+        this.invalidFraction = invalidFraction;
+        this.merchantPubKeys = new String[merchants];
+        this.merchantRegistered = new boolean[merchants];
+        for (int i = 0; i < merchants; i++) {
+            this.merchantPubKeys[i] = this.randomPublicKey();
+        }
+        this.payerPubKeys = new String[payers];
+        for (int i = 0; i < payers; i++) {
+            this.payerPubKeys[i] = this.randomPublicKey();
+        }
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to find SHA-256 hashing algorithm", e);
+        }
+    }
+
+    /**
+     * Usage: output-file records [merchants] [payers] [days] [seed] [invalid-fraction]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticDataGenerator output-file records [merchants] [payers] [days] [seed] [invalid-fraction]");
+            System.exit(1);
+        }
+        int records = Integer.parseInt(args[1]);
+        int merchants = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int payers = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int days = args.length > 4 ? Integer.parseInt(args[4]) : 365;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        double invalidFraction = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+        new SyntheticDataGenerator(seed, merchants, payers, days, invalidFraction).write(Paths.get(args[0]), records);
+    }
+
+    /**
+     * Writes a header line followed by a number of records.
+     *
+     * @param path    File to write, compressed to BGZF if its name ends with ".gz".
+     * @param records
+     * @throws IOException
+     */
+    void write(Path path, int records) throws IOException {
+        OutputStream file = Files.newOutputStream(path);
+        if (CompressedCsvFile.isCompressed(path)) {
+            file = new BgzfOutputStream(file);
+        }
+        try (OutputStream out = new BufferedOutputStream(file, 64 * 1024)) {
+            out.write(HEADER.getBytes(StandardCharsets.US_ASCII));
+            out.write('\n');
+            for (int i = 0; i < records; i++) {
+                out.write(this.nextRecord().getBytes(StandardCharsets.US_ASCII));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * @return the next record, without a line terminator.
+     */
+    String nextRecord() {
+        int merchant = this.random.nextInt(this.merchantPubKeys.length);
+        int payer = this.random.nextInt(this.payerPubKeys.length);
+        long dueSeconds = FIRST_DUE_SECONDS + (long) this.random.nextInt(this.days) * SECONDS_PER_DAY + this.random.nextInt(SECONDS_PER_DAY);
+        long receivedSeconds = dueSeconds - this.random.nextInt(MAX_NOTICE_SECONDS);
+        long pence = 1 + this.random.nextInt(500000);
+        String[] fields = {
+                utcDate(receivedSeconds),
+                Integer.toString(merchant + 1),
+                "Merchant " + (merchant + 1),
+                this.merchantPubKeys[merchant],
+                Integer.toString(payer + 1),
+                this.payerPubKeys[payer],
+                Integer.toString(1 + this.random.nextInt(Integer.MAX_VALUE)),
+                utcDate(dueSeconds),
+                Long.toString(dueSeconds),
+                "GBP",
+                // Whole pound amounts are sometimes written without any pence
+                pence % 100 == 0 && this.random.nextBoolean() ? Long.toString(pence / 100) : String.format("%d.%02d", pence / 100, pence % 100),
+                null
+        };
+        boolean invalid = this.random.nextDouble() < this.invalidFraction;
+        int errorType = invalid ? this.random.nextInt(NUM_ERROR_TYPES) : -1;
+        if (errorType == 1 && !this.merchantRegistered[merchant]) {
+            // Otherwise the new name would be registered and every later record of the merchant would be invalid
+            errorType = 4;
+        }
+        // Records with an invalid due epoch or number of fields are rejected before their merchant data is registered
+        if (errorType != 1 && errorType != 3 && errorType != 5) {
+            this.merchantRegistered[merchant] = true;
+        }
+        switch (errorType) {
+            case 0:
+                fields[9] = "EUR";
+                break;
+            case 1:
+                fields[2] = "Renamed merchant";
+                break;
+            case 2:
+                fields[10] = "12.3";
+                break;
+            case 3:
+                fields[8] = Long.toString(dueSeconds + 1);
+                break;
+            default:
+                break;
+        }
+        this.sha256.reset();
+        for (int field : new int[]{3, 5, 6, 8, 10}) {
+            this.sha256.update(fields[field].getBytes(StandardCharsets.US_ASCII));
+        }
+        fields[11] = Hasher.bytesToNiceString(this.sha256.digest());
+        if (errorType == 4) {
+            // Valid hex, but not the hash of the record
+            fields[11] = (fields[11].charAt(0) == '0' ? '1' : '0') + fields[11].substring(1);
+        }
+        String record = String.join(",", fields);
+        return errorType == 5 ? record + ",extra" : record;
+    }
+
+    private static String utcDate(long epochSeconds) {
+        return UTC_DATE_FORMAT.format(Instant.ofEpochSecond(epochSeconds));
+    }
+
+    private String randomPublicKey() {
+        char[] key = new char[PUBLIC_KEY_LENGTH];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = PUBLIC_KEY_CHARACTERS.charAt(this.random.nextInt(PUBLIC_KEY_CHARACTERS.length()));
+        }
+        return new String(key);
+    }
+}
@@ -1,9 +1,46 @@
 package uk.co.mysterymayhem.paymentforecast;
 
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by Mysteryem on 24/04/2017.
@@ -13,7 +50,19 @@ public class Tests {
     public static void main(String[] args) throws Exception {
         hashTest();
 
+        csvChunkReaderTest();
+
+        dailyAmountsTest();
+
+        parallelParseTest();
+
+        parseErrorSinkTest();
+
         forecastTest();
+
+        encodedResponseTest();
+
+        metricsTest();
     }
 
     private static void hashTest() throws Exception {
@@ -22,6 +71,240 @@ public class Tests {
         if (!Arrays.equals(Hasher.fromPreComputedString(hashString), hash)) {
             throw new RuntimeException("Test failed");
         }
+
+        byte[] fields = "merchantPubKeypayerPubKeydebitPermissionIddueEpocamount".getBytes(StandardCharsets.US_ASCII);
+        byte[] hex = hashString.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+        Hasher hasher = new Hasher();
+        hasher.reset();
+        hasher.update(fields, 0, fields.length);
+        if (hasher.compareDigestToHex(hex, 0, hex.length) != Hasher.HASH_MATCHES || !Arrays.equals(hasher.digest(), hash)) {
+            throw new RuntimeException("Test failed");
+        }
+        hasher.reset();
+        hasher.update(fields, 1, fields.length);
+        if (hasher.compareDigestToHex(hex, 0, hex.length) != Hasher.HASH_DIFFERS) {
+            throw new RuntimeException("Test failed");
+        }
+    }
+
+    private static void csvChunkReaderTest() throws Exception {
+        String text = "a,b\r\n\n,,\rc,,d,,\r\ne";
+        String[] expectedLines = text.split("\r\n|\n|\r", -1);
+        CsvChunkReader reader = new CsvChunkReader(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+        for (String expectedLine : expectedLines) {
+            if (!reader.nextLine() || !reader.lineString().equals(expectedLine)) {
+                throw new RuntimeException("Test failed");
+            }
+            String[] expectedFields = expectedLine.split(",");
+            if (reader.fieldCount() != expectedFields.length) {
+                throw new RuntimeException("Test failed");
+            }
+            for (int i = 0; i < expectedFields.length; i++) {
+                if (!reader.fieldString(i).equals(expectedFields[i])) {
+                    throw new RuntimeException("Test failed");
+                }
+            }
+        }
+        if (reader.nextLine() || reader.linesRead() != expectedLines.length) {
+            throw new RuntimeException("Test failed");
+        }
+    }
+
+    private static void dailyAmountsTest() throws Exception {
+        Random random = new Random(0);
+        DailyAmounts compact = new DailyAmounts();
+        DailyAmounts scattered = new DailyAmounts();
+        HashMap<Long, Long> compactExpected = new HashMap<>();
+        HashMap<Long, Long> scatteredExpected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int day = 17000 + random.nextInt(1000);
+            long pence = 1 + random.nextInt(100000);
+            int compactId = random.nextInt(200);
+            compact.add(day, compactId, pence);
+            compactExpected.merge(((long) day << 32) | compactId, pence, Long::sum);
+            // Merchant ids spread out far enough that a grid would be mostly empty
+            int scatteredId = random.nextInt(50) * 1000003;
+            scattered.add(day, scatteredId, pence);
+            scatteredExpected.merge(((long) day << 32) | scatteredId, pence, Long::sum);
+        }
+        if (!compact.isDense() || scattered.isDense()) {
+            throw new RuntimeException("Test failed");
+        }
+        for (DailyAmounts amounts : new DailyAmounts[]{compact, scattered}) {
+            HashMap<Long, Long> expected = amounts == compact ? compactExpected : scatteredExpected;
+            if (amounts.size() != expected.size()) {
+                throw new RuntimeException("Test failed");
+            }
+            expected.forEach((key, pence) -> {
+                if (amounts.get((int) (key >> 32), (int) (long) key) != pence) {
+                    throw new RuntimeException("Test failed");
+                }
+            });
+            int[] days = expected.keySet().stream().mapToInt(key -> (int) (key >> 32)).distinct().sorted().toArray();
+            int[] merchantIds = expected.keySet().stream().mapToInt(key -> (int) (long) key).distinct().sorted().toArray();
+            if (!Arrays.equals(days, amounts.days()) || !Arrays.equals(merchantIds, amounts.merchantIds())) {
+                throw new RuntimeException("Test failed");
+            }
+            DailyAmounts copy = new DailyAmounts();
+            copy.addAll(amounts);
+            if (!copy.equals(amounts)) {
+                throw new RuntimeException("Test failed");
+            }
+            // Overflowing a sum must fail without changing it
+            amounts.add(17000, 7, Long.MAX_VALUE - amounts.get(17000, 7));
+            try {
+                amounts.add(17000, 7, 1);
+                throw new RuntimeException("Test failed");
+            } catch (ArithmeticException e) {
+                if (amounts.get(17000, 7) != Long.MAX_VALUE || amounts.canAddAll(copy)) {
+                    throw new RuntimeException("Test failed");
+                }
+            }
+        }
+        for (long amount : new long[]{0, 5, 10, 99, 100, 1205, 123456789, Long.MAX_VALUE}) {
+            for (int minorDigits = 0; minorDigits <= CurrencyUnit.MAX_MINOR_DIGITS; minorDigits++) {
+                if (!Pence.toDecimal(amount, minorDigits).equals(BigDecimal.valueOf(amount, minorDigits).toPlainString())) {
+                    throw new RuntimeException("Test failed");
+                }
+            }
+        }
+    }
+
+    private static void parallelParseTest() throws Exception {
+        ByteArrayOutputStream sequentialErrors = new ByteArrayOutputStream();
+        DataParser.parseDataFile("payment-forecast-data.csv", new PrintStream(sequentialErrors), new PrintStream(new ByteArrayOutputStream()), 1);
+        DailyAmounts sequentialAmounts = new DailyAmounts();
+        sequentialAmounts.addAll(DataParser.dailyAmounts(0));
+        IdentityTable sequentialMerchants = new IdentityTable(2);
+        sequentialMerchants.addAll(DataParser.MERCHANTS);
+        DataParser.reset();
+
+        ByteArrayOutputStream parallelErrors = new ByteArrayOutputStream();
+        // Small chunks so that there are many chunk boundaries
+        DataParser.parseDataFile("payment-forecast-data.csv", new PrintStream(parallelErrors), new PrintStream(new ByteArrayOutputStream()), 4, 64 * 1024);
+        if (!sequentialAmounts.equals(DataParser.dailyAmounts(0))
+                || !sequentialMerchants.equals(DataParser.MERCHANTS)
+                || !Arrays.equals(sequentialErrors.toByteArray(), parallelErrors.toByteArray())) {
+            throw new RuntimeException("Test failed");
+        }
+
+        // Compressed as a single gzip stream, then as BGZF blocks that are decompressed in parallel
+        byte[] uncompressed = Files.readAllBytes(Paths.get("payment-forecast-data.csv"));
+        Path compressedPath = Paths.get("payment-forecast-data.csv.gz");
+        for (boolean blocks : new boolean[]{false, true}) {
+            DataParser.reset();
+            try (OutputStream out = blocks ? new BgzfOutputStream(Files.newOutputStream(compressedPath)) : new GZIPOutputStream(Files.newOutputStream(compressedPath))) {
+                out.write(uncompressed);
+            }
+            ByteArrayOutputStream compressedErrors = new ByteArrayOutputStream();
+            DataParser.parseDataFile(compressedPath.toString(), new PrintStream(compressedErrors), new PrintStream(new ByteArrayOutputStream()), 4, 64 * 1024);
+            byte[] header = Arrays.copyOf(Files.readAllBytes(compressedPath), 18);
+            if (!sequentialAmounts.equals(DataParser.dailyAmounts(0))
+                    || !Arrays.equals(sequentialErrors.toByteArray(), compressedErrors.toByteArray())
+                    || CompressedCsvFile.isBgzfHeader(header) != blocks) {
+                throw new RuntimeException("Test failed");
+            }
+        }
+        Files.delete(compressedPath);
+        DataParser.reset();
+
+        // The invalid currency of the generated data is EUR, which is summed in its own lane once accepted
+        DataParser.setCurrencies(CurrencyUnit.parseList("GBP, eur, JPY:0"));
+        ByteArrayOutputStream currencyErrors = new ByteArrayOutputStream();
+        DataParser.parseDataFile("payment-forecast-data.csv", new PrintStream(currencyErrors), new PrintStream(new ByteArrayOutputStream()), 4, 64 * 1024);
+        boolean anyEur = sequentialErrors.toString("UTF-8").contains("Unrecognised currency type \"EUR\"");
+        if (!sequentialAmounts.equals(DataParser.dailyAmounts(0))
+                || anyEur != (DataParser.dailyAmounts(1).size() != 0) || DataParser.dailyAmounts(2).size() != 0
+                || currencyErrors.toString("UTF-8").contains("Unrecognised currency")
+                || FieldParser.parseMinorUnits("1200".getBytes(StandardCharsets.US_ASCII), 0, 4, 0, "JPY") != 1200
+                || FieldParser.parseMinorUnits("1.205".getBytes(StandardCharsets.US_ASCII), 0, 5, 3, "BHD") != 1205) {
+            throw new RuntimeException("Test failed");
+        }
+        try {
+            FieldParser.parseMinorUnits("12.00".getBytes(StandardCharsets.US_ASCII), 0, 5, 0, "JPY");
+            throw new RuntimeException("Test failed");
+        } catch (DataParser.ParseException e) {
+            // Expected, JPY has no minor unit
+        }
+        DataParser.setCurrencies(new CurrencyUnit[]{CurrencyUnit.GBP});
+        DataParser.reset();
+
+        // Every record sent a second time is reported as a duplicate and not counted again
+        String data = new String(Files.readAllBytes(Paths.get("payment-forecast-data.csv")), StandardCharsets.ISO_8859_1);
+        String body = data.substring(data.indexOf('\n') + 1);
+        Path duplicatedPath = Paths.get("duplicated-data.csv");
+        Files.write(duplicatedPath, (data + (data.endsWith("\n") ? "" : "\n") + body).getBytes(StandardCharsets.ISO_8859_1));
+        DataParser.setDuplicateDetection(true, true);
+        ByteArrayOutputStream duplicateErrors = new ByteArrayOutputStream();
+        DataParser.parseDataFile(duplicatedPath.toString(), new PrintStream(duplicateErrors), new PrintStream(new ByteArrayOutputStream()), 4, 64 * 1024);
+        Files.delete(duplicatedPath);
+        if (!sequentialAmounts.equals(DataParser.dailyAmounts(0)) || !duplicateErrors.toString("UTF-8").contains("Duplicate record")) {
+            throw new RuntimeException("Test failed");
+        }
+        DataParser.setDuplicateDetection(true, false);
+        DataParser.reset();
+
+        // Split into several files, each with the header line, parsed as though they were one, plus a compressed copy of
+        // the first file whose records are all duplicates
+        String header = data.substring(0, data.indexOf('\n') + 1);
+        String[] lines = body.split("\n", -1);
+        Path directory = Files.createDirectories(Paths.get("multi-file-test"));
+        int linesPerFile = lines.length / 3 + 1;
+        for (int i = 0; i < 3; i++) {
+            String[] fileLines = Arrays.copyOfRange(lines, Math.min(i * linesPerFile, lines.length), Math.min((i + 1) * linesPerFile, lines.length));
+            Files.write(directory.resolve("part-" + i + ".csv"), (header + String.join("\n", fileLines) + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(directory.resolve("part-3.csv.gz")))) {
+            Files.copy(directory.resolve("part-0.csv"), out);
+        }
+        Map<Path, DataParser.ParsedFile> parsedFiles = Collections.emptyMap();
+        for (int parse = 0; parse < 2; parse++) {
+            ByteArrayOutputStream multiFileErrors = new ByteArrayOutputStream();
+            DataParser.reset();
+            Map<Path, DataParser.ParsedFile> previous = parsedFiles;
+            try (ParseErrorSink errorSink = new ParseErrorSink(multiFileErrors, ParseErrorSink.Format.TEXT, ParseErrorSink.UNLIMITED)) {
+                parsedFiles = DataParser.parseDataFiles(DataFileSet.list(directory.toString()).files, errorSink, new PrintStream(new ByteArrayOutputStream()), 4, previous);
+            }
+            String errorsText = multiFileErrors.toString("UTF-8");
+            // Unchanged files are kept rather than parsed again
+            if (!sequentialAmounts.equals(DataParser.dailyAmounts(0)) || parsedFiles.size() != 4
+                    || !errorsText.contains(" of part-3.csv.gz: Duplicate record") || errorsText.contains(" of part-0.csv: Duplicate record")
+                    || parse == 1 && !parsedFiles.values().containsAll(previous.values())) {
+                throw new RuntimeException("Test failed");
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            Files.delete(directory.resolve("part-" + i + ".csv"));
+        }
+        Files.delete(directory.resolve("part-3.csv.gz"));
+        Files.delete(directory);
+        DataParser.reset();
+    }
+
+    private static void parseErrorSinkTest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParseErrorSink sink = new ParseErrorSink(out, ParseErrorSink.Format.JSON, 2)) {
+            ArrayList<ParseError> errors = new ArrayList<>();
+            byte[] eur = "EUR".getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < 3; i++) {
+                errors.add(new ParseError(i, ForecastMetrics.Stage.AMOUNT, "Currency", eur,
+                        new DataParser.ParseException("Unrecognised currency type \"%s\"", eur)));
+            }
+            // Same code as the errors above but a different kind, so it isn't capped along with them
+            errors.add(new ParseError(3, ForecastMetrics.Stage.AMOUNT, "Amount", new byte[]{'0'},
+                    new DataParser.ParseException("Invalid amount (%s). Must be greater than zero", new byte[]{'0'})));
+            sink.report(10, errors);
+            sink.report(20, Collections.singletonList(new ParseError(0, ForecastMetrics.Stage.TOKENISE, null, null,
+                    new DataParser.ParseException("Invalid record length\n%s", "line"))));
+        }
+        String expected = "{\"line\":10,\"code\":\"amount\",\"field\":\"Currency\",\"value\":\"EUR\",\"message\":\"Unrecognised currency type \\\"EUR\\\"\"}\n"
+                + "{\"line\":11,\"code\":\"amount\",\"field\":\"Currency\",\"value\":\"EUR\",\"message\":\"Unrecognised currency type \\\"EUR\\\"\"}\n"
+                + "{\"line\":13,\"code\":\"amount\",\"field\":\"Amount\",\"value\":\"0\",\"message\":\"Invalid amount (0). Must be greater than zero\"}\n"
+                + "{\"line\":20,\"code\":\"tokenise\",\"message\":\"Invalid record length\\u000aline\"}\n"
+                + "{\"code\":\"amount\",\"field\":\"Currency\",\"template\":\"Unrecognised currency type \\\"%s\\\"\",\"suppressed\":1}\n";
+        if (!out.toString("UTF-8").equals(expected)) {
+            throw new RuntimeException("Test failed");
+        }
     }
 
     private static void forecastTest() throws Exception {
@@ -31,7 +314,488 @@ public class Tests {
         paymentForecastServlet.runtimeLogPath = "runtime-log.log";
         paymentForecastServlet.init();
         ArrayList<String> iterableWrapper = new ArrayList<>();
-        iterableWrapper.add(paymentForecastServlet.message);
+        iterableWrapper.add(pageText(paymentForecastServlet.snapshot));
         Files.write(Paths.get("test_html_output.html"), iterableWrapper);
+
+        PaymentForecastServlet streamingServlet = new PaymentForecastServlet();
+        streamingServlet.filePath = paymentForecastServlet.filePath;
+        streamingServlet.parseErrorPath = paymentForecastServlet.parseErrorPath;
+        streamingServlet.runtimeLogPath = paymentForecastServlet.runtimeLogPath;
+        streamingServlet.streamResponse = true;
+        streamingServlet.init();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        PaymentForecastServlet.writePage(streamingServlet.snapshot, ForecastQuery.ALL, streamed);
+        if (!streamingServlet.snapshot.isStreamed()
+                || !Arrays.equals(streamed.toByteArray(), paymentForecastServlet.snapshot.page.identity())) {
+            throw new RuntimeException("Test failed");
+        }
+
+        // Labels are the same as those of a Calendar, and pages rendered at the same time are all the same
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        for (int day : streamingServlet.snapshot.days) {
+            calendar.setTimeInMillis(day * 86400000L);
+            String expected = calendar.get(Calendar.DAY_OF_MONTH) + " " + calendar.getDisplayName(Calendar.MONTH, Calendar.SHORT, Locale.ENGLISH)
+                    + " " + calendar.get(Calendar.YEAR);
+            if (!DateLabels.label(day).equals(expected)) {
+                throw new RuntimeException("Test failed");
+            }
+        }
+        // Payment days match those of the Calendar that used to be used, around the 4pm cutoff at the end of months, of
+        // leap and non leap years and before epoch
+        for (String date : new String[]{"2016-02-28", "2016-02-29", "2016-12-31", "2017-02-28", "2017-04-30", "1969-12-31"}) {
+            long midnight = LocalDate.parse(date).toEpochDay() * 86400;
+            for (long second : new long[]{0, 16 * 3600 - 1, 16 * 3600, 86400 - 1}) {
+                calendar.setTimeInMillis((midnight + second) * 1000);
+                if (calendar.get(Calendar.HOUR_OF_DAY) >= 16) {
+                    calendar.add(Calendar.DAY_OF_MONTH, 1);
+                }
+                int expectedDay = (int) Math.floorDiv(calendar.getTimeInMillis(), 86400000L);
+                if (DataParser.paymentDay(midnight + second) != expectedDay
+                        || !new SimpleDate(Instant.ofEpochSecond(midnight + second)).equals(new SimpleDate((int) LocalDate.parse(date).toEpochDay()))) {
+                    throw new RuntimeException("Test failed");
+                }
+            }
+        }
+        ExecutorService renderers = Executors.newFixedThreadPool(4);
+        ArrayList<Future<byte[]>> renders = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            renders.add(renderers.submit(() -> {
+                ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+                PaymentForecastServlet.writePage(streamingServlet.snapshot, ForecastQuery.ALL, rendered);
+                return rendered.toByteArray();
+            }));
+        }
+        for (Future<byte[]> render : renders) {
+            if (!Arrays.equals(render.get(), streamed.toByteArray())) {
+                throw new RuntimeException("Test failed");
+            }
+        }
+        renderers.shutdown();
+        if (!HtmlTableHeader.escape("<Tom & Jerry's \"Cafe\">").equals("&lt;Tom &amp; Jerry&#39;s &quot;Cafe&quot;&gt;")) {
+            throw new RuntimeException("Test failed");
+        }
+
+        queryTest(streamingServlet.snapshot);
+
+        reloadTest(pageText(paymentForecastServlet.snapshot));
+
+        parsedStateTest(pageText(paymentForecastServlet.snapshot));
+    }
+
+    private static void parsedStateTest(String expectedMessage) throws Exception {
+        byte[] expectedErrors = Files.readAllBytes(Paths.get("parsing-errors.txt"));
+        byte[] data = Files.readAllBytes(Paths.get("payment-forecast-data.csv"));
+        int split = data.length / 2;
+        while (split > 0 && data[split - 1] != '\n') {
+            split--;
+        }
+        Path dataPath = Paths.get("parsed-state-test-data.csv");
+        Path statePath = Paths.get("parsed-state-test.bin");
+        Path errorsPath = Paths.get("parsed-state-test-parsing-errors.txt");
+        Files.write(dataPath, Arrays.copyOf(data, split));
+        newParsedStateServlet(dataPath, statePath, errorsPath);
+
+        // Restarted after the data file has been appended to, only the appended lines are parsed
+        Files.write(dataPath, data);
+        Files.setLastModifiedTime(dataPath, FileTime.fromMillis(Files.getLastModifiedTime(dataPath).toMillis() + 1000));
+        PaymentForecastServlet appendedServlet = newParsedStateServlet(dataPath, statePath, errorsPath);
+        if (!pageText(appendedServlet.snapshot).equals(expectedMessage) || !Arrays.equals(Files.readAllBytes(errorsPath), expectedErrors)) {
+            throw new RuntimeException("Test failed");
+        }
+
+        // Restarted with an unchanged data file, nothing is parsed so no parse errors file is written
+        Files.delete(errorsPath);
+        PaymentForecastServlet restoredServlet = newParsedStateServlet(dataPath, statePath, errorsPath);
+        if (!pageText(restoredServlet.snapshot).equals(expectedMessage) || Files.exists(errorsPath)) {
+            throw new RuntimeException("Test failed");
+        }
+        Files.delete(dataPath);
+        Files.delete(statePath);
+    }
+
+    private static PaymentForecastServlet newParsedStateServlet(Path dataPath, Path statePath, Path errorsPath) throws Exception {
+        PaymentForecastServlet servlet = new PaymentForecastServlet();
+        servlet.filePath = dataPath.toString();
+        servlet.parseErrorPath = errorsPath.toString();
+        servlet.runtimeLogPath = "parsed-state-test-runtime-log.log";
+        servlet.parsedStatePath = statePath.toString();
+        servlet.appendOnly = true;
+        servlet.init();
+        return servlet;
+    }
+
+    private static void queryTest(ForecastSnapshot snapshot) throws Exception {
+        if (!ForecastQuery.parse(new HashMap<>()).isAll()) {
+            throw new RuntimeException("Test failed");
+        }
+        if (snapshot.days.length < 3 || snapshot.merchantIds.length < 2) {
+            return;
+        }
+        int[] days = snapshot.days;
+        HashMap<String, String[]> parameters = new HashMap<>();
+        parameters.put("from", new String[]{LocalDate.ofEpochDay(days[0] + 1).toString()});
+        parameters.put("to", new String[]{LocalDate.ofEpochDay(days[days.length - 1]).toString()});
+        parameters.put("merchant", new String[]{snapshot.merchantIds[1] + ",-5", String.valueOf(snapshot.merchantIds[1])});
+        parameters.put("limit", new String[]{"1"});
+        parameters.put("page", new String[]{"2"});
+        ForecastQuery query = ForecastQuery.parse(parameters);
+        // First day is excluded by from, so the second page of one row is the third day
+        if (query.firstRow(snapshot) != 2 || query.endRow(snapshot) != 3 || !Arrays.equals(query.columns(snapshot), new int[]{1})) {
+            throw new RuntimeException("Test failed");
+        }
+        ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+        PaymentForecastServlet.writePage(snapshot, query, filtered);
+        String html = filtered.toString("UTF-8");
+        if (!html.contains("<th>" + snapshot.merchantNames[1] + "</th></tr><tr><td>" + DateLabels.label(snapshot.days[2]) + "</td><td>&pound;")
+                || html.contains("<td>" + DateLabels.label(snapshot.days[1]) + "</td>") || html.contains("<th>" + snapshot.merchantNames[0] + "<")) {
+            throw new RuntimeException("Test failed");
+        }
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        PaymentForecastServlet.writeData(snapshot, query, ForecastFormat.JSON, json);
+        int day = snapshot.days[2];
+        String amount = BigDecimal.valueOf(snapshot.amounts.get(day, snapshot.merchantIds[1]), 2).toPlainString();
+        String expectedJson = "{\"currency\":\"GBP\",\"merchants\":[{\"id\":" + snapshot.merchantIds[1] + ",\"name\":\"" + JsonForecastWriter.escape(snapshot.merchantNames[1])
+                + "\"}],\"days\":[{\"date\":\"" + LocalDate.ofEpochDay(day) + "\",\"amounts\":[" + amount + "]}]}";
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        PaymentForecastServlet.writeData(snapshot, query, ForecastFormat.CSV, csv);
+        String expectedCsv = "Date,Currency," + CsvForecastWriter.quote(snapshot.merchantNames[1]) + "\r\n" + LocalDate.ofEpochDay(day) + ",GBP," + amount + "\r\n";
+        if (!json.toString("UTF-8").equals(expectedJson) || !csv.toString("UTF-8").equals(expectedCsv)) {
+            throw new RuntimeException("Test failed");
+        }
+        // Views are rendered once, then served from the cache until it is cleared or they are evicted
+        int[] renders = {0};
+        RenderedViewCache.Renderer jsonRenderer = () -> {
+            renders[0]++;
+            return PaymentForecastServlet.renderView(snapshot, query, ForecastFormat.JSON);
+        };
+        RenderedViewCache.Renderer csvRenderer = () -> PaymentForecastServlet.renderView(snapshot, query, ForecastFormat.CSV);
+        RenderedViewCache cache = new RenderedViewCache(1024 * 1024);
+        EncodedResponse jsonView = cache.get(snapshot, query, ForecastFormat.JSON, jsonRenderer);
+        cache.get(snapshot, query, ForecastFormat.CSV, csvRenderer);
+        if (cache.get(snapshot, query, ForecastFormat.JSON, jsonRenderer) != jsonView || renders[0] != 1 || cache.size() != 2) {
+            throw new RuntimeException("Test failed");
+        }
+        // Room for either view but not both, so the least recently used is evicted
+        RenderedViewCache smallCache = new RenderedViewCache(cache.bytes() - 1);
+        smallCache.get(snapshot, query, ForecastFormat.JSON, jsonRenderer);
+        smallCache.get(snapshot, query, ForecastFormat.CSV, csvRenderer);
+        smallCache.get(snapshot, query, ForecastFormat.JSON, jsonRenderer);
+        cache.clear();
+        cache.get(snapshot, query, ForecastFormat.JSON, jsonRenderer);
+        if (renders[0] != 4 || smallCache.size() != 1) {
+            throw new RuntimeException("Test failed");
+        }
+        // A request for a view that is already being rendered waits for that render, rather than rendering it again
+        RenderedViewCache concurrentCache = new RenderedViewCache(1024 * 1024);
+        AtomicInteger concurrentRenders = new AtomicInteger();
+        CountDownLatch renderStarted = new CountDownLatch(1);
+        CountDownLatch finishRender = new CountDownLatch(1);
+        RenderedViewCache.Renderer blockingRenderer = () -> {
+            concurrentRenders.incrementAndGet();
+            renderStarted.countDown();
+            try {
+                finishRender.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return PaymentForecastServlet.renderView(snapshot, query, ForecastFormat.JSON);
+        };
+        ExecutorService requesters = Executors.newFixedThreadPool(2, runnable -> {
+            // A deadlocked request can't stop the tests from exiting
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Future<EncodedResponse> first = requesters.submit(() -> concurrentCache.get(snapshot, query, ForecastFormat.JSON, blockingRenderer));
+        renderStarted.await();
+        long hitsBefore = new ForecastMetrics().getViewCacheHits();
+        Future<EncodedResponse> second = requesters.submit(() -> concurrentCache.get(snapshot, query, ForecastFormat.JSON, blockingRenderer));
+        // The second request has found the render in progress once it has counted a hit
+        while (new ForecastMetrics().getViewCacheHits() == hitsBefore) {
+            Thread.sleep(1);
+        }
+        finishRender.countDown();
+        EncodedResponse firstView = first.get(10, TimeUnit.SECONDS);
+        if (second.get(10, TimeUnit.SECONDS) != firstView || concurrentRenders.get() != 1 || concurrentCache.size() != 1) {
+            throw new RuntimeException("Test failed");
+        }
+        requesters.shutdown();
+
+        if (ForecastFormat.of("/forecast.csv", "application/json") != ForecastFormat.CSV
+                || ForecastFormat.of(null, "application/json, text/*;q=0.5") != ForecastFormat.JSON
+                || ForecastFormat.of(null, "text/csv, text/html;q=0.9, */*;q=0.1") != ForecastFormat.CSV
+                || ForecastFormat.of(null, "*/*") != ForecastFormat.HTML
+                || !JsonForecastWriter.escape("a\"b\\\n").equals("a\\\"b\\\\\\u000a")
+                || !CsvForecastWriter.quote("a,\"b").equals("\"a,\"\"b\"")) {
+            throw new RuntimeException("Test failed");
+        }
+        // Media ranges are case-insensitive whatever the default locale, in Turkish "I" lowercases to a dotless i
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            if (ForecastFormat.of(null, "APPLICATION/JSON") != ForecastFormat.JSON) {
+                throw new RuntimeException("Test failed");
+            }
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+
+        parameters.put("from", new String[]{"24/04/2017"});
+        try {
+            ForecastQuery.parse(parameters);
+            throw new RuntimeException("Test failed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void reloadTest(String expectedMessage) throws Exception {
+        byte[] expectedErrors = Files.readAllBytes(Paths.get("parsing-errors.txt"));
+        byte[] data = Files.readAllBytes(Paths.get("payment-forecast-data.csv"));
+        // Start with roughly the first half of the lines and part of the next line
+        int split = data.length / 2;
+        while (split > 0 && data[split - 1] != '\n') {
+            split--;
+        }
+        int partialLineEnd = Math.min(split + 10, data.length);
+        for (boolean appendOnly : new boolean[]{false, true}) {
+            Path reloadPath = Paths.get("reload-test-data.csv");
+            Files.write(reloadPath, Arrays.copyOf(data, partialLineEnd));
+
+            PaymentForecastServlet reloadingServlet = new PaymentForecastServlet();
+            reloadingServlet.filePath = reloadPath.toString();
+            reloadingServlet.parseErrorPath = "reload-test-parsing-errors.txt";
+            reloadingServlet.runtimeLogPath = "reload-test-runtime-log.log";
+            reloadingServlet.appendOnly = appendOnly;
+            reloadingServlet.init();
+            ForecastSnapshot firstSnapshot = reloadingServlet.snapshot;
+
+            Files.write(reloadPath, data);
+            Files.setLastModifiedTime(reloadPath, FileTime.fromMillis(firstSnapshot.sourceLastModified + 1000));
+            reloadingServlet.reloadIfChanged();
+            if (!appendOnly) {
+                // The first check only notices the change, the file is reloaded once it has stopped changing
+                if (reloadingServlet.snapshot != firstSnapshot) {
+                    throw new RuntimeException("Test failed");
+                }
+                reloadingServlet.reloadIfChanged();
+            }
+            if (!pageText(reloadingServlet.snapshot).equals(expectedMessage)
+                    || !Arrays.equals(Files.readAllBytes(Paths.get(reloadingServlet.parseErrorPath)), expectedErrors)) {
+                throw new RuntimeException("Test failed");
+            }
+            reloadingServlet.destroy();
+            Files.delete(reloadPath);
+            Files.delete(Paths.get(reloadingServlet.parseErrorPath));
+        }
+    }
+
+    private static void encodedResponseTest() throws Exception {
+        if (!EncodedResponse.accepts("deflate, gzip;q=0.5", "gzip")
+                || EncodedResponse.accepts("gzip;q=0, *", "gzip")
+                || !EncodedResponse.accepts("br, *", "gzip")
+                || EncodedResponse.accepts(null, "gzip")) {
+            throw new RuntimeException("Test failed");
+        }
+        byte[] body = new byte[100000];
+        Arrays.fill(body, (byte) 'a');
+        EncodedResponse page = new EncodedResponse(body, "text/plain", 1234567);
+
+        HashMap<String, String> requestHeaders = new HashMap<>();
+        requestHeaders.put("Accept-Encoding", "gzip");
+        HashMap<String, Object> responseHeaders = new HashMap<>();
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        page.write(testRequest(requestHeaders), testResponse(responseHeaders, responseBody));
+        byte[] gzipped = responseBody.toByteArray();
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        if (!"gzip".equals(responseHeaders.get("Content-Encoding"))
+                || !Long.valueOf(gzipped.length).equals(responseHeaders.get("Content-Length"))
+                || !Long.valueOf(1234000).equals(responseHeaders.get("Last-Modified"))
+                || !Arrays.equals(decompressed.toByteArray(), body)) {
+            throw new RuntimeException("Test failed");
+        }
+
+        requestHeaders.put("If-None-Match", "\"other\", W/" + responseHeaders.get("ETag"));
+        responseHeaders.clear();
+        responseBody.reset();
+        page.write(testRequest(requestHeaders), testResponse(responseHeaders, responseBody));
+        if (!Integer.valueOf(HttpServletResponse.SC_NOT_MODIFIED).equals(responseHeaders.get("Status")) || responseBody.size() != 0) {
+            throw new RuntimeException("Test failed");
+        }
+
+        // Sent without blocking, a chunk at a time whenever the client is ready for more
+        WriteListener[] writeListener = new WriteListener[1];
+        boolean[] ready = {false};
+        ServletOutputStream asyncOut = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                ready[0] = !ready[0];
+                return ready[0];
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                writeListener[0] = listener;
+            }
+
+            @Override
+            public void write(int b) {
+                responseBody.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (!ready[0] || len > ResponseBody.ASYNC_CHUNK_SIZE) {
+                    throw new RuntimeException("Test failed");
+                }
+                responseBody.write(b, off, len);
+            }
+        };
+        boolean[] completed = {false};
+        AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(Tests.class.getClassLoader(), new Class<?>[]{AsyncContext.class}, (proxy, method, args) -> {
+            if (method.getName().equals("complete")) {
+                completed[0] = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        requestHeaders.clear();
+        responseHeaders.clear();
+        responseBody.reset();
+        HttpServletResponse asyncResponse = testResponse(responseHeaders, asyncOut);
+        ResponseBody asyncBody = new ResponseBody(asyncResponse, asyncContext);
+        page.write(testRequest(requestHeaders), asyncResponse, asyncBody);
+        boolean[] done = {false};
+        asyncBody.send(() -> done[0] = true);
+        for (int i = 0; i < 10 && !completed[0]; i++) {
+            writeListener[0].onWritePossible();
+        }
+        if (!completed[0] || !done[0] || !Arrays.equals(responseBody.toByteArray(), body)) {
+            throw new RuntimeException("Test failed");
+        }
+    }
+
+    private static void metricsTest() throws Exception {
+        for (long value : new long[]{0, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            long highest = Histogram.highestValueInBucket(Histogram.bucketIndex(value));
+            // Every value is counted to within 12.5%
+            if (highest < value || highest - value > value / 8) {
+                throw new RuntimeException("Test failed");
+            }
+        }
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        if (histogram.count() != 1000 || histogram.max() != 1000 || histogram.mean() != 500.5
+                || Math.abs(histogram.percentile(50) - 500) > 500 / 8 || histogram.percentile(100) != 1000) {
+            throw new RuntimeException("Test failed");
+        }
+
+        ForecastMetrics metrics = new ForecastMetrics();
+        long linesBefore = metrics.getLinesParsed();
+        long errorsBefore = metrics.getParseErrors().values().stream().mapToLong(Long::longValue).sum();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        DataParser.parseDataFile("payment-forecast-data.csv", new PrintStream(errors), new PrintStream(new ByteArrayOutputStream()), 4, 64 * 1024);
+        DataParser.reset();
+        long lines = Files.lines(Paths.get("payment-forecast-data.csv")).count() - 1;
+        // Some messages span more than one line
+        Matcher errorLine = Pattern.compile("^Failed to parse line \\d+: ", Pattern.MULTILINE).matcher(errors.toString("UTF-8"));
+        long errorLines = 0;
+        while (errorLine.find()) {
+            errorLines++;
+        }
+        long errorsAfter = metrics.getParseErrors().values().stream().mapToLong(Long::longValue).sum();
+        if (metrics.getLinesParsed() - linesBefore != lines || errorsAfter - errorsBefore != errorLines
+                || metrics.getStageNanos().get("hash") <= 0 || !ForecastMetrics.toText().contains("payment_forecast_lines_parsed_total ")) {
+            throw new RuntimeException("Test failed");
+        }
+
+        boolean registered = ForecastMetrics.register();
+        Object linesParsed = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(ForecastMetrics.OBJECT_NAME), "LinesParsed");
+        if (registered) {
+            ForecastMetrics.unregister();
+        }
+        if (!Long.valueOf(metrics.getLinesParsed()).equals(linesParsed)) {
+            throw new RuntimeException("Test failed");
+        }
+    }
+
+    /**
+     * @param snapshot Snapshot of a servlet that doesn't stream the response.
+     * @return the full page of the snapshot.
+     */
+    private static String pageText(ForecastSnapshot snapshot) {
+        return new String(snapshot.page.identity(), StandardCharsets.UTF_8);
+    }
+
+    private static HttpServletRequest testRequest(Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(Tests.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getHeader":
+                    return headers.get((String) args[0]);
+                case "getDateHeader":
+                    return -1L;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Response that records its headers and status in a map, and its body in an output stream.
+     */
+    private static HttpServletResponse testResponse(Map<String, Object> headers, ByteArrayOutputStream body) {
+        return testResponse(headers, new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+    }
+
+    /**
+     * Response that records its headers and status in a map, and writes its body to a servlet output stream.
+     */
+    private static HttpServletResponse testResponse(Map<String, Object> headers, ServletOutputStream out) {
+        return (HttpServletResponse) Proxy.newProxyInstance(Tests.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "setHeader":
+                case "addHeader":
+                case "setDateHeader":
+                    headers.put((String) args[0], args[1]);
+                    return null;
+                case "setStatus":
+                    headers.put("Status", args[0]);
+                    return null;
+                case "setContentType":
+                    headers.put("Content-Type", args[0]);
+                    return null;
+                case "setContentLengthLong":
+                    headers.put("Content-Length", args[0]);
+                    return null;
+                case "getOutputStream":
+                    return out;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
     }
 }